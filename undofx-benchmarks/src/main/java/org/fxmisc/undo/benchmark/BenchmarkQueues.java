@@ -0,0 +1,43 @@
+package org.fxmisc.undo.benchmark;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+
+import org.fxmisc.undo.impl.ChangeCodec;
+import org.fxmisc.undo.impl.ChangeQueue;
+import org.fxmisc.undo.impl.FixedSizeChangeQueue;
+import org.fxmisc.undo.impl.MemoryBoundedChangeQueue;
+import org.fxmisc.undo.impl.OffHeapChangeQueue;
+import org.fxmisc.undo.impl.TimeBoundedChangeQueue;
+import org.fxmisc.undo.impl.UndoTreeChangeQueue;
+import org.fxmisc.undo.impl.UnlimitedChangeQueue;
+import org.fxmisc.undo.impl.ZeroSizeChangeQueue;
+
+/**
+ * Creates the {@link ChangeQueue} implementations under test from a JMH {@code @Param} value.
+ */
+final class BenchmarkQueues {
+
+    private static final ChangeCodec<Integer> INT_CODEC = new ChangeCodec<Integer>() {
+        @Override public int encodedSize(Integer change) { return Integer.BYTES; }
+        @Override public void encode(Integer change, ByteBuffer buffer) { buffer.putInt(change); }
+        @Override public Integer decode(ByteBuffer buffer) { return buffer.getInt(); }
+    };
+
+    private BenchmarkQueues() {}
+
+    static ChangeQueue<Integer> create(String type, int capacity) {
+        switch(type) {
+            case "unlimited": return new UnlimitedChangeQueue<>();
+            case "fixed":     return new FixedSizeChangeQueue<>(capacity);
+            // every change is estimated at one byte, so that the budget equals the capacity
+            case "memory":    return new MemoryBoundedChangeQueue<>(c -> 1, capacity);
+            // nothing expires during a benchmark run, so this measures the cost of the clock and age checks
+            case "time":      return new TimeBoundedChangeQueue<>(Duration.ofHours(1));
+            case "offheap":   return new OffHeapChangeQueue<>(INT_CODEC);
+            case "tree":      return new UndoTreeChangeQueue<>(c -> 1, capacity);
+            case "zero":      return new ZeroSizeChangeQueue<>();
+            default: throw new IllegalArgumentException("Unknown queue type: " + type);
+        }
+    }
+}
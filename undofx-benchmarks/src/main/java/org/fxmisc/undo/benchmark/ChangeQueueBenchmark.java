@@ -0,0 +1,106 @@
+package org.fxmisc.undo.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.fxmisc.undo.impl.ChangeQueue;
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link ChangeQueue} operations performed on every change ({@code push})
+ * and on every undo/redo ({@code prev}/{@code next}, {@code getCurrentPosition}).
+ * Run with {@code -prof gc} to see the allocation rate per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChangeQueueBenchmark {
+
+    @Param({"unlimited", "fixed", "memory", "time", "offheap", "tree", "zero"})
+    public String queueType;
+
+    @Param({"1000"})
+    public int historySize;
+
+    // a cached instance, so that boxing does not show up in the allocation rate
+    private final Integer change = 42;
+
+    private ChangeQueue<Integer> queue;
+    private int pushed;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        queue = BenchmarkQueues.create(queueType, historySize);
+        for(int i = 0; i < historySize; ++i) {
+            queue.push(change);
+        }
+        pushed = 0;
+    }
+
+    /**
+     * Pushes a single change. For the {@code unlimited} and {@code fixed} queues,
+     * {@code gc.alloc.rate.norm} reported by {@code -prof gc} should be (close to) zero,
+     * since neither the change nor its revision is wrapped in another object.
+     */
+    @Benchmark
+    public void push() {
+        queue.push(change);
+
+        // keep the unlimited queue from growing without bounds,
+        // the way an editor that forgets history on save would
+        if(++pushed == historySize) {
+            pushed = 0;
+            queue.forgetHistory();
+        }
+    }
+
+    /**
+     * Pushes two changes at once, which goes through the varargs {@code push}.
+     */
+    @Benchmark
+    public void pushTwo() {
+        queue.push(change, change);
+        pushed += 1;
+        if(++pushed >= historySize) {
+            pushed = 0;
+            queue.forgetHistory();
+        }
+    }
+
+    @Benchmark
+    public Integer prevNext() {
+        if(queue.hasPrev()) {
+            queue.prev();
+        }
+        return queue.hasNext() ? queue.next() : null;
+    }
+
+    @Benchmark
+    public Integer peekPrev() {
+        return queue.hasPrev() ? queue.peekPrev() : null;
+    }
+
+    @Benchmark
+    public QueuePosition getCurrentPosition() {
+        return queue.getCurrentPosition();
+    }
+
+    @Benchmark
+    public boolean positionIsValid() {
+        return queue.getCurrentPosition().isValid();
+    }
+}
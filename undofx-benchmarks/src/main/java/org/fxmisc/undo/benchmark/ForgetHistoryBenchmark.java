@@ -0,0 +1,60 @@
+package org.fxmisc.undo.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.fxmisc.undo.impl.ChangeQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ChangeQueue#forgetHistory()} on a queue whose current position
+ * is in the middle of the history, i.e. with a redo tail of {@code historySize / 2}
+ * changes that has to be retained.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ForgetHistoryBenchmark {
+
+    @Param({"unlimited", "fixed", "memory", "time", "offheap", "tree", "zero"})
+    public String queueType;
+
+    @Param({"1000", "100000"})
+    public int historySize;
+
+    private final Integer change = 42;
+
+    private ChangeQueue<Integer> queue;
+
+    // The queue has to be refilled before every invocation. The setup cost is not
+    // included in the score, but makes this benchmark unsuitable for sub-microsecond results.
+    @Setup(Level.Invocation)
+    public void setUp() {
+        queue = BenchmarkQueues.create(queueType, historySize);
+        for(int i = 0; i < historySize; ++i) {
+            queue.push(change);
+        }
+        for(int i = 0; i < historySize / 2 && queue.hasPrev(); ++i) {
+            queue.prev();
+        }
+    }
+
+    @Benchmark
+    public ChangeQueue<Integer> forgetHistory() {
+        queue.forgetHistory();
+        return queue;
+    }
+}
@@ -0,0 +1,90 @@
+package org.fxmisc.undo.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.fxmisc.undo.UndoManager;
+import org.fxmisc.undo.UndoManagerFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactfx.EventSource;
+
+/**
+ * Measures the cost of recording a keystroke typed at several carets at once,
+ * i.e. a list of one change per caret, with a multi-change undo manager.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultiCaretTypingBenchmark {
+
+    @Param({"1", "10", "1000"})
+    public int carets;
+
+    @Param({"1000"})
+    public int historySize;
+
+    private List<Integer> keystroke;
+
+    private EventSource<List<Integer>> changes;
+    private UndoManager<List<Integer>> um;
+    private int pushed;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        keystroke = new ArrayList<>(carets);
+        for(int i = 0; i < carets; ++i) {
+            keystroke.add(1);
+        }
+
+        changes = new EventSource<>();
+        um = UndoManagerFactory.unlimitedHistoryMultiChangeUM(
+                changes, c -> -c, changes::push, (c1, c2) -> Optional.of(c1 + c2), c -> c == 0);
+        changes.push(keystroke);
+        pushed = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        um.close();
+    }
+
+    /**
+     * The keystroke is merged with the previous one at every caret.
+     */
+    @Benchmark
+    public void keystrokeMerged() {
+        changes.push(keystroke);
+    }
+
+    /**
+     * The keystroke follows a pause and is recorded as a new entry.
+     */
+    @Benchmark
+    public void keystrokeRecorded() {
+        um.preventMerge();
+        changes.push(keystroke);
+
+        // keep the history from growing without bounds
+        if(++pushed == historySize) {
+            pushed = 0;
+            um.forgetHistory();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.fxmisc.undo.benchmark;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import org.fxmisc.undo.UndoManager;
+import org.fxmisc.undo.UndoManager.UndoPosition;
+import org.fxmisc.undo.UndoManagerFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactfx.EventSource;
+
+/**
+ * Measures the end-to-end cost of a change emitted from the change stream
+ * (change observed, merged or pushed to the history, properties invalidated)
+ * and of an undo/redo round trip through {@code apply} and the change stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UndoManagerBenchmark {
+
+    @Param({"false", "true"})
+    public boolean merge;
+
+    /** Whether there are listeners attached to the UndoManager's properties, as there would be in a UI. */
+    @Param({"false", "true"})
+    public boolean observed;
+
+    @Param({"1000"})
+    public int historySize;
+
+    private final Integer change = 1;
+
+    private EventSource<Integer> changes;
+    private UndoManager<Integer> um;
+    private UndoPosition start;
+    private UndoPosition end;
+    private int pushed;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        BiFunction<Integer, Integer, Optional<Integer>> merger = merge
+                ? (c1, c2) -> Optional.of(c1 + c2)
+                : (c1, c2) -> Optional.empty();
+        changes = new EventSource<>();
+        um = UndoManagerFactory.unlimitedHistorySingleChangeUM(
+                changes, c -> -c, changes::push, merger, c -> c == 0);
+
+        if(observed) {
+            um.undoAvailableProperty().addListener((obs, oldVal, newVal) -> {});
+            um.redoAvailableProperty().addListener((obs, oldVal, newVal) -> {});
+            um.atMarkedPositionProperty().addListener((obs, oldVal, newVal) -> {});
+        }
+
+        start = um.getCurrentPosition();
+        for(int i = 0; i < historySize; ++i) {
+            changes.push(change);
+            um.preventMerge();
+        }
+        end = um.getCurrentPosition();
+        pushed = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        um.close();
+    }
+
+    @Benchmark
+    public void changeObserved() {
+        changes.push(change);
+
+        // keep the history from growing without bounds
+        if(++pushed == historySize) {
+            pushed = 0;
+            um.forgetHistory();
+        }
+    }
+
+    @Benchmark
+    public boolean undoRedo() {
+        return um.undo() & um.redo();
+    }
+
+    /**
+     * Jumps to the beginning of the history and back, undoing and redoing all changes.
+     */
+    @Benchmark
+    public boolean undoToRedoTo() {
+        return um.undoTo(start) & um.redoTo(end);
+    }
+}
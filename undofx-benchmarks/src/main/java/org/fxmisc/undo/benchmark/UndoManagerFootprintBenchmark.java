@@ -0,0 +1,71 @@
+package org.fxmisc.undo.benchmark;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.fxmisc.undo.impl.UndoManagerImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactfx.EventSource;
+
+/**
+ * Measures the size of an undo manager of a dormant document, i.e. one that has been
+ * created, but whose history is empty. Run with {@code -prof gc}: everything allocated
+ * while creating the undo manager is retained by it until it is closed, so
+ * {@code gc.alloc.rate.norm} reports the retained size of an instance in bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UndoManagerFootprintBenchmark {
+
+    @Param({"unlimited", "fixed", "memory", "time", "tree", "zero"})
+    public String queue;
+
+    @Param({"100"})
+    public int capacity;
+
+    private EventSource<Integer> changes;
+
+    @Setup
+    public void setUp() {
+        changes = new EventSource<>();
+    }
+
+    @Benchmark
+    public UndoManagerImpl<Integer> dormant() {
+        UndoManagerImpl<Integer> um = create();
+        um.close();
+        return um;
+    }
+
+    /**
+     * A dormant undo manager whose properties are observed, e.g. bound to the actions of a menu.
+     */
+    @Benchmark
+    public UndoManagerImpl<Integer> dormantObserved() {
+        UndoManagerImpl<Integer> um = create();
+        um.undoAvailableProperty().addListener((obs, oldVal, newVal) -> {});
+        um.redoAvailableProperty().addListener((obs, oldVal, newVal) -> {});
+        um.atMarkedPositionProperty().addListener((obs, oldVal, newVal) -> {});
+        um.close();
+        return um;
+    }
+
+    private UndoManagerImpl<Integer> create() {
+        return new UndoManagerImpl<>(BenchmarkQueues.create(queue, capacity),
+                c -> -c, changes::push, (c1, c2) -> Optional.empty(), c -> c == 0, changes);
+    }
+}
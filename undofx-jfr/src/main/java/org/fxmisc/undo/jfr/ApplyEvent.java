@@ -0,0 +1,13 @@
+package org.fxmisc.undo.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.fxmisc.undo.Apply")
+@Label("Undo Apply")
+@Category({"UndoFX"})
+@Description("A change applied by an undo manager on undo or redo")
+class ApplyEvent extends UndoEvent {
+}
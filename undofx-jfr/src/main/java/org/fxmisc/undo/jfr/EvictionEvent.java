@@ -0,0 +1,16 @@
+package org.fxmisc.undo.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.fxmisc.undo.Eviction")
+@Label("Undo Eviction")
+@Category({"UndoFX"})
+@Description("History entries forgotten by a bounded change queue to stay within its bounds")
+class EvictionEvent extends UndoEvent {
+
+    @Label("Evicted Entries")
+    int count;
+}
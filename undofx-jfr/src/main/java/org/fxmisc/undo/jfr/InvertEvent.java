@@ -0,0 +1,13 @@
+package org.fxmisc.undo.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.fxmisc.undo.Invert")
+@Label("Undo Invert")
+@Category({"UndoFX"})
+@Description("A change inverted by an undo manager in order to undo it")
+class InvertEvent extends UndoEvent {
+}
@@ -0,0 +1,99 @@
+package org.fxmisc.undo.jfr;
+
+import org.fxmisc.undo.impl.UndoInstrumentation;
+
+/**
+ * {@link UndoInstrumentation} that emits JDK Flight Recorder events for the changes an undo manager
+ * applies, inverts and merges, and for the history entries its queue evicts. Each event carries the
+ * class of the change and the undo depth of the history. The apply, invert and merge events begin
+ * right before the operation and end right after it, so their start time and duration are those of
+ * the operation: a recording shows which change made an undo or redo slow, on the timeline and
+ * subject to the {@code threshold} setting of the events.
+ *
+ * <pre>{@code
+ * undoManager.setInstrumentation(new JfrInstrumentation("editor"));
+ * }</pre>
+ *
+ * <p>The events are enabled by default. While the recording does not include them, creating them
+ * costs almost nothing. Each operation gets its own event, so an instance may be called from the
+ * threads on which an asynchronous undo or redo applies its change. An instance must only be used
+ * by a single undo manager.</p>
+ */
+public class JfrInstrumentation implements UndoInstrumentation {
+
+    private final String name;
+    private volatile int undoDepth = 0;
+
+    /**
+     * @param name identifies the undo manager in the recorded events
+     */
+    public JfrInstrumentation(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void historyChanged(int undoDepth) {
+        this.undoDepth = undoDepth;
+    }
+
+    @Override
+    public Object applyStarting(Object change) {
+        return begin(new ApplyEvent());
+    }
+
+    @Override
+    public void applyTimed(Object change, long nanos, Object started) {
+        end((UndoEvent) started, change);
+    }
+
+    @Override
+    public Object invertStarting(Object change) {
+        return begin(new InvertEvent());
+    }
+
+    @Override
+    public void invertTimed(Object change, long nanos, Object started) {
+        end((UndoEvent) started, change);
+    }
+
+    @Override
+    public Object mergeStarting(Object prev, Object change) {
+        return begin(new MergeEvent());
+    }
+
+    @Override
+    public void mergeTimed(Object prev, Object change, boolean merged, long nanos, Object started) {
+        MergeEvent event = (MergeEvent) started;
+        event.merged = merged;
+        end(event, change);
+    }
+
+    @Override
+    public void changesEvicted(int count) {
+        EvictionEvent event = new EvictionEvent();
+        if(event.shouldCommit()) {
+            fill(event, null);
+            event.count = count;
+            event.commit();
+        }
+    }
+
+    private static UndoEvent begin(UndoEvent event) {
+        event.begin();
+        return event;
+    }
+
+    private void end(UndoEvent event, Object change) {
+        event.end();
+        if(event.shouldCommit()) {
+            fill(event, change);
+            event.commit();
+        }
+    }
+
+    private void fill(UndoEvent event, Object change) {
+        event.undoManager = name;
+        event.changeClass = change != null ? change.getClass() : null;
+        event.undoDepth = undoDepth;
+    }
+}
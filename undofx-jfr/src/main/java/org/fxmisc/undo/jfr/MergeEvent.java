@@ -0,0 +1,16 @@
+package org.fxmisc.undo.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.fxmisc.undo.Merge")
+@Label("Undo Merge")
+@Category({"UndoFX"})
+@Description("An attempt of an undo manager to merge a new change into the previous history entry")
+class MergeEvent extends UndoEvent {
+
+    @Label("Merged")
+    boolean merged;
+}
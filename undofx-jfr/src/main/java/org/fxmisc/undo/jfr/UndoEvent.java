@@ -0,0 +1,19 @@
+package org.fxmisc.undo.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Fields common to all undo events.
+ */
+abstract class UndoEvent extends Event {
+
+    @Label("Undo Manager")
+    String undoManager;
+
+    @Label("Change Class")
+    Class<?> changeClass;
+
+    @Label("Undo Depth")
+    int undoDepth;
+}
@@ -0,0 +1,122 @@
+package org.fxmisc.undo.jfr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JfrInstrumentationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<RecordedEvent> record(Runnable action) throws IOException {
+        try(Recording recording = new Recording()) {
+            for(String event: new String[] { "Apply", "Invert", "Merge", "Eviction" }) {
+                recording.enable("org.fxmisc.undo." + event).withoutThreshold();
+            }
+            recording.start();
+            action.run();
+            recording.stop();
+            Path file = folder.newFile().toPath();
+            recording.dump(file);
+            List<RecordedEvent> events = new ArrayList<>();
+            for(RecordedEvent event: RecordingFile.readAllEvents(file)) {
+                if(event.getEventType().getName().startsWith("org.fxmisc.undo.")) {
+                    events.add(event);
+                }
+            }
+            return events;
+        }
+    }
+
+    @Test
+    public void testEventsDescribeTheOperations() throws IOException {
+        JfrInstrumentation instrumentation = new JfrInstrumentation("editor");
+        List<RecordedEvent> events = record(() -> {
+            instrumentation.historyChanged(3);
+            Object merge = instrumentation.mergeStarting(1, 2);
+            instrumentation.mergeTimed(1, 2, true, 0, merge);
+            Object apply = instrumentation.applyStarting("change");
+            instrumentation.applyTimed("change", 0, apply);
+            instrumentation.changesEvicted(5);
+        });
+
+        assertEquals(3, events.size());
+        RecordedEvent merge = events.get(0);
+        assertEquals("org.fxmisc.undo.Merge", merge.getEventType().getName());
+        assertEquals("editor", merge.getString("undoManager"));
+        assertEquals(Integer.class.getName(), merge.getClass("changeClass").getName());
+        assertEquals(3, merge.getInt("undoDepth"));
+        assertTrue(merge.getBoolean("merged"));
+
+        RecordedEvent apply = events.get(1);
+        assertEquals("org.fxmisc.undo.Apply", apply.getEventType().getName());
+        assertEquals(String.class.getName(), apply.getClass("changeClass").getName());
+
+        RecordedEvent eviction = events.get(2);
+        assertEquals("org.fxmisc.undo.Eviction", eviction.getEventType().getName());
+        assertEquals(5, eviction.getInt("count"));
+    }
+
+    @Test
+    public void testInterleavedOperationsEndTheirOwnEvents() throws IOException {
+        JfrInstrumentation instrumentation = new JfrInstrumentation("editor");
+        List<RecordedEvent> events = record(() -> {
+            // e.g. an apply on an executor thread overlapping a merge on the owner thread
+            Object apply = instrumentation.applyStarting("change");
+            Object merge = instrumentation.mergeStarting(1, 2);
+            instrumentation.applyTimed("change", 0, apply);
+            instrumentation.mergeTimed(1, 2, false, 0, merge);
+        });
+
+        assertEquals(2, events.size());
+        RecordedEvent apply = events.get(0);
+        assertEquals("org.fxmisc.undo.Apply", apply.getEventType().getName());
+        assertEquals(String.class.getName(), apply.getClass("changeClass").getName());
+        RecordedEvent merge = events.get(1);
+        assertEquals("org.fxmisc.undo.Merge", merge.getEventType().getName());
+        assertFalse(merge.getBoolean("merged"));
+    }
+
+    @Test
+    public void testConcurrentOperationsAreAllRecorded() throws Exception {
+        JfrInstrumentation instrumentation = new JfrInstrumentation("editor");
+        int threads = 4;
+        int operations = 1000;
+        List<RecordedEvent> events = record(() -> {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            for(int t = 0; t < threads; ++t) {
+                executor.execute(() -> {
+                    for(int i = 0; i < operations; ++i) {
+                        Object apply = instrumentation.applyStarting(i);
+                        Object merge = instrumentation.mergeStarting(i, i);
+                        instrumentation.mergeTimed(i, i, true, 0, merge);
+                        instrumentation.applyTimed(i, 0, apply);
+                    }
+                });
+            }
+            executor.shutdown();
+            try {
+                assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+            } catch(InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+
+        assertEquals(2 * threads * operations, events.size());
+    }
+}
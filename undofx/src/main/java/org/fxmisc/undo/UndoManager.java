@@ -1,5 +1,8 @@
 package org.fxmisc.undo;
 
+import java.util.List;
+import java.util.function.Function;
+
 import javafx.beans.value.ObservableBooleanValue;
 
 import org.reactfx.value.Val;
@@ -7,7 +10,9 @@ import org.reactfx.value.Val;
 public interface UndoManager<C> {
 
     /**
-     * Represents a position in UndoManager's history.
+     * Represents a position in UndoManager's history. Two positions obtained from the
+     * same UndoManager are {@linkplain Object#equals(Object) equal} if they are valid
+     * and denote the same position.
      */
     interface UndoPosition {
         /**
@@ -42,6 +47,108 @@ public interface UndoManager<C> {
      */
     boolean redo();
 
+    /**
+     * Undoes all changes between {@code position} and the current position, so that
+     * {@code position} becomes the current position. The undone changes are combined,
+     * where possible, and applied at once.
+     * @return {@code true} if any changes were undone, {@code false} if {@code position}
+     * is not valid or does not precede the current position.
+     *
+     * <p>The default implementation calls {@link #undo()} until {@link #getCurrentPosition()}
+     * equals {@code position}, applying the changes one by one. If it runs out of changes to undo
+     * without reaching {@code position}, it redoes them all again; implementations should override it.</p>
+     */
+    default boolean undoTo(UndoPosition position) {
+        if(!position.isValid()) {
+            return false;
+        }
+        int undone = 0;
+        while(!position.equals(getCurrentPosition()) && undo()) {
+            undone += 1;
+        }
+        if(position.equals(getCurrentPosition())) {
+            return undone > 0;
+        }
+        for(int i = 0; i < undone; ++i) {
+            redo();
+        }
+        return false;
+    }
+
+    /**
+     * Redoes all changes between the current position and {@code position}, so that
+     * {@code position} becomes the current position. The redone changes are combined,
+     * where possible, and applied at once.
+     * @return {@code true} if any changes were redone, {@code false} if {@code position}
+     * is not valid or does not follow the current position.
+     *
+     * <p>The default implementation calls {@link #redo()} until {@link #getCurrentPosition()}
+     * equals {@code position}, applying the changes one by one. If it runs out of changes to redo
+     * without reaching {@code position}, it undoes them all again; implementations should override it.</p>
+     */
+    default boolean redoTo(UndoPosition position) {
+        if(!position.isValid()) {
+            return false;
+        }
+        int redone = 0;
+        while(!position.equals(getCurrentPosition()) && redo()) {
+            redone += 1;
+        }
+        if(position.equals(getCurrentPosition())) {
+            return redone > 0;
+        }
+        for(int i = 0; i < redone; ++i) {
+            undo();
+        }
+        return false;
+    }
+
+    /**
+     * Starts recording a compound edit. Changes observed until {@link #commit()} or
+     * {@link #rollback()} are only buffered: they are not added to the history and
+     * the properties of this UndoManager do not change. Undo and redo must not be
+     * performed while a transaction is in progress.
+     *
+     * <p>On commit, the buffered changes are merged where possible. If they do not merge
+     * into a single change, {@link #commit()} fails, unless this UndoManager records
+     * lists of changes, whose lists are concatenated. Use
+     * {@link #beginTransaction(Function)} when the changes may not merge.</p>
+     * @throws IllegalStateException if a transaction is already in progress
+     */
+    void beginTransaction();
+
+    /**
+     * Like {@link #beginTransaction()}, but if the buffered changes do not merge into
+     * a single change, {@code combiner} is called on commit with the changes left after
+     * merging, in the order they were observed, and returns the single change to record,
+     * e.g. a compound change holding them. Undoing the entry applies the inverse of
+     * the returned change.
+     * @throws IllegalStateException if a transaction is already in progress
+     */
+    void beginTransaction(Function<? super List<C>, ? extends C> combiner);
+
+    /**
+     * Ends the current transaction and adds the buffered changes to the history as a single
+     * entry, so that one {@link #undo()} reverts all of them. The added entry is not merged
+     * with the preceding or following changes. Nothing is added if the buffered changes
+     * cancel each other out.
+     * @throws IllegalStateException if no transaction is in progress, or if the transaction
+     * was started without a combiner and the buffered changes do not merge into a single
+     * change; in the latter case the transaction stays in progress, so that it can be rolled back
+     */
+    void commit();
+
+    /**
+     * Ends the current transaction, reverting the buffered changes. The history is not modified.
+     * @throws IllegalStateException if no transaction is in progress
+     */
+    void rollback();
+
+    /**
+     * Indicates whether a transaction started by {@link #beginTransaction()} is in progress.
+     */
+    boolean isInTransaction();
+
     /**
      * Indicates whether there is a change that can be undone.
      */
@@ -1,5 +1,6 @@
 package org.fxmisc.undo;
 
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
@@ -7,10 +8,15 @@ import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
+import org.fxmisc.undo.impl.ChangeCodec;
 import org.fxmisc.undo.impl.ChangeQueue;
 import org.fxmisc.undo.impl.FixedSizeChangeQueue;
+import org.fxmisc.undo.impl.MemoryBoundedChangeQueue;
 import org.fxmisc.undo.impl.MultiChangeUndoManagerImpl;
+import org.fxmisc.undo.impl.SpillingChangeQueue;
+import org.fxmisc.undo.impl.TimeBoundedChangeQueue;
 import org.fxmisc.undo.impl.UndoManagerImpl;
 import org.fxmisc.undo.impl.UnlimitedChangeQueue;
 import org.fxmisc.undo.impl.ZeroSizeChangeQueue;
@@ -237,6 +243,182 @@ public interface UndoManagerFactory {
         return new UndoManagerImpl<>(queue, invert, apply, merge, isIdentity, changeStream, preventMergeDelay);
     }
 
+    /**
+     * Creates an {@link UndoManager} with history bounded by the estimated memory retained by the stored changes.
+     * When the total estimated size of the stored changes exceeds {@code byteBudget}, the oldest changes are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createSingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param sizeEstimator estimates the number of bytes retained by a change
+     * @param byteBudget maximum total estimated size of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<C> memoryBoundedHistorySingleChangeUM(
+            EventStream<C> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            ToLongFunction<? super C> sizeEstimator,
+            long byteBudget) {
+        return memoryBoundedHistorySingleChangeUM(changeStream, invert, apply, (c1, c2) -> Optional.empty(), sizeEstimator, byteBudget);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the estimated memory retained by the stored changes.
+     * When the total estimated size of the stored changes exceeds {@code byteBudget}, the oldest changes are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createSingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param sizeEstimator estimates the number of bytes retained by a change
+     * @param byteBudget maximum total estimated size of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<C> memoryBoundedHistorySingleChangeUM(
+            EventStream<C> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            ToLongFunction<? super C> sizeEstimator,
+            long byteBudget) {
+        return memoryBoundedHistorySingleChangeUM(changeStream, invert, apply, merge, c -> false, Duration.ZERO, sizeEstimator, byteBudget);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the estimated memory retained by the stored changes.
+     * When the total estimated size of the stored changes exceeds {@code byteBudget}, the oldest changes are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createSingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param sizeEstimator estimates the number of bytes retained by a change
+     * @param byteBudget maximum total estimated size of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<C> memoryBoundedHistorySingleChangeUM(
+            EventStream<C> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Predicate<C> isIdentity,
+            Duration preventMergeDelay,
+            ToLongFunction<? super C> sizeEstimator,
+            long byteBudget) {
+        ChangeQueue<C> queue = new MemoryBoundedChangeQueue<C>(sizeEstimator, byteBudget);
+        return new UndoManagerImpl<>(queue, invert, apply, merge, isIdentity, changeStream, preventMergeDelay);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the age of the stored changes.
+     * Whenever a change is recorded, the changes recorded longer than {@code maxAge} ago are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createSingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param maxAge maximum age of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<C> timeBoundedHistorySingleChangeUM(
+            EventStream<C> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            Duration maxAge) {
+        return timeBoundedHistorySingleChangeUM(changeStream, invert, apply, (c1, c2) -> Optional.empty(), maxAge);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the age of the stored changes.
+     * Whenever a change is recorded, the changes recorded longer than {@code maxAge} ago are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createSingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param maxAge maximum age of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<C> timeBoundedHistorySingleChangeUM(
+            EventStream<C> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Duration maxAge) {
+        return timeBoundedHistorySingleChangeUM(changeStream, invert, apply, merge, c -> false, Duration.ZERO, maxAge);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the age of the stored changes.
+     * Whenever a change is recorded, the changes recorded longer than {@code maxAge} ago are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createSingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param maxAge maximum age of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<C> timeBoundedHistorySingleChangeUM(
+            EventStream<C> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Predicate<C> isIdentity,
+            Duration preventMergeDelay,
+            Duration maxAge) {
+        ChangeQueue<C> queue = new TimeBoundedChangeQueue<C>(maxAge);
+        return new UndoManagerImpl<>(queue, invert, apply, merge, isIdentity, changeStream, preventMergeDelay);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with unlimited history that keeps only the most recent
+     * {@code inMemoryCapacity} changes on the heap. Older changes are encoded by {@code codec}
+     * and spilled to temporary files in {@code directory}. The files are deleted when the
+     * returned UndoManager is {@linkplain UndoManager#close() closed}.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createSingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param codec used to encode the spilled changes
+     * @param inMemoryCapacity maximum number of changes kept on the heap
+     * @param directory directory in which the spilled changes are stored
+     */
+    public static <C> UndoManager<C> spillingHistorySingleChangeUM(
+            EventStream<C> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            ChangeCodec<C> codec,
+            int inMemoryCapacity,
+            Path directory) {
+        return spillingHistorySingleChangeUM(changeStream, invert, apply, merge, c -> false, Duration.ZERO,
+                codec, inMemoryCapacity, directory);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with unlimited history that keeps only the most recent
+     * {@code inMemoryCapacity} changes on the heap. Older changes are encoded by {@code codec}
+     * and spilled to temporary files in {@code directory}. The files are deleted when the
+     * returned UndoManager is {@linkplain UndoManager#close() closed}.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createSingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param codec used to encode the spilled changes
+     * @param inMemoryCapacity maximum number of changes kept on the heap
+     * @param directory directory in which the spilled changes are stored
+     */
+    public static <C> UndoManager<C> spillingHistorySingleChangeUM(
+            EventStream<C> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Predicate<C> isIdentity,
+            Duration preventMergeDelay,
+            ChangeCodec<C> codec,
+            int inMemoryCapacity,
+            Path directory) {
+        ChangeQueue<C> queue = new SpillingChangeQueue<>(codec, inMemoryCapacity, directory);
+        return new UndoManagerImpl<>(queue, invert, apply, merge, isIdentity, changeStream, preventMergeDelay);
+    }
+
     /**
      * Creates an {@link UndoManager} with no history: all changes emitted from {@code changeStream} will be
      * immediately forgotten. Therefore, the returned {@linkplain UndoManager} will never be able to undo/redo
@@ -472,6 +654,189 @@ public interface UndoManagerFactory {
         return new MultiChangeUndoManagerImpl<>(queue, invert, apply, merge, isIdentity, changeStream, preventMergeDelay);
     }
 
+    /**
+     * Creates an {@link UndoManager} with history bounded by the estimated memory retained by the stored changes.
+     * When the total estimated size of the stored changes exceeds {@code byteBudget}, the oldest changes are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param sizeEstimator estimates the number of bytes retained by a single change in a list of changes
+     * @param byteBudget maximum total estimated size of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<List<C>> memoryBoundedHistoryMultiChangeUM(
+            EventStream<List<C>> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<List<C>> apply,
+            ToLongFunction<? super C> sizeEstimator,
+            long byteBudget) {
+        return memoryBoundedHistoryMultiChangeUM(changeStream, invert, apply, (c1, c2) -> Optional.empty(), sizeEstimator, byteBudget);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the estimated memory retained by the stored changes.
+     * When the total estimated size of the stored changes exceeds {@code byteBudget}, the oldest changes are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param sizeEstimator estimates the number of bytes retained by a single change in a list of changes
+     * @param byteBudget maximum total estimated size of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<List<C>> memoryBoundedHistoryMultiChangeUM(
+            EventStream<List<C>> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<List<C>> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            ToLongFunction<? super C> sizeEstimator,
+            long byteBudget) {
+        return memoryBoundedHistoryMultiChangeUM(changeStream, invert, apply, merge, c -> false, Duration.ZERO, sizeEstimator, byteBudget);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the estimated memory retained by the stored changes.
+     * When the total estimated size of the stored changes exceeds {@code byteBudget}, the oldest changes are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param sizeEstimator estimates the number of bytes retained by a single change in a list of changes
+     * @param byteBudget maximum total estimated size of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<List<C>> memoryBoundedHistoryMultiChangeUM(
+            EventStream<List<C>> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<List<C>> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Predicate<C> isIdentity,
+            Duration preventMergeDelay,
+            ToLongFunction<? super C> sizeEstimator,
+            long byteBudget) {
+        ToLongFunction<List<C>> listSizeEstimator = list -> {
+            long bytes = 0;
+            for(C c: list) {
+                bytes += sizeEstimator.applyAsLong(c);
+            }
+            return bytes;
+        };
+        ChangeQueue<List<C>> queue = new MemoryBoundedChangeQueue<>(listSizeEstimator, byteBudget);
+        return new MultiChangeUndoManagerImpl<>(queue, invert, apply, merge, isIdentity, changeStream, preventMergeDelay);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the age of the stored changes.
+     * Whenever a change is recorded, the changes recorded longer than {@code maxAge} ago are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param maxAge maximum age of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<List<C>> timeBoundedHistoryMultiChangeUM(
+            EventStream<List<C>> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<List<C>> apply,
+            Duration maxAge) {
+        return timeBoundedHistoryMultiChangeUM(changeStream, invert, apply, (c1, c2) -> Optional.empty(), maxAge);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the age of the stored changes.
+     * Whenever a change is recorded, the changes recorded longer than {@code maxAge} ago are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param maxAge maximum age of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<List<C>> timeBoundedHistoryMultiChangeUM(
+            EventStream<List<C>> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<List<C>> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Duration maxAge) {
+        return timeBoundedHistoryMultiChangeUM(changeStream, invert, apply, merge, c -> false, Duration.ZERO, maxAge);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with history bounded by the age of the stored changes.
+     * Whenever a change is recorded, the changes recorded longer than {@code maxAge} ago are
+     * forgotten. The most recent change is always retained.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param maxAge maximum age of the changes the returned UndoManager can store
+     */
+    public static <C> UndoManager<List<C>> timeBoundedHistoryMultiChangeUM(
+            EventStream<List<C>> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<List<C>> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Predicate<C> isIdentity,
+            Duration preventMergeDelay,
+            Duration maxAge) {
+        ChangeQueue<List<C>> queue = new TimeBoundedChangeQueue<>(maxAge);
+        return new MultiChangeUndoManagerImpl<>(queue, invert, apply, merge, isIdentity, changeStream, preventMergeDelay);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with unlimited history that keeps only the most recent
+     * {@code inMemoryCapacity} changes on the heap. Older changes are encoded by {@code codec}, one change of a list at a time,
+     * and spilled to temporary files in {@code directory}. The files are deleted when the
+     * returned UndoManager is {@linkplain UndoManager#close() closed}.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param codec used to encode the spilled changes
+     * @param inMemoryCapacity maximum number of changes kept on the heap
+     * @param directory directory in which the spilled changes are stored
+     */
+    public static <C> UndoManager<List<C>> spillingHistoryMultiChangeUM(
+            EventStream<List<C>> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<List<C>> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            ChangeCodec<C> codec,
+            int inMemoryCapacity,
+            Path directory) {
+        return spillingHistoryMultiChangeUM(changeStream, invert, apply, merge, c -> false, Duration.ZERO,
+                codec, inMemoryCapacity, directory);
+    }
+
+    /**
+     * Creates an {@link UndoManager} with unlimited history that keeps only the most recent
+     * {@code inMemoryCapacity} changes on the heap. Older changes are encoded by {@code codec}, one change of a list at a time,
+     * and spilled to temporary files in {@code directory}. The files are deleted when the
+     * returned UndoManager is {@linkplain UndoManager#close() closed}.
+     *
+     * <p>For description of the remaining parameters, see
+     * {@link #createMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration)}.</p>
+     *
+     * @param codec used to encode the spilled changes
+     * @param inMemoryCapacity maximum number of changes kept on the heap
+     * @param directory directory in which the spilled changes are stored
+     */
+    public static <C> UndoManager<List<C>> spillingHistoryMultiChangeUM(
+            EventStream<List<C>> changeStream,
+            Function<? super C, ? extends C> invert,
+            Consumer<List<C>> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Predicate<C> isIdentity,
+            Duration preventMergeDelay,
+            ChangeCodec<C> codec,
+            int inMemoryCapacity,
+            Path directory) {
+        ChangeQueue<List<C>> queue = new SpillingChangeQueue<>(ChangeCodec.listOf(codec), inMemoryCapacity, directory);
+        return new MultiChangeUndoManagerImpl<>(queue, invert, apply, merge, isIdentity, changeStream, preventMergeDelay);
+    }
+
     /**
      * Creates an {@link UndoManager} with no history: all changes emitted from {@code changeStream} will be
      * immediately forgotten. Therefore, the returned {@linkplain UndoManager} will never be able to undo/redo
@@ -556,6 +921,75 @@ public interface UndoManagerFactory {
         };
     }
 
+    /**
+     * Creates a factory for {@link UndoManager}s with history bounded by the estimated memory retained by the
+     * stored changes. When the total estimated size of the stored changes exceeds {@code byteBudget}, the oldest
+     * changes are forgotten.
+     *
+     * @param sizeEstimator estimates the number of bytes retained by a change. For multi-change UndoManagers,
+     *                      it is applied to the individual changes in a list.
+     * @see #memoryBoundedHistorySingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration, ToLongFunction, long)
+     * @see #memoryBoundedHistoryMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration, ToLongFunction, long)
+     */
+    public static UndoManagerFactory memoryBoundedHistoryFactory(ToLongFunction<Object> sizeEstimator, long byteBudget) {
+        return new UndoManagerFactory() {
+            @Override
+            public <C> UndoManager<C> createSingleChangeUM(
+                    EventStream<C> changeStream,
+                    Function<? super C, ? extends C> invert,
+                    Consumer<C> apply,
+                    BiFunction<C, C, Optional<C>> merge,
+                    Predicate<C> isIdentity,
+                    Duration preventMergeDelay) {
+                return memoryBoundedHistorySingleChangeUM(changeStream, invert, apply, merge, isIdentity, preventMergeDelay, sizeEstimator, byteBudget);
+            }
+
+            @Override
+            public <C> UndoManager<List<C>> createMultiChangeUM(
+                    EventStream<List<C>> changeStream,
+                    Function<? super C, ? extends C> invert,
+                    Consumer<List<C>> apply,
+                    BiFunction<C, C, Optional<C>> merge,
+                    Predicate<C> isIdentity,
+                    Duration preventMergeDelay) {
+                return memoryBoundedHistoryMultiChangeUM(changeStream, invert, apply, merge, isIdentity, preventMergeDelay, sizeEstimator, byteBudget);
+            }
+        };
+    }
+
+    /**
+     * Creates a factory for {@link UndoManager}s with history bounded by the age of the stored changes.
+     * Whenever a change is recorded, the changes recorded longer than {@code maxAge} ago are forgotten.
+     *
+     * @see #timeBoundedHistorySingleChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration, Duration)
+     * @see #timeBoundedHistoryMultiChangeUM(EventStream, Function, Consumer, BiFunction, Predicate, Duration, Duration)
+     */
+    public static UndoManagerFactory timeBoundedHistoryFactory(Duration maxAge) {
+        return new UndoManagerFactory() {
+            @Override
+            public <C> UndoManager<C> createSingleChangeUM(
+                    EventStream<C> changeStream,
+                    Function<? super C, ? extends C> invert,
+                    Consumer<C> apply,
+                    BiFunction<C, C, Optional<C>> merge,
+                    Predicate<C> isIdentity,
+                    Duration preventMergeDelay) {
+                return timeBoundedHistorySingleChangeUM(changeStream, invert, apply, merge, isIdentity, preventMergeDelay, maxAge);
+            }
+
+            @Override
+            public <C> UndoManager<List<C>> createMultiChangeUM(
+                    EventStream<List<C>> changeStream,
+                    Function<? super C, ? extends C> invert,
+                    Consumer<List<C>> apply,
+                    BiFunction<C, C, Optional<C>> merge,
+                    Predicate<C> isIdentity,
+                    Duration preventMergeDelay) {
+                return timeBoundedHistoryMultiChangeUM(changeStream, invert, apply, merge, isIdentity, preventMergeDelay, maxAge);
+            }
+        };
+    }
+
     /**
      * Creates a factory for {@link UndoManager}s with no history.
      *
@@ -0,0 +1,102 @@
+package org.fxmisc.undo.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.reactfx.Guard;
+
+/**
+ * Undo or redo whose change is applied on another thread. It completes when the applied
+ * change is received back from the change stream on the thread that owns the undo manager.
+ *
+ * @param <C> the type of change
+ */
+class AsyncAction<C> {
+    final UndoManagerImpl<C> manager;
+    final ChangeQueue<C> queue;
+    final C change;
+    final boolean undo;
+    final Thread ownerThread = Thread.currentThread();
+    final Guard performing;
+    final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+    // the position the history has moved to, null until it has moved
+    QueuePosition movedTo = null;
+
+    AsyncAction(UndoManagerImpl<C> manager, ChangeQueue<C> queue, C change, boolean undo) {
+        this.manager = manager;
+        this.queue = queue;
+        this.change = change;
+        this.undo = undo;
+        this.performing = manager.suspendPerformingAction();
+    }
+
+    /**
+     * Applies the change on {@code executor}. Failures are reported on {@code owner}, including
+     * the failure to receive the change by the time {@code owner} runs a task submitted after
+     * {@code apply} returned.
+     */
+    void applyOn(Executor executor, Executor owner, Consumer<C> apply) {
+        try {
+            executor.execute(() -> {
+                try {
+                    apply.accept(change);
+                } catch(Throwable t) {
+                    owner.execute(() -> applyFailed(t));
+                    return;
+                }
+                owner.execute(() -> fail(new IllegalStateException("Expected change not received:\n"
+                        + change
+                        + "\nThe most likely cause is that the apply action did not reinsert the change into the event stream.")));
+            });
+        } catch(RuntimeException e) {
+            applyFailed(e);
+        }
+    }
+
+    // called when the expected change has been received
+    void changeReceived() {
+        complete();
+    }
+
+    void complete() {
+        finish();
+        future.complete(true);
+    }
+
+    void fail(Throwable failure) {
+        if(manager.isInProgress(this)) {
+            manager.discardExpectedChange();
+            finish();
+            future.completeExceptionally(failure);
+        }
+    }
+
+    // called when apply has thrown, i.e. the change has not been applied
+    void applyFailed(Throwable failure) {
+        if(manager.isInProgress(this)) {
+            revert();
+            fail(failure);
+        }
+    }
+
+    // moves the history back to where it was before the change was taken from it
+    void revert() {
+        if(movedTo != null && movedTo.equals(queue.getCurrentPosition())
+                && (undo ? queue.hasNext() : queue.hasPrev())) {
+            if(undo) {
+                queue.next();
+            } else {
+                queue.prev();
+            }
+            manager.invalidateProperties();
+        }
+    }
+
+    private void finish() {
+        manager.actionFinished(this);
+        performing.close();
+    }
+}
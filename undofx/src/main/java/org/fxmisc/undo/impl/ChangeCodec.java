@@ -0,0 +1,73 @@
+package org.fxmisc.undo.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes changes to and from {@link ByteBuffer}s. Used by {@link ChangeQueue}s
+ * that store changes outside of the Java heap and to save and restore history.
+ *
+ * @param <C> the type of change
+ */
+public interface ChangeCodec<C> {
+
+    /**
+     * Returns the exact number of bytes {@link #encode(Object, ByteBuffer)} writes for {@code change}.
+     */
+    int encodedSize(C change);
+
+    /**
+     * Writes {@code change} to {@code buffer}, starting at the buffer's current position.
+     * Exactly {@link #encodedSize(Object) encodedSize(change)} bytes have to be written.
+     */
+    void encode(C change, ByteBuffer buffer);
+
+    /**
+     * Reads a change from {@code buffer}. The buffer's remaining bytes are exactly
+     * the bytes previously written by {@link #encode(Object, ByteBuffer)}. The returned
+     * change must not refer to {@code buffer}, whose storage may be reused or released afterwards.
+     */
+    C decode(ByteBuffer buffer);
+
+    /**
+     * Returns a codec for lists of changes (as used by {@link MultiChangeUndoManagerImpl})
+     * that encodes the individual changes using {@code codec}.
+     */
+    static <C> ChangeCodec<List<C>> listOf(ChangeCodec<C> codec) {
+        return new ChangeCodec<List<C>>() {
+            @Override
+            public int encodedSize(List<C> list) {
+                int size = Integer.BYTES;
+                for(C c: list) {
+                    size += Integer.BYTES + codec.encodedSize(c);
+                }
+                return size;
+            }
+
+            @Override
+            public void encode(List<C> list, ByteBuffer buffer) {
+                buffer.putInt(list.size());
+                for(C c: list) {
+                    buffer.putInt(codec.encodedSize(c));
+                    codec.encode(c, buffer);
+                }
+            }
+
+            @Override
+            public List<C> decode(ByteBuffer buffer) {
+                int n = buffer.getInt();
+                List<C> list = new ArrayList<>(n);
+                int limit = buffer.limit();
+                for(int i = 0; i < n; ++i) {
+                    int end = buffer.getInt() + buffer.position();
+                    buffer.limit(end);
+                    list.add(codec.decode(buffer));
+                    buffer.limit(limit);
+                    buffer.position(end);
+                }
+                return list;
+            }
+        };
+    }
+}
@@ -1,5 +1,14 @@
 package org.fxmisc.undo.impl;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
 public interface ChangeQueue<C> {
 
     interface QueuePosition {
@@ -22,10 +31,178 @@ public interface ChangeQueue<C> {
     /** Returns the previous item and decreases the current position by 1. */
     C prev();
 
+    /**
+     * Returns the inverse of the previous item, as computed by {@code invert},
+     * and decreases the current position by 1. Implementations may cache the
+     * inverse, so {@code invert} has to be the same function on every call.
+     */
+    default C prevInverse(Function<? super C, ? extends C> invert) {
+        return invert.apply(prev());
+    }
+
     @SuppressWarnings({"unchecked"})
     void push(C... changes);
 
+    /**
+     * Pushes a single change. Equivalent to {@link #push(Object[])} with one argument,
+     * but implementations may override it to avoid allocating the varargs array.
+     */
+    @SuppressWarnings({"unchecked"})
+    default void push(C change) {
+        push((C[]) new Object[] { change });
+    }
+
+    /**
+     * Replaces the previous item with {@code change}, discarding the items ahead of the current
+     * position. Equivalent to {@link #prev()} followed by {@code push(change)}. Used to store
+     * the result of merging the previous item with a new change.
+     */
+    default void replacePrev(C change) {
+        prev();
+        push(change);
+    }
+
+    /**
+     * Removes the previous item, discarding the items ahead of the current position.
+     * Equivalent to {@link #prev()} followed by {@link #push(Object[]) push()}. Used when
+     * merging the previous item with a new change results in an identity change.
+     */
+    @SuppressWarnings({"unchecked"})
+    default void dropPrev() {
+        prev();
+        push();
+    }
+
     QueuePosition getCurrentPosition();
 
+    /**
+     * Returns the revision of the current position: a number that is the same for two positions
+     * of this queue if and only if the positions are {@linkplain Object#equals(Object) equal}.
+     * Unlike {@link #getCurrentPosition()}, it does not allocate. Revisions are never negative.
+     */
+    long getCurrentRevision();
+
+    /**
+     * Returns the number of steps from the current position to {@code position}, which has been
+     * obtained from this queue: negative if {@code position} is reached by calling {@link #prev()},
+     * positive if it is reached by calling {@link #next()}, or 0 if it is the current position,
+     * is no longer valid or cannot be reached either way. The current position is left unchanged.
+     * The default implementation walks back and then forward, comparing the positions on the way;
+     * implementations should override it.
+     */
+    default int distanceTo(QueuePosition position) {
+        if(!position.isValid()) {
+            return 0;
+        }
+
+        int steps = 0;
+        while(!getCurrentPosition().equals(position) && hasPrev()) {
+            prev();
+            steps -= 1;
+        }
+        boolean found = getCurrentPosition().equals(position);
+        for(int i = steps; i < 0; ++i) {
+            next();
+        }
+        if(found) {
+            return steps;
+        }
+
+        steps = 0;
+        while(!getCurrentPosition().equals(position) && hasNext()) {
+            next();
+            steps += 1;
+        }
+        found = getCurrentPosition().equals(position);
+        for(int i = steps; i > 0; --i) {
+            prev();
+        }
+        return found ? steps : 0;
+    }
+
+    /**
+     * Returns the number of items preceding the current position, i.e. how many times
+     * {@link #prev()} can be called. The default implementation counts them by moving
+     * to the beginning and back; implementations should override it.
+     */
+    default int prevCount() {
+        int count = 0;
+        while(hasPrev()) {
+            prev();
+            count += 1;
+        }
+        for(int i = 0; i < count; ++i) {
+            next();
+        }
+        return count;
+    }
+
+    /**
+     * Sets a listener to be notified of the number of items a bounded queue forgets in order to stay
+     * within its bounds, or {@code null} to remove the listener. Items forgotten by {@link #forgetHistory()}
+     * or discarded by {@link #push(Object[])} are not reported. The default implementation ignores the
+     * listener, which is correct for queues that never forget items on their own.
+     */
+    default void setEvictionListener(IntConsumer listener) {
+        // never evicts
+    }
+
     void forgetHistory();
+
+    /**
+     * Forgets all stored changes, including those ahead of the current position, and releases the
+     * storage they occupy. Has the same effect as moving past the last change and calling
+     * {@link #forgetHistory()}, so the revision counter is kept. Unlike {@link #close()}, this queue
+     * can still be used afterwards. The default implementation does exactly that.
+     */
+    default void clear() {
+        while(hasNext()) {
+            next();
+        }
+        forgetHistory();
+    }
+
+    /**
+     * Squashes runs of adjacent items that precede the current position by more than
+     * {@code keepRecent} items into single items, using {@code merge}. Two items are never
+     * merged if the position between them is a boundary according to {@code isBoundary}.
+     * The positions at the ends of a squashed run stay valid, the positions inside it become
+     * invalid. The default implementation does not compact anything.
+     *
+     * @return the number of items removed by squashing
+     */
+    default int compact(int keepRecent, BiFunction<C, C, Optional<C>> merge, Predicate<QueuePosition> isBoundary) {
+        return 0;
+    }
+
+    /**
+     * Writes the stored changes, their revisions, the current position and {@code mark}
+     * to {@code channel}, using {@code codec} to encode the changes. The written history
+     * can be restored by {@link #restore(ReadableByteChannel, ChangeCodec)} of any queue
+     * that supports it.
+     *
+     * @param mark a position obtained from this queue
+     * @throws UnsupportedOperationException if this queue does not support saving its history
+     */
+    default void save(WritableByteChannel channel, ChangeCodec<? super C> codec, QueuePosition mark) throws IOException {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support saving history");
+    }
+
+    /**
+     * Replaces the contents of this queue with the history read from {@code channel}, previously written by
+     * {@link #save(WritableByteChannel, ChangeCodec, QueuePosition)}. If reading fails, this queue is left unchanged.
+     *
+     * @return the restored mark
+     * @throws UnsupportedOperationException if this queue does not support restoring history
+     */
+    default QueuePosition restore(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support restoring history");
+    }
+
+    /**
+     * Discards the stored changes and releases the resources this queue holds outside the heap,
+     * such as files. Called when the undo manager that owns this queue is closed. This queue must
+     * not be used after it has been closed. The default implementation does nothing.
+     */
+    default void close() {}
 }
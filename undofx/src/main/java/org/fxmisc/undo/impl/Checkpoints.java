@@ -0,0 +1,159 @@
+package org.fxmisc.undo.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+
+/**
+ * Snapshots of the model, captured every {@code interval} entries of an undo manager's
+ * history, keyed by their position.
+ *
+ * <p>At most {@code maxSnapshots} snapshots are kept. When a capture exceeds the limit,
+ * the snapshot whose removal leaves the smallest gap relative to its age is discarded,
+ * so that the gaps between the kept snapshots grow roughly in proportion to their age:
+ * recent snapshots stay about {@code interval} entries apart, older ones are sparse.
+ * The oldest and the newest snapshot are always kept.</p>
+ *
+ * @param <C> the type of change
+ * @param <S> the type of snapshot
+ */
+final class Checkpoints<C, S> {
+
+    private static final class Snapshot<S> {
+        final long sequence; // number of captures before this one
+        final QueuePosition position;
+        // null until captured; completed asynchronously, hence the atomic reference
+        final AtomicReference<S> state = new AtomicReference<>();
+
+        Snapshot(long sequence, QueuePosition position) {
+            this.sequence = sequence;
+            this.position = position;
+        }
+    }
+
+    private final UndoManagerImpl<C> manager;
+    private final ChangeQueue<C> queue;
+    private final StateCheckpointer<S> checkpointer;
+    private final int interval;
+    private final int maxSnapshots;
+    // in the order they were captured, oldest first
+    private final List<Snapshot<S>> snapshots = new ArrayList<>();
+    private int entriesSinceCapture = 0;
+    private long captures = 0;
+
+    Checkpoints(UndoManagerImpl<C> manager, ChangeQueue<C> queue, StateCheckpointer<S> checkpointer,
+                int interval, int maxSnapshots) {
+        this.manager = manager;
+        this.queue = queue;
+        this.checkpointer = checkpointer;
+        this.interval = interval;
+        this.maxSnapshots = maxSnapshots;
+    }
+
+    void addPositionsTo(Set<QueuePosition> positions) {
+        for(Snapshot<S> snapshot: snapshots) {
+            positions.add(snapshot.position);
+        }
+    }
+
+    void entryAdded() {
+        if(++entriesSinceCapture >= interval) {
+            capture();
+            manager.preventMerge(); // keep the entry, and thus the snapshot, valid
+        }
+    }
+
+    /**
+     * Discards all snapshots, e.g. because the history has been replaced, and captures
+     * a snapshot of the current state.
+     */
+    void reset() {
+        snapshots.clear();
+        capture();
+    }
+
+    /**
+     * Discards the snapshots whose positions are no longer in the history,
+     * e.g. because they have been forgotten.
+     */
+    void prune() {
+        snapshots.removeIf(s -> !s.position.isValid());
+    }
+
+    void capture() {
+        prune();
+        Snapshot<S> snapshot = new Snapshot<>(captures++, queue.getCurrentPosition());
+        snapshots.add(snapshot);
+        if(snapshots.size() > maxSnapshots) {
+            thin();
+        }
+        checkpointer.capture().thenAccept(snapshot.state::set);
+        entriesSinceCapture = 0;
+    }
+
+    // discards the snapshot whose removal leaves the smallest gap relative to its age
+    private void thin() {
+        long newest = snapshots.get(snapshots.size() - 1).sequence;
+        int victim = -1;
+        double victimCost = Double.POSITIVE_INFINITY;
+        for(int i = snapshots.size() - 2; i > 0; --i) {
+            long gap = snapshots.get(i + 1).sequence - snapshots.get(i - 1).sequence;
+            double cost = (double) gap / (newest - snapshots.get(i).sequence);
+            if(cost < victimCost) {
+                victim = i;
+                victimCost = cost;
+            }
+        }
+        snapshots.remove(victim);
+    }
+
+    /**
+     * Moves the current position by {@code distance} steps by restoring the snapshot
+     * nearest to the target position and applying the remaining changes. Only used
+     * when the snapshot saves at least {@code interval} changes compared to applying
+     * all the changes between the current and the target position.
+     */
+    boolean jump(int distance) {
+        if(Math.abs(distance) <= interval) {
+            return false;
+        }
+
+        // find the captured snapshot nearest to the target
+        S state = null;
+        int offset = 0; // from the target to the snapshot
+        for(Snapshot<S> snapshot: snapshots) {
+            S s = snapshot.state.get();
+            int steps = s != null ? queue.distanceTo(snapshot.position) : 0;
+            int o = steps - distance;
+            if(steps != 0 && Math.abs(o) + interval <= Math.abs(distance)
+                    && (state == null || Math.abs(o) < Math.abs(offset))) {
+                state = s;
+                offset = o;
+            }
+        }
+        if(state == null) {
+            return false;
+        }
+
+        // move to the snapshot and collect the changes from there to the target
+        moveBy(distance + offset);
+        List<C> changes = new ArrayList<>(Math.abs(offset));
+        manager.collectChanges(-offset, changes);
+        S restored = state;
+        manager.applyChanges(() -> checkpointer.restore(restored), changes);
+        return true;
+    }
+
+    // moves the current position of the queue without applying any changes
+    private void moveBy(int steps) {
+        for(; steps < 0; ++steps) {
+            queue.prev();
+        }
+        for(; steps > 0; --steps) {
+            queue.next();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.fxmisc.undo.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javafx.application.Platform;
+
+import org.reactfx.EventStreamBase;
+import org.reactfx.Subscription;
+
+/**
+ * Event stream of changes that may be submitted from any thread, but are emitted on the thread
+ * that owns the undo manager. Use it as (part of) the change stream of an {@link UndoManagerImpl}
+ * whose model is also updated by background threads.
+ *
+ * <p>{@link #submit(Object)} is lock-free: changes are pushed onto a stack with a single
+ * compare-and-set. Only the submission that finds the stack empty schedules a drain on the owner
+ * executor, so a burst of changes costs a single task, instead of a {@code Platform.runLater}
+ * per change. The drain takes all the pending changes with one atomic swap and emits them in
+ * the order in which they were submitted.</p>
+ *
+ * <p>Changes submitted from a single thread are emitted in the order of submission. Changes
+ * submitted concurrently from different threads are emitted in the order in which their
+ * submissions took effect.</p>
+ *
+ * <p>Pass the buffer to {@link UndoManagerImpl#recordChangesFrom(ConcurrentChangeBuffer)}, so that
+ * the undo manager records all the changes of a drain before invalidating its properties once.
+ * The buffer may also be merged into the change stream of the undo manager, but then only the
+ * hand-off between threads is batched: the undo manager handles the drained changes one by one,
+ * invalidating its properties after each of them.</p>
+ *
+ * <p>Changes applied by the undo manager on undo and redo must still be emitted on the owner
+ * thread right away, so the model's own changes should go to the change stream of the undo
+ * manager rather than through this buffer. Call {@link #drain()} before undoing or redoing,
+ * if changes submitted by background threads should be recorded first.</p>
+ *
+ * @param <C> the type of change
+ */
+public class ConcurrentChangeBuffer<C> extends EventStreamBase<C> {
+
+    /**
+     * Notified on the owner thread before and after the changes of a drain are emitted.
+     */
+    interface DrainListener {
+        void drainStarted();
+        void drainFinished();
+    }
+
+    private static final class Node<C> {
+        final C change;
+        Node<C> next;
+
+        Node(C change) {
+            this.change = change;
+        }
+    }
+
+    private final Executor owner;
+
+    // pending changes, most recently submitted first
+    private final AtomicReference<Node<C>> pending = new AtomicReference<>();
+
+    // only accessed on the owner thread
+    private final List<DrainListener> drainListeners = new ArrayList<>();
+
+    /**
+     * Creates a buffer that emits changes on the JavaFX application thread.
+     */
+    public ConcurrentChangeBuffer() {
+        this(Platform::runLater);
+    }
+
+    /**
+     * @param owner executes the drain on the thread that owns the undo manager
+     */
+    public ConcurrentChangeBuffer(Executor owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Submits a change to be emitted on the owner thread. May be called from any thread.
+     */
+    public void submit(C change) {
+        Node<C> node = new Node<>(change);
+        Node<C> head;
+        do {
+            head = pending.get();
+            node.next = head;
+        } while(!pending.compareAndSet(head, node));
+
+        if(head == null) {
+            owner.execute(this::drain);
+        }
+    }
+
+    /**
+     * Emits all pending changes. Must be called on the owner thread.
+     */
+    public void drain() {
+        Node<C> head = pending.getAndSet(null);
+
+        // reverse the stack into the order of submission
+        Node<C> first = null;
+        while(head != null) {
+            Node<C> next = head.next;
+            head.next = first;
+            first = head;
+            head = next;
+        }
+
+        if(first == null) {
+            return;
+        }
+
+        for(DrainListener listener: drainListeners) {
+            listener.drainStarted();
+        }
+        try {
+            for(Node<C> node = first; node != null; node = node.next) {
+                emit(node.change);
+            }
+        } finally {
+            for(DrainListener listener: drainListeners) {
+                listener.drainFinished();
+            }
+        }
+    }
+
+    /**
+     * Returns whether there are changes that have been submitted, but not emitted yet.
+     */
+    public boolean hasPending() {
+        return pending.get() != null;
+    }
+
+    // must be called on the owner thread
+    Subscription addDrainListener(DrainListener listener) {
+        drainListeners.add(listener);
+        return () -> drainListeners.remove(listener);
+    }
+
+    @Override
+    protected Subscription observeInputs() {
+        return Subscription.EMPTY;
+    }
+}
@@ -1,168 +1,80 @@
 package org.fxmisc.undo.impl;
 
+import java.lang.ref.SoftReference;
 import java.util.NoSuchElementException;
+import java.util.function.Function;
 
-public class FixedSizeChangeQueue<C> implements ChangeQueue<C> {
+public class FixedSizeChangeQueue<C> extends RingBufferChangeQueue<C> {
 
-    private class QueuePositionImpl implements QueuePosition {
-        private final int arrayPos;
-        private final long rev;
-
-        QueuePositionImpl(int arrayPos, long rev) {
-            this.arrayPos = arrayPos;
-            this.rev = rev;
-        }
-
-        @Override
-        public boolean isValid() {
-            int pos = relativize(arrayPos);
-            if(pos <= size) {
-                return rev == fetchRevisionForPosition(pos)
-                        // if the queue is full, then position 0 can also mean the last position ( = capacity)
-                        || pos == 0 && size == capacity && rev == fetchRevisionForPosition(capacity);
-            } else {
-                return false;
-            }
-        }
-
-        @Override
-        public boolean equals(Object other) {
-            if(other instanceof FixedSizeChangeQueue.QueuePositionImpl) {
-                @SuppressWarnings("unchecked")
-                QueuePositionImpl otherPos = (QueuePositionImpl) other;
-                return getQueue() == otherPos.getQueue() && rev == otherPos.rev;
-            } else {
-                return false;
-            }
-        }
-
-        private FixedSizeChangeQueue<C> getQueue() {
-            return FixedSizeChangeQueue.this;
-        }
-    }
-
-    private final RevisionedChange<C>[] changes;
     private final int capacity;
-    private int start = 0;
-    private int size = 0;
-
-    // current position is always from the interval [0, size],
-    // i.e. not offset by start
-    private int currentPosition = 0;
 
-    private long revision = 0;
-    private long zeroPositionRevision = revision;
+    // soft references to the inverses of the changes, computed by prevInverse;
+    // allocated once the first change is undone
+    private Object[] inverses = null;
 
-    @SuppressWarnings("unchecked")
     public FixedSizeChangeQueue(int capacity) {
         if(capacity <= 0) {
             throw new IllegalArgumentException("capacity must be positive");
         }
 
         this.capacity = capacity;
-        this.changes = new RevisionedChange[capacity];
-    }
-
-    @Override
-    public boolean hasNext() {
-        return currentPosition < size;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The inverse is cached for as long as the change is stored in this queue,
+     * unless the garbage collector reclaims it under memory pressure.</p>
+     */
     @Override
-    public boolean hasPrev() {
-        return currentPosition > 0;
-    }
-
-    @Override
-    public C peekNext() {
-        if(currentPosition < size) {
-            return fetch(currentPosition).getChange();
-        } else {
+    public C prevInverse(Function<? super C, ? extends C> invert) {
+        int position = prevCount() - 1;
+        if(position < 0) {
             throw new NoSuchElementException();
         }
-    }
-
-    @Override
-    public C next() {
-        C c = peekNext();
-        currentPosition += 1;
-        return c;
-    }
+        if(inverses == null) {
+            inverses = new Object[arrayLength()];
+        }
 
-    @Override
-    public C peekPrev() {
-        if(currentPosition > 0) {
-            return fetch(currentPosition - 1).getChange();
-        } else {
-            throw new NoSuchElementException();
+        int i = arrayIndex(position);
+        @SuppressWarnings("unchecked")
+        SoftReference<C> ref = (SoftReference<C>) inverses[i];
+        C inverse = ref != null ? ref.get() : null;
+        if(inverse == null) {
+            inverse = invert.apply(fetch(position));
+            inverses[i] = new SoftReference<>(inverse);
         }
+        prev();
+        return inverse;
     }
 
+    // the arrays never exceed the capacity, so a change pushed into a full queue replaces the oldest one
     @Override
-    public C prev() {
-        C c = peekPrev();
-        currentPosition -= 1;
-        return c;
+    int evictionCount() {
+        return 0;
     }
 
     @Override
-    public void forgetHistory() {
-        zeroPositionRevision = fetchRevisionForPosition(currentPosition);
-        start = arrayIndex(currentPosition);
-        size -= currentPosition;
-        currentPosition = 0;
+    int maxLength() {
+        return capacity;
     }
 
     @Override
-    @SafeVarargs
-    public final void push(C... changes) {
-        RevisionedChange<C> lastOverwrittenChange = null;
-        for(C c: changes) {
-            RevisionedChange<C> revC = new RevisionedChange<>(c, ++revision);
-            lastOverwrittenChange = put(currentPosition++, revC);
-        }
-
-        if(currentPosition > capacity) {
-            start = arrayIndex(currentPosition);
-            currentPosition = capacity;
-            size = capacity;
-            zeroPositionRevision = lastOverwrittenChange.getRevision();
-        } else {
-            size = currentPosition;
+    void releasing(int position, int count) {
+        if(inverses != null) {
+            clear(inverses, position, count);
         }
     }
 
     @Override
-    public QueuePosition getCurrentPosition() {
-        long rev = fetchRevisionForPosition(currentPosition);
-        return new QueuePositionImpl(arrayIndex(currentPosition), rev);
-    }
-
-    private long fetchRevisionForPosition(int position) {
-        if(position == 0) {
-            return zeroPositionRevision;
-        } else {
-            return fetch(position - 1).getRevision();
+    void resizing(int newLength) {
+        if(inverses != null) {
+            inverses = resized(inverses, newLength);
         }
     }
 
-    private RevisionedChange<C> fetch(int position) {
-        return changes[arrayIndex(position)];
-    }
-
-    private RevisionedChange<C> put(int position, RevisionedChange<C> c) {
-        RevisionedChange<C> old = changes[arrayIndex(position)];
-        changes[arrayIndex(position)] = c;
-        return old;
-    }
-
-    // returns a number from [0..capacity-1]
-    private int arrayIndex(int queuePosition) {
-        return (start + queuePosition) % capacity;
-    }
-
-    // inverse of arrayPos
-    private int relativize(int arrayPos) {
-        return (arrayPos - start + capacity) % capacity;
+    @Override
+    void rebuilt(int length) {
+        inverses = null;
     }
 }
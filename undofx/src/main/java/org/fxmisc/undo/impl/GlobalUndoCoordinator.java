@@ -0,0 +1,292 @@
+package org.fxmisc.undo.impl;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Undoes and redoes the entries of several undo managers, e.g. one per open document, in the
+ * global order in which they were recorded, as in "undo the last action anywhere".
+ *
+ * <p>The coordinator does not store any changes. Its history is an index of global steps kept in
+ * primitive arrays: for each step, the registered manager that recorded the entry and the revisions
+ * of that manager's history before and after the entry. {@link #undo()} undoes the entry of the last
+ * step in its manager, and {@link #redo()} redoes the entry of the next step, so each step costs O(1).</p>
+ *
+ * <p>The managers may still be used on their own. A step whose manager has since moved away from
+ * the step's entry, e.g. because the entry was undone in that manager or forgotten, is skipped.
+ * The coordinator keeps at most {@code maxSteps} steps and forgets the oldest ones beyond that,
+ * which also bounds the number of steps a single undo or redo may skip.
+ * Recording an entry in any registered manager discards the steps ahead of the current global step,
+ * and prevents the manager that recorded the previous entry from merging its next change into it,
+ * so that the entries of different managers are never interleaved within one step.</p>
+ *
+ * <p>Like the undo managers, the coordinator must only be used on their owner thread.</p>
+ */
+public class GlobalUndoCoordinator {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The number of steps kept by a coordinator created with the default constructor. */
+    public static final int DEFAULT_MAX_STEPS = 10_000;
+
+    // queue revisions are never negative
+    private static final long UNKNOWN_REVISION = -1;
+
+    private final HistoryListener listener = new HistoryListener() {
+        @Override
+        public void entryPushed(UndoManagerImpl<?> manager, long prevRevision, long revision) {
+            int m = indexOf(manager);
+            if(lastRecorder != -1 && lastRecorder != m) {
+                managers.get(lastRecorder).preventMerge();
+            }
+            lastRecorder = m;
+            append(m, prevRevision, revision);
+        }
+
+        @Override
+        public void entryReplaced(UndoManagerImpl<?> manager, long oldRevision, long revision) {
+            int m = indexOf(manager);
+            if(isLastStep(m, oldRevision)) {
+                size = cursor;
+                revisions[cursor - 1] = revision;
+            } else {
+                // merged into an entry that is not the last step; record it as a new step,
+                // which can be undone, but not redone, since the revision before it is unknown
+                append(m, UNKNOWN_REVISION, revision);
+                lastRecorder = m;
+            }
+        }
+
+        @Override
+        public void entryDropped(UndoManagerImpl<?> manager, long oldRevision) {
+            if(isLastStep(indexOf(manager), oldRevision)) {
+                cursor -= 1;
+            }
+            size = cursor;
+        }
+
+        @Override
+        public void historyReplaced(UndoManagerImpl<?> manager) {
+            int m = indexOf(manager);
+            removeSteps(m);
+            if(lastRecorder == m) {
+                lastRecorder = -1;
+            }
+        }
+    };
+
+    // registered managers by index
+    private final List<UndoManagerImpl<?>> managers = new ArrayList<>();
+    private final Map<UndoManagerImpl<?>, Integer> indices = new IdentityHashMap<>();
+
+    // global steps: the index of the manager, and the revisions of its history before and after the entry
+    private int[] stepManagers = new int[INITIAL_CAPACITY];
+    private long[] prevRevisions = new long[INITIAL_CAPACITY];
+    private long[] revisions = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // number of steps preceding the current global position
+    private int cursor = 0;
+
+    // the manager that recorded the last entry, or -1
+    private int lastRecorder = -1;
+
+    private final int maxSteps;
+
+    public GlobalUndoCoordinator() {
+        this(DEFAULT_MAX_STEPS);
+    }
+
+    /**
+     * @param maxSteps the number of global steps to keep; when a step is recorded beyond that,
+     * the oldest quarter of the steps is forgotten
+     */
+    public GlobalUndoCoordinator(int maxSteps) {
+        if(maxSteps < 1) {
+            throw new IllegalArgumentException("maxSteps must be positive: " + maxSteps);
+        }
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Starts tracking the entries recorded by {@code manager}.
+     *
+     * @throws IllegalStateException if the manager is already registered with a coordinator
+     */
+    public void register(UndoManagerImpl<?> manager) {
+        if(manager.getHistoryListener() != null) {
+            throw new IllegalStateException("The UndoManager is already registered with a coordinator");
+        }
+        manager.setHistoryListener(listener);
+        indices.put(manager, managers.size());
+        managers.add(manager);
+    }
+
+    /**
+     * Stops tracking {@code manager} and removes its steps.
+     * Call this before discarding the manager, since the coordinator keeps a reference to it.
+     */
+    public void unregister(UndoManagerImpl<?> manager) {
+        Integer m = indices.remove(manager);
+        if(m == null) {
+            return;
+        }
+        manager.setHistoryListener(null);
+        removeSteps(m);
+        if(lastRecorder == m) {
+            lastRecorder = -1;
+        }
+
+        // move the last manager to the freed index
+        int last = managers.size() - 1;
+        UndoManagerImpl<?> moved = managers.remove(last);
+        if(m != last) {
+            managers.set(m, moved);
+            indices.put(moved, m);
+            for(int i = 0; i < size; ++i) {
+                if(stepManagers[i] == last) {
+                    stepManagers[i] = m;
+                }
+            }
+            if(lastRecorder == last) {
+                lastRecorder = m;
+            }
+        }
+    }
+
+    /**
+     * Undoes the entry of the last global step whose manager is still right after that entry.
+     * The global position moves past that step only if the manager has moved past the entry,
+     * so if the undo is rejected, e.g. during a transaction, the step is still the next one to undo.
+     *
+     * @return the manager that undid an entry, or {@code null} if there was nothing to undo
+     */
+    public UndoManagerImpl<?> undo() {
+        while(cursor > 0) {
+            int i = cursor - 1;
+            UndoManagerImpl<?> manager = managers.get(stepManagers[i]);
+            if(manager.isUndoAvailable() && manager.getCurrentRevision() == revisions[i]) {
+                try {
+                    manager.undo();
+                } finally {
+                    // follow the manager, which may have moved even if the undo failed
+                    if(manager.getCurrentRevision() != revisions[i]) {
+                        cursor = i;
+                    }
+                }
+                return manager;
+            }
+            // skip the stale step
+            cursor = i;
+        }
+        return null;
+    }
+
+    /**
+     * Redoes the entry of the next global step whose manager is still right before that entry.
+     * The global position moves past that step only if the manager has moved past the entry,
+     * so if the redo is rejected, e.g. during a transaction, the step is still the next one to redo.
+     *
+     * @return the manager that redid an entry, or {@code null} if there was nothing to redo
+     */
+    public UndoManagerImpl<?> redo() {
+        while(cursor < size) {
+            int i = cursor;
+            UndoManagerImpl<?> manager = managers.get(stepManagers[i]);
+            if(manager.isRedoAvailable() && manager.getCurrentRevision() == prevRevisions[i]) {
+                try {
+                    manager.redo();
+                } finally {
+                    // follow the manager, which may have moved even if the redo failed
+                    if(manager.getCurrentRevision() != prevRevisions[i]) {
+                        cursor = i + 1;
+                    }
+                }
+                return manager;
+            }
+            // skip the stale step
+            cursor = i + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Forgets the global steps preceding the current global position. The entries remain
+     * in the history of their managers.
+     */
+    public void forgetHistory() {
+        forgetOldest(cursor);
+    }
+
+    /**
+     * Returns the number of global steps, including the steps ahead of the current
+     * global position and the steps that would be skipped, but not the steps of unregistered managers.
+     */
+    public int getStepCount() {
+        return size;
+    }
+
+    private int indexOf(UndoManagerImpl<?> manager) {
+        return indices.get(manager);
+    }
+
+    private boolean isLastStep(int m, long revision) {
+        return cursor > 0 && stepManagers[cursor - 1] == m && revisions[cursor - 1] == revision;
+    }
+
+    // removes the steps of manager m, keeping the order of the remaining steps
+    private void removeSteps(int m) {
+        int kept = 0;
+        int keptBeforeCursor = 0;
+        for(int i = 0; i < size; ++i) {
+            if(stepManagers[i] != m) {
+                stepManagers[kept] = stepManagers[i];
+                prevRevisions[kept] = prevRevisions[i];
+                revisions[kept] = revisions[i];
+                kept += 1;
+                if(i < cursor) {
+                    keptBeforeCursor += 1;
+                }
+            }
+        }
+        size = kept;
+        cursor = keptBeforeCursor;
+    }
+
+    // forgets the given number of steps preceding the current position
+    private void forgetOldest(int count) {
+        System.arraycopy(stepManagers, count, stepManagers, 0, size - count);
+        System.arraycopy(prevRevisions, count, prevRevisions, 0, size - count);
+        System.arraycopy(revisions, count, revisions, 0, size - count);
+        size -= count;
+        cursor -= count;
+    }
+
+    // discards the steps ahead of the current position and appends a step
+    private void append(int m, long prevRevision, long revision) {
+        size = cursor;
+        if(size == maxSteps) {
+            // forget a quarter at once, so that the copying is amortized over many steps
+            forgetOldest(Math.max(1, maxSteps / 4));
+        }
+        if(size == stepManagers.length) {
+            int newLength = (int) Math.min((long) stepManagers.length * 2, maxSteps);
+            int[] newStepManagers = new int[newLength];
+            long[] newPrevRevisions = new long[newLength];
+            long[] newRevisions = new long[newLength];
+            System.arraycopy(stepManagers, 0, newStepManagers, 0, size);
+            System.arraycopy(prevRevisions, 0, newPrevRevisions, 0, size);
+            System.arraycopy(revisions, 0, newRevisions, 0, size);
+            stepManagers = newStepManagers;
+            prevRevisions = newPrevRevisions;
+            revisions = newRevisions;
+        }
+        stepManagers[size] = m;
+        prevRevisions[size] = prevRevision;
+        revisions[size] = revision;
+        size += 1;
+        cursor = size;
+    }
+}
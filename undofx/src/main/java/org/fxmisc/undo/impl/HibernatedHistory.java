@@ -0,0 +1,66 @@
+package org.fxmisc.undo.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+
+/**
+ * History of an undo manager moved to a file by {@link UndoManagerImpl#hibernate(Path, ChangeCodec)}.
+ * Exists only while the undo manager is hibernated.
+ *
+ * @param <C> the type of change
+ */
+final class HibernatedHistory<C> {
+
+    /**
+     * Writes the history of {@code queue}, with {@code mark}, to {@code file} and clears the queue,
+     * which keeps its revision counter, so that it releases its storage. If writing fails, the file
+     * is deleted and the queue is left unchanged.
+     */
+    static <C> HibernatedHistory<C> hibernate(ChangeQueue<C> queue, QueuePosition mark,
+                                              Path file, ChangeCodec<C> codec) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            queue.save(channel, codec, mark);
+        } catch(IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        // positions are restored by rehydrate()
+        queue.clear();
+
+        return new HibernatedHistory<>(file, codec);
+    }
+
+    private final Path file;
+    private final ChangeCodec<C> codec;
+
+    private HibernatedHistory(Path file, ChangeCodec<C> codec) {
+        this.file = file;
+        this.codec = codec;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Restores the history into {@code queue}. If reading fails, the queue is left unchanged.
+     *
+     * @return the restored mark
+     */
+    QueuePosition restore(ChangeQueue<C> queue) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return queue.restore(channel, codec);
+        }
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+}
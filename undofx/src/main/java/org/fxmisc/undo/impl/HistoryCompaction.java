@@ -0,0 +1,73 @@
+package org.fxmisc.undo.impl;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.reactfx.EventStream;
+import org.reactfx.Subscription;
+
+/**
+ * Compacts the history of an undo manager, keeping the positions retained by its callers,
+ * and runs the compaction when the history has been idle.
+ *
+ * @param <C> the type of change
+ */
+final class HistoryCompaction<C> {
+
+    private final ChangeQueue<C> queue;
+
+    // number of times each position has been retained and not yet released
+    private final Map<QueuePosition, Integer> retainedPositions = new HashMap<>();
+
+    private Subscription idleCompaction = Subscription.EMPTY;
+
+    HistoryCompaction(ChangeQueue<C> queue) {
+        this.queue = queue;
+    }
+
+    void retain(QueuePosition pos) {
+        retainedPositions.merge(pos, 1, Integer::sum);
+    }
+
+    void release(QueuePosition pos) {
+        retainedPositions.computeIfPresent(pos, (p, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Forgets all retained positions, e.g. because the history has been replaced.
+     */
+    void clearRetainedPositions() {
+        retainedPositions.clear();
+    }
+
+    /**
+     * Compacts the queue, never merging entries across {@code boundaries} or a retained position.
+     *
+     * @return the number of entries removed from the history
+     */
+    int compact(int keepRecent, BiFunction<C, C, Optional<C>> merge, Set<QueuePosition> boundaries) {
+        // positions no longer in the history cannot become valid again
+        retainedPositions.keySet().removeIf(pos -> !pos.isValid());
+        boundaries.addAll(retainedPositions.keySet());
+        return queue.compact(keepRecent, merge, boundaries::contains);
+    }
+
+    /**
+     * Runs {@code compaction} whenever {@code changes} have not emitted for {@code idleTime}.
+     * Replaces any previously enabled idle compaction.
+     */
+    void enableIdleCompaction(EventStream<?> changes, Duration idleTime, Runnable compaction) {
+        idleCompaction.unsubscribe();
+        idleCompaction = changes.successionEnds(idleTime).subscribe(ignore -> compaction.run());
+    }
+
+    void disableIdleCompaction() {
+        idleCompaction.unsubscribe();
+        idleCompaction = Subscription.EMPTY;
+    }
+}
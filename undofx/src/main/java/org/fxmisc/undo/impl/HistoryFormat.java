@@ -0,0 +1,323 @@
+package org.fxmisc.undo.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Binary format in which {@link ChangeQueue}s save their history. The format is shared by all
+ * queue implementations, so that history saved from one kind of queue can be restored into another.
+ *
+ * <p>The history starts with a header: magic number, format version, followed by the fields of
+ * {@link Header} encoded as variable-length integers. The header is followed by {@link Header#size}
+ * entries, each consisting of the revision (as a difference from the previous revision), the length
+ * of the encoded change and the change as encoded by a {@link ChangeCodec}. A queue may append
+ * further data after the entries, which the other queues ignore; {@link UndoTreeChangeQueue}
+ * appends the branches that are not on its active path.</p>
+ *
+ * <p>Changes are encoded directly into, and decoded directly from, a reusable direct buffer,
+ * so no intermediate byte array is allocated per change.</p>
+ */
+final class HistoryFormat {
+
+    private static final int MAGIC = 0x55465848; // "UFXH"
+    private static final byte VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_VARLONG_SIZE = 10;
+
+    private HistoryFormat() {}
+
+    /**
+     * Describes the state of a queue, apart from the stored changes.
+     */
+    static final class Header {
+        /** Number of changes forgotten before the first stored change. */
+        final int forgottenCount;
+        /** Number of stored changes. */
+        final int size;
+        /** Current position, from the interval [0, size]. */
+        final int currentPosition;
+        /** The last revision assigned by the queue. */
+        final long revision;
+        /** Revision of the position preceding the first stored change. */
+        final long zeroPositionRevision;
+        /** All-time position of the mark (i.e. including the forgotten changes). */
+        final int markPosition;
+        /** Revision of the mark. */
+        final long markRevision;
+
+        Header(int forgottenCount, int size, int currentPosition, long revision,
+                long zeroPositionRevision, int markPosition, long markRevision) {
+            this.forgottenCount = forgottenCount;
+            this.size = size;
+            this.currentPosition = currentPosition;
+            this.revision = revision;
+            this.zeroPositionRevision = zeroPositionRevision;
+            this.markPosition = markPosition;
+            this.markRevision = markRevision;
+        }
+    }
+
+    static final class Writer<C> {
+        private final WritableByteChannel channel;
+        private final ChangeCodec<? super C> codec;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long lastRevision;
+
+        Writer(WritableByteChannel channel, ChangeCodec<? super C> codec) {
+            this.channel = channel;
+            this.codec = codec;
+        }
+
+        void writeHeader(Header header) throws IOException {
+            buffer.putInt(MAGIC);
+            buffer.put(VERSION);
+            putVarLong(header.forgottenCount);
+            putVarLong(header.size);
+            putVarLong(header.currentPosition);
+            putVarLong(header.revision);
+            putVarLong(header.zeroPositionRevision);
+            putVarLong(header.markPosition);
+            putVarLong(header.markRevision);
+            lastRevision = header.zeroPositionRevision;
+        }
+
+        void writeChange(C change, long revision) throws IOException {
+            int length = codec.encodedSize(change);
+            if(buffer.remaining() < 2 * MAX_VARLONG_SIZE) {
+                flush();
+            }
+            putVarLong(revision - lastRevision);
+            putVarLong(length);
+            lastRevision = revision;
+
+            if(length <= buffer.remaining()) {
+                encode(change, buffer, length);
+            } else if(length <= buffer.capacity()) {
+                flush();
+                encode(change, buffer, length);
+            } else {
+                // change too large for the buffer, encode it separately
+                flush();
+                ByteBuffer large = ByteBuffer.allocateDirect(length);
+                encode(change, large, length);
+                large.flip();
+                writeFully(large);
+            }
+        }
+
+        /**
+         * Writes a change that has already been encoded by the codec.
+         */
+        void writeEncodedChange(ByteBuffer encoded, long revision) throws IOException {
+            int length = encoded.remaining();
+            if(buffer.remaining() < 2 * MAX_VARLONG_SIZE + length) {
+                flush();
+            }
+            putVarLong(revision - lastRevision);
+            putVarLong(length);
+            lastRevision = revision;
+
+            if(length <= buffer.remaining()) {
+                buffer.put(encoded);
+            } else {
+                flush();
+                writeFully(encoded);
+            }
+        }
+
+        void writeVarLong(long value) throws IOException {
+            if(buffer.remaining() < MAX_VARLONG_SIZE) {
+                flush();
+            }
+            putVarLong(value);
+        }
+
+        void finish() throws IOException {
+            flush();
+        }
+
+        private void encode(C change, ByteBuffer out, int length) {
+            int end = out.position() + length;
+            int limit = out.limit();
+            out.limit(end);
+            codec.encode(change, out);
+            if(out.position() != end) {
+                throw new IllegalStateException("Codec wrote " + (length - out.remaining())
+                        + " bytes, but announced " + length + " bytes for change " + change);
+            }
+            out.limit(limit);
+        }
+
+        private void putVarLong(long value) {
+            while((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer buf) throws IOException {
+            while(buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+    }
+
+    static final class Reader<C> {
+        private final ReadableByteChannel channel;
+        private final ChangeCodec<? extends C> codec;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private Header header;
+        private long lastRevision;
+
+        Reader(ReadableByteChannel channel, ChangeCodec<? extends C> codec) {
+            this.channel = channel;
+            this.codec = codec;
+            buffer.flip(); // nothing to read yet
+        }
+
+        Header readHeader() throws IOException {
+            require(Integer.BYTES + 1);
+            if(buffer.getInt() != MAGIC) {
+                throw new StreamCorruptedException("Not an undo history");
+            }
+            byte version = buffer.get();
+            if(version != VERSION) {
+                throw new StreamCorruptedException("Unsupported undo history version: " + version);
+            }
+            Header header = new Header(
+                    toInt(getVarLong()),
+                    toInt(getVarLong()),
+                    toInt(getVarLong()),
+                    getVarLong(),
+                    getVarLong(),
+                    toInt(getVarLong()),
+                    getVarLong());
+            if(header.currentPosition > header.size) {
+                throw new StreamCorruptedException("Current position " + header.currentPosition
+                        + " exceeds history size " + header.size);
+            }
+            this.header = header;
+            lastRevision = header.zeroPositionRevision;
+            return header;
+        }
+
+        /**
+         * Reads the next change. Its revision is available from {@link #lastRevision()} afterwards.
+         */
+        C readChange() throws IOException {
+            int length = readEntryPrefix();
+            int end = buffer.position() + length;
+            int limit = buffer.limit();
+            buffer.limit(end);
+            C change = codec.decode(buffer);
+            buffer.limit(limit);
+            buffer.position(end);
+            return change;
+        }
+
+        /**
+         * Reads the next change without decoding it. The returned buffer contains
+         * the encoded change and is only valid until the next read from this reader.
+         */
+        ByteBuffer readEncodedChange() throws IOException {
+            int length = readEntryPrefix();
+            ByteBuffer encoded = buffer.duplicate();
+            encoded.limit(buffer.position() + length);
+            buffer.position(buffer.position() + length);
+            return encoded;
+        }
+
+        // reads the revision and length of an entry and makes sure
+        // that the whole encoded change is available in the buffer
+        private int readEntryPrefix() throws IOException {
+            lastRevision += getVarLong();
+            if(lastRevision > header.revision) {
+                throw new StreamCorruptedException("Revision " + lastRevision
+                        + " exceeds the last revision " + header.revision);
+            }
+            int length = toInt(getVarLong());
+            // the length may be corrupt, so the buffer only grows as far as the bytes
+            // actually read from the channel: at most twice the size of the history
+            while(length > buffer.capacity()) {
+                require(buffer.capacity());
+                ByteBuffer larger = ByteBuffer.allocateDirect((int) Math.min(2L * buffer.capacity(), length));
+                larger.put(buffer);
+                larger.flip();
+                buffer = larger;
+            }
+            require(length);
+            return length;
+        }
+
+        long lastRevision() {
+            return lastRevision;
+        }
+
+        long readVarLong() throws IOException {
+            return getVarLong();
+        }
+
+        /**
+         * Returns whether anything follows in the channel, e.g. data appended after the entries.
+         */
+        boolean hasMore() throws IOException {
+            if(buffer.hasRemaining()) {
+                return true;
+            }
+            buffer.clear();
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while(read == 0);
+            buffer.flip();
+            return read > 0;
+        }
+
+        private long getVarLong() throws IOException {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                require(1);
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed variable-length integer");
+        }
+
+        // makes sure that at least n bytes are available in the buffer
+        private void require(int n) throws IOException {
+            if(buffer.remaining() >= n) {
+                return;
+            }
+            buffer.compact();
+            while(buffer.position() < n) {
+                if(channel.read(buffer) < 0) {
+                    throw new EOFException("Unexpected end of undo history");
+                }
+            }
+            buffer.flip();
+        }
+
+        private static int toInt(long value) throws StreamCorruptedException {
+            if(value < 0 || value > Integer.MAX_VALUE) {
+                throw new StreamCorruptedException("Value out of range: " + value);
+            }
+            return (int) value;
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package org.fxmisc.undo.impl;
+
+/**
+ * Notified of the entries an {@link UndoManagerImpl} records from the change stream, identified
+ * by the revisions of the positions following them. Used by {@link GlobalUndoCoordinator}.
+ */
+interface HistoryListener {
+    void entryPushed(UndoManagerImpl<?> manager, long prevRevision, long revision);
+    void entryReplaced(UndoManagerImpl<?> manager, long oldRevision, long revision);
+    void entryDropped(UndoManagerImpl<?> manager, long oldRevision);
+
+    /** The whole history has been replaced, so that the revisions recorded so far are meaningless. */
+    void historyReplaced(UndoManagerImpl<?> manager);
+}
@@ -0,0 +1,105 @@
+package org.fxmisc.undo.impl;
+
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The invert, apply and merge functions of an undo manager, together with the
+ * {@link UndoInstrumentation} they report to. While the instrumentation is
+ * {@link UndoInstrumentation#NONE}, the functions are called directly and
+ * their latency is not measured.
+ *
+ * @param <C> the type of change
+ */
+final class InstrumentedFunctions<C> {
+
+    private final Function<? super C, ? extends C> invert;
+    private final Consumer<C> apply;
+    private final BiFunction<C, C, Optional<C>> merge;
+
+    private UndoInstrumentation instrumentation = UndoInstrumentation.NONE;
+    private Function<? super C, ? extends C> instrumentedInvert;
+    private Consumer<C> instrumentedApply;
+    private BiFunction<C, C, Optional<C>> instrumentedMerge;
+
+    InstrumentedFunctions(Function<? super C, ? extends C> invert, Consumer<C> apply,
+                          BiFunction<C, C, Optional<C>> merge) {
+        this.invert = invert;
+        this.apply = apply;
+        this.merge = merge;
+        this.instrumentedInvert = invert;
+        this.instrumentedApply = apply;
+        this.instrumentedMerge = merge;
+    }
+
+    UndoInstrumentation instrumentation() {
+        return instrumentation;
+    }
+
+    boolean isInstrumented() {
+        return instrumentation != UndoInstrumentation.NONE;
+    }
+
+    void setInstrumentation(UndoInstrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+        if(instrumentation == UndoInstrumentation.NONE) {
+            instrumentedInvert = invert;
+            instrumentedApply = apply;
+            instrumentedMerge = merge;
+        } else {
+            instrumentedInvert = c -> {
+                Object started = instrumentation.invertStarting(c);
+                long start = System.nanoTime();
+                try {
+                    return invert.apply(c);
+                } finally {
+                    instrumentation.invertTimed(c, System.nanoTime() - start, started);
+                }
+            };
+            instrumentedApply = c -> {
+                Object started = instrumentation.applyStarting(c);
+                long start = System.nanoTime();
+                try {
+                    apply.accept(c);
+                } finally {
+                    instrumentation.applyTimed(c, System.nanoTime() - start, started);
+                }
+            };
+            instrumentedMerge = (c1, c2) -> {
+                Object started = instrumentation.mergeStarting(c1, c2);
+                long start = System.nanoTime();
+                boolean merged = false;
+                try {
+                    Optional<C> result = merge.apply(c1, c2);
+                    merged = result.isPresent();
+                    return result;
+                } finally {
+                    instrumentation.mergeTimed(c1, c2, merged, System.nanoTime() - start, started);
+                }
+            };
+        }
+    }
+
+    Function<? super C, ? extends C> invert() {
+        return instrumentedInvert;
+    }
+
+    C invert(C change) {
+        return instrumentedInvert.apply(change);
+    }
+
+    // the apply function of the current instrumentation, which may be called on any thread
+    Consumer<C> apply() {
+        return instrumentedApply;
+    }
+
+    void apply(C change) {
+        instrumentedApply.accept(change);
+    }
+
+    Optional<C> merge(C prev, C change) {
+        return instrumentedMerge.apply(prev, change);
+    }
+}
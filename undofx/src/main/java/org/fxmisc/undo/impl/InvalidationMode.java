@@ -0,0 +1,28 @@
+package org.fxmisc.undo.impl;
+
+/**
+ * Determines when {@link UndoManagerImpl} notifies the observers of its properties
+ * ({@code nextUndo}, {@code nextRedo}, {@code undoAvailable}, {@code redoAvailable}
+ * and {@code atMarkedPosition}) after its history changes.
+ */
+public enum InvalidationMode {
+
+    /**
+     * Properties are invalidated right after every change to the history.
+     */
+    IMMEDIATE,
+
+    /**
+     * Invalidations are coalesced and delivered on the JavaFX application
+     * thread via {@link javafx.application.Platform#runLater(Runnable)}, i.e.
+     * at most once per pulse, no matter how many changes occurred in between.
+     * Only properties whose value actually changed are invalidated.
+     */
+    NEXT_PULSE,
+
+    /**
+     * Invalidations are coalesced until {@link UndoManagerImpl#flushInvalidations()} is called.
+     * Only properties whose value actually changed are invalidated.
+     */
+    MANUAL,
+}
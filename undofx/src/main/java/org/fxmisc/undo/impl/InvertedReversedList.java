@@ -0,0 +1,52 @@
+package org.fxmisc.undo.impl;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Function;
+
+/**
+ * Unmodifiable view of a list of changes that inverts the changes and reverses their order,
+ * i.e. the list of changes that undoes the original list. Each element is inverted on first
+ * access only and then cached, so undoing costs only as much inversion as the consumer of
+ * the list actually performs.
+ *
+ * @param <C> the type of change
+ */
+final class InvertedReversedList<C> extends AbstractList<C> implements RandomAccess {
+
+    private final List<C> changes;
+    private final Function<? super C, ? extends C> invert;
+
+    // inverted elements by index into this list, allocated on first access
+    private Object[] inverted = null;
+
+    InvertedReversedList(List<C> changes, Function<? super C, ? extends C> invert) {
+        this.changes = changes;
+        this.invert = invert;
+    }
+
+    @Override
+    public C get(int index) {
+        int size = changes.size();
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        if(inverted == null) {
+            inverted = new Object[size];
+        }
+
+        @SuppressWarnings("unchecked")
+        C c = (C) inverted[index];
+        if(c == null) {
+            c = invert.apply(changes.get(size - 1 - index));
+            inverted[index] = c;
+        }
+        return c;
+    }
+
+    @Override
+    public int size() {
+        return changes.size();
+    }
+}
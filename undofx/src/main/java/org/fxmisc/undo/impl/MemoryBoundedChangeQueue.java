@@ -0,0 +1,101 @@
+package org.fxmisc.undo.impl;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.function.ToLongFunction;
+
+/**
+ * {@link ChangeQueue} whose history is bounded by the estimated memory retained by the stored changes,
+ * rather than by their number. When the total estimated size of the stored changes exceeds the budget,
+ * the oldest changes are forgotten. The most recent change is always retained, even if its size alone
+ * exceeds the budget.
+ *
+ * @param <C> the type of change
+ */
+public class MemoryBoundedChangeQueue<C> extends RingBufferChangeQueue<C> {
+
+    private static final long[] NO_SIZES = new long[0];
+
+    private final ToLongFunction<? super C> sizeEstimator;
+    private final long byteBudget;
+
+    // estimated sizes of the changes, indexed like the changes
+    private long[] sizes = NO_SIZES;
+    private long retainedBytes = 0;
+
+    /**
+     * @param sizeEstimator estimates the number of bytes retained by a change
+     * @param byteBudget maximum total estimated size of the stored changes
+     */
+    public MemoryBoundedChangeQueue(ToLongFunction<? super C> sizeEstimator, long byteBudget) {
+        if(byteBudget <= 0) {
+            throw new IllegalArgumentException("byteBudget must be positive");
+        }
+
+        this.sizeEstimator = sizeEstimator;
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Returns the total estimated size of the changes currently stored in this queue.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If the restored changes exceed the byte budget, the oldest changes
+     * preceding the current position are forgotten.</p>
+     */
+    @Override
+    public QueuePosition restore(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        return super.restore(channel, codec);
+    }
+
+    // the oldest changes preceding the current position, as long as the budget is exceeded
+    @Override
+    int evictionCount() {
+        int count = 0;
+        long bytes = retainedBytes;
+        int limit = Math.min(prevCount(), size() - 1);
+        while(bytes > byteBudget && count < limit) {
+            bytes -= sizes[arrayIndex(count)];
+            count += 1;
+        }
+        return count;
+    }
+
+    @Override
+    void stored(int i, C change) {
+        long bytes = sizeEstimator.applyAsLong(change);
+        sizes[i] = bytes;
+        retainedBytes += bytes;
+    }
+
+    @Override
+    void releasing(int position, int count) {
+        for(int pos = position; pos < position + count; ++pos) {
+            retainedBytes -= sizes[arrayIndex(pos)];
+        }
+    }
+
+    @Override
+    void resizing(int newLength) {
+        sizes = resized(sizes, newLength);
+    }
+
+    @Override
+    void rebuilt(int length) {
+        sizes = new long[length];
+        retainedBytes = 0;
+        for(int i = 0; i < size(); ++i) {
+            stored(i, fetch(i));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.fxmisc.undo.impl;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Unmodifiable list of changes produced by merging two lists of changes element by element.
+ * It takes over the array the elements were merged into, which is never written again.
+ *
+ * @param <C> the type of change
+ */
+final class MergedList<C> extends AbstractList<C> implements RandomAccess {
+
+    private final Object[] elements;
+    private final int size;
+
+    MergedList(Object[] elements, int size) {
+        this.elements = elements;
+        this.size = size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public C get(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return (C) elements[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
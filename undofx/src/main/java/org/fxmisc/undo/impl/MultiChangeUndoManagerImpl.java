@@ -1,11 +1,19 @@
 package org.fxmisc.undo.impl;
 
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+
 import org.reactfx.EventStream;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -18,6 +26,8 @@ import java.util.function.Predicate;
  */
 public class MultiChangeUndoManagerImpl<C> extends UndoManagerImpl<List<C>> {
 
+    private final ReadOnlyDoubleWrapper applyProgress = new ReadOnlyDoubleWrapper(0.0);
+
     public MultiChangeUndoManagerImpl(
             ChangeQueue<List<C>> queue,
             Function<? super C, ? extends C> changeInvert,
@@ -38,48 +48,156 @@ public class MultiChangeUndoManagerImpl<C> extends UndoManagerImpl<List<C>> {
             Duration preventMergeDelay) {
         super(
                 queue,
-                list -> {
-                    List<C> l = new ArrayList<>(list.size());
-                    // invert the contents of the list
-                    // and store them in reversed order
-                    for (int i = list.size() - 1; i >= 0; i--) {
-                        l.add(changeInvert.apply(list.get(i)));
-                    }
-                    return l;
-                },
+                // invert the contents of the list in reversed order,
+                // lazily, as the elements are accessed
+                list -> new InvertedReversedList<>(list, changeInvert),
                 apply,
-                (list1, list2) -> {
-                    // if one list is empty, return the other list
-                    if (list1.size() == 0) {
-                        return Optional.of(list2);
-                    } else if (list2.size() == 0) {
-                        return Optional.of(list1);
-                    }
-
-                    // if both are the same size and every corresponding element
-                    // can be merged, return a list with all merged items.
-                    // Otherwise, return Optional.empty()
-                    if (list1.size() == list2.size()) {
-                        List<C> mergeList = new ArrayList<>(list1.size());
-                        for (int i = 0; i < list1.size(); i++) {
-                            C item1 = list1.get(i);
-                            C item2 = list2.get(i);
-                            Optional<C> merge = changeMerge.apply(item1, item2);
-                            if (merge.isPresent()) {
-                                mergeList.add(merge.get());
-                            } else {
-                                return Optional.empty();
-                            }
-                        }
-                        return Optional.of(mergeList);
-                    } else {
-                        return Optional.empty();
-                    }
-                },
+                new ListMerge<>(changeMerge),
                 list -> list.stream().allMatch(changeIsIdentity),
                 changeSource,
                 preventMergeDelay
         );
     }
 
-}
\ No newline at end of file
+    /**
+     * Like {@link #undoProgressively(int, Duration, Executor)}, continuing on the JavaFX application thread.
+     */
+    public CompletableFuture<Boolean> undoProgressively(int chunkSize, Duration timeSlice) {
+        return undoProgressively(chunkSize, timeSlice, Platform::runLater);
+    }
+
+    /**
+     * Undoes the previous list of changes in chunks of at most {@code chunkSize} changes, so that
+     * undoing a list of many changes does not block the thread that owns this undo manager. Each
+     * chunk is passed to {@code apply} separately and must be reinserted into the change stream,
+     * just like a whole list. Chunks are applied until {@code timeSlice} has elapsed, then the
+     * remaining chunks are applied in a task submitted to {@code owner}, and so on.
+     *
+     * <p>The history moves to the previous position only after the last chunk has been applied.
+     * Until then, {@link #performingActionProperty()} is {@code true}, undo and redo are rejected
+     * with an {@link IllegalStateException}, and {@link #applyProgressProperty()} reports the
+     * fraction of the chunks that have been applied.</p>
+     *
+     * <p>The returned future completes with {@code true} once the last chunk has been applied,
+     * or with {@code false} right away if there was nothing to undo. If applying a chunk fails,
+     * the inverses of the chunks applied before it are applied in reverse order, then the future
+     * completes exceptionally and the history does not move. The failed chunk itself is expected
+     * to have left the model unchanged.</p>
+     *
+     * @param owner executes tasks on the thread that owns this undo manager
+     */
+    public CompletableFuture<Boolean> undoProgressively(int chunkSize, Duration timeSlice, Executor owner) {
+        return applyInSteps(true, list -> chunks(list, chunkSize), timeSlice.toNanos(), owner, applyProgress::set);
+    }
+
+    /**
+     * Like {@link #redoProgressively(int, Duration, Executor)}, continuing on the JavaFX application thread.
+     */
+    public CompletableFuture<Boolean> redoProgressively(int chunkSize, Duration timeSlice) {
+        return redoProgressively(chunkSize, timeSlice, Platform::runLater);
+    }
+
+    /**
+     * Redoes the next list of changes in chunks of at most {@code chunkSize} changes.
+     * See {@link #undoProgressively(int, Duration, Executor)} for details.
+     *
+     * @param owner executes tasks on the thread that owns this undo manager
+     */
+    public CompletableFuture<Boolean> redoProgressively(int chunkSize, Duration timeSlice, Executor owner) {
+        return applyInSteps(false, list -> chunks(list, chunkSize), timeSlice.toNanos(), owner, applyProgress::set);
+    }
+
+    /**
+     * Fraction of the chunks of the list of changes being undone or redone progressively
+     * that have been applied. Reset to 0 when a progressive undo or redo starts and set to
+     * 1 when it completes.
+     */
+    public ReadOnlyDoubleProperty applyProgressProperty() {
+        return applyProgress.getReadOnlyProperty();
+    }
+
+    private static <C> List<List<C>> chunks(List<C> list, int chunkSize) {
+        if(chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        List<List<C>> chunks = new ArrayList<>((list.size() + chunkSize - 1) / chunkSize);
+        for(int from = 0; from < list.size(); from += chunkSize) {
+            chunks.add(list.subList(from, Math.min(from + chunkSize, list.size())));
+        }
+        return chunks;
+    }
+
+    /**
+     * Concatenates the lists of changes, so that they are applied at once.
+     */
+    @Override
+    protected List<List<C>> compose(List<List<C>> changes) {
+        int size = 0;
+        for(List<C> list: changes) {
+            size += list.size();
+        }
+        List<C> concatenated = new ArrayList<>(size);
+        for(List<C> list: changes) {
+            concatenated.addAll(list);
+        }
+        return Collections.singletonList(concatenated);
+    }
+
+    /**
+     * Merges two lists of changes of the same size element by element. All the elements are
+     * merged into a scratch array first, so that nothing is allocated if any of them cannot
+     * be merged. On success, the scratch array becomes the storage of a new list, so that a
+     * list already in the history, or returned by {@link #getNextUndo()}, never changes.
+     */
+    private static final class ListMerge<C> implements BiFunction<List<C>, List<C>, Optional<List<C>>> {
+        private static final Object[] NO_ELEMENTS = new Object[0];
+
+        private final BiFunction<C, C, Optional<C>> changeMerge;
+        private Object[] scratch = NO_ELEMENTS;
+
+        ListMerge(BiFunction<C, C, Optional<C>> changeMerge) {
+            this.changeMerge = changeMerge;
+        }
+
+        @Override
+        public Optional<List<C>> apply(List<C> list1, List<C> list2) {
+            // if one list is empty, return the other list
+            if (list1.size() == 0) {
+                return Optional.of(list2);
+            } else if (list2.size() == 0) {
+                return Optional.of(list1);
+            }
+
+            int size = list1.size();
+            if (mergeAll(list1, list2)) {
+                Object[] elements = scratch;
+                scratch = NO_ELEMENTS;
+                return Optional.of(new MergedList<>(elements, size));
+            } else {
+                return Optional.empty();
+            }
+        }
+
+        // if both lists are the same size and every corresponding element can be merged,
+        // stores the merged elements in the scratch array and returns true
+        private boolean mergeAll(List<C> list1, List<C> list2) {
+            int size = list1.size();
+            if (size != list2.size()) {
+                return false;
+            }
+            if (scratch.length < size) {
+                scratch = new Object[size];
+            }
+            for (int i = 0; i < size; i++) {
+                Optional<C> merge = changeMerge.apply(list1.get(i), list2.get(i));
+                if (merge.isPresent()) {
+                    scratch[i] = merge.get();
+                } else {
+                    Arrays.fill(scratch, 0, i, null);
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package org.fxmisc.undo.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link ChangeQueue} with unlimited history that stores all changes serialized by a {@link ChangeCodec}
+ * in direct (off-heap) buffer segments. The heap only holds the segments themselves and a primitive
+ * index of record addresses and revisions, so the size of the history does not affect the work of the
+ * garbage collector. A change is decoded whenever it is read; the most recently decoded change is kept,
+ * so that peeking at a change and then moving over it decodes it only once.
+ *
+ * @param <C> the type of change
+ */
+public class OffHeapChangeQueue<C> implements ChangeQueue<C> {
+
+    private class QueuePositionImpl implements QueuePosition {
+        private final int allTimePos;
+        private final long rev;
+
+        QueuePositionImpl(int allTimePos, long rev) {
+            this.allTimePos = allTimePos;
+            this.rev = rev;
+        }
+
+        @Override
+        public boolean isValid() {
+            int pos = allTimePos - forgottenCount;
+            if(0 <= pos && pos <= size) {
+                return rev == revisionForPosition(pos);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(other instanceof OffHeapChangeQueue.QueuePositionImpl) {
+                @SuppressWarnings("unchecked")
+                QueuePositionImpl otherPos = (QueuePositionImpl) other;
+                return getQueue() == otherPos.getQueue() && rev == otherPos.rev;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(rev);
+        }
+
+        private OffHeapChangeQueue<C> getQueue() {
+            return OffHeapChangeQueue.this;
+        }
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private final ChangeCodec<C> codec;
+    private SegmentedLog<C> log;
+
+    // the change at position p is stored in the log at address addresses[start + p]
+    private long[] addresses = new long[16];
+    private long[] revisions = new long[16];
+    private int start = 0;
+    private int size = 0;
+
+    private int currentPosition = 0;
+
+    // the most recently decoded change, or null
+    private C decoded = null;
+    private int decodedPosition = -1;
+
+    private long revision = 0;
+    private long zeroPositionRevision = revision;
+    private int forgottenCount = 0;
+
+    public OffHeapChangeQueue(ChangeCodec<C> codec) {
+        this(codec, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param codec used to serialize the changes
+     * @param segmentSize size of a direct buffer segment in bytes. A change whose encoded
+     *                    size exceeds the segment size gets a segment of its own.
+     */
+    public OffHeapChangeQueue(ChangeCodec<C> codec, int segmentSize) {
+        this.codec = codec;
+        this.log = new SegmentedLog<>(codec, ByteBuffer::allocateDirect, segmentSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return currentPosition < size;
+    }
+
+    @Override
+    public boolean hasPrev() {
+        return currentPosition > 0;
+    }
+
+    @Override
+    public int prevCount() {
+        return currentPosition;
+    }
+
+    @Override
+    public C peekNext() {
+        if(currentPosition < size) {
+            return fetch(currentPosition);
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public C next() {
+        C c = peekNext();
+        currentPosition += 1;
+        return c;
+    }
+
+    @Override
+    public C peekPrev() {
+        if(currentPosition > 0) {
+            return fetch(currentPosition - 1);
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public C prev() {
+        C c = peekPrev();
+        currentPosition -= 1;
+        return c;
+    }
+
+    @Override
+    public void forgetHistory() {
+        if(currentPosition == 0) {
+            return;
+        }
+
+        zeroPositionRevision = revisionForPosition(currentPosition);
+        if(currentPosition < size) {
+            log.releaseBefore(addresses[start + currentPosition]);
+        } else {
+            log.clear();
+        }
+        start += currentPosition;
+        size -= currentPosition;
+        forgottenCount += currentPosition;
+        currentPosition = 0;
+        clearDecoded();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The direct buffers holding the changes are dropped.</p>
+     */
+    @Override
+    public void clear() {
+        zeroPositionRevision = revisionForPosition(size);
+        log.clear();
+        addresses = new long[16];
+        revisions = new long[16];
+        start = 0;
+        forgottenCount += size;
+        size = 0;
+        currentPosition = 0;
+        clearDecoded();
+    }
+
+    @Override
+    public final void push(C change) {
+        discardFuture();
+        append(log.append(change), ++revision);
+        currentPosition = size;
+    }
+
+    @Override
+    @SafeVarargs
+    public final void push(C... changes) {
+        discardFuture();
+        for(C c: changes) {
+            append(log.append(c), ++revision);
+        }
+        currentPosition = size;
+    }
+
+    @Override
+    public QueuePosition getCurrentPosition() {
+        return new QueuePositionImpl(forgottenCount + currentPosition, revisionForPosition(currentPosition));
+    }
+
+    @Override
+    public long getCurrentRevision() {
+        return revisionForPosition(currentPosition);
+    }
+
+    @Override
+    public int distanceTo(QueuePosition position) {
+        QueuePositionImpl pos = ownPosition(position);
+        return pos.isValid() ? pos.allTimePos - forgottenCount - currentPosition : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If {@code codec} is the codec this queue was created with,
+     * the changes are copied to the channel without being decoded.</p>
+     */
+    @Override
+    public void save(WritableByteChannel channel, ChangeCodec<? super C> codec, QueuePosition mark) throws IOException {
+        QueuePositionImpl markPos = ownPosition(mark);
+        HistoryFormat.Writer<C> writer = new HistoryFormat.Writer<>(channel, codec);
+        writer.writeHeader(new HistoryFormat.Header(forgottenCount, size, currentPosition,
+                revision, zeroPositionRevision, markPos.allTimePos, markPos.rev));
+        for(int i = 0; i < size; ++i) {
+            long address = addresses[start + i];
+            if(codec == this.codec) {
+                writer.writeEncodedChange(log.record(address), revisions[start + i]);
+            } else {
+                writer.writeChange(log.read(address), revisions[start + i]);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If {@code codec} is the codec this queue was created with,
+     * the changes are copied from the channel without being decoded.</p>
+     */
+    @Override
+    public QueuePosition restore(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        HistoryFormat.Reader<C> reader = new HistoryFormat.Reader<>(channel, codec);
+        HistoryFormat.Header header = reader.readHeader();
+
+        // restore into a fresh log, so that this queue is left unchanged if reading fails
+        SegmentedLog<C> restoredLog = log.emptyCopy();
+        int length = 16;
+        while(length < header.size) {
+            length *= 2;
+        }
+        long[] restoredAddresses = new long[length];
+        long[] restoredRevisions = new long[length];
+        try {
+            for(int i = 0; i < header.size; ++i) {
+                restoredAddresses[i] = codec == this.codec
+                        ? restoredLog.appendEncoded(reader.readEncodedChange())
+                        : restoredLog.append(reader.readChange());
+                restoredRevisions[i] = reader.lastRevision();
+            }
+        } catch(IOException | RuntimeException e) {
+            restoredLog.clear();
+            throw e;
+        }
+
+        log.clear();
+        log = restoredLog;
+        addresses = restoredAddresses;
+        revisions = restoredRevisions;
+        start = 0;
+        size = header.size;
+        clearDecoded();
+        currentPosition = header.currentPosition;
+        revision = header.revision;
+        zeroPositionRevision = header.zeroPositionRevision;
+        forgottenCount = header.forgottenCount;
+        return new QueuePositionImpl(header.markPosition, header.markRevision);
+    }
+
+    /**
+     * Discards all changes and drops the direct buffers they are stored in.
+     * This queue must not be used after it has been closed.
+     */
+    @Override
+    public void close() {
+        log.clear();
+        clearDecoded();
+    }
+
+    private QueuePositionImpl ownPosition(QueuePosition pos) {
+        if(pos instanceof OffHeapChangeQueue.QueuePositionImpl) {
+            @SuppressWarnings("unchecked")
+            QueuePositionImpl ownPos = (QueuePositionImpl) pos;
+            if(ownPos.getQueue() == this) {
+                return ownPos;
+            }
+        }
+        throw new IllegalArgumentException("Position does not belong to this queue: " + pos);
+    }
+
+    // discards the changes ahead of the current position
+    private void discardFuture() {
+        if(currentPosition < size) {
+            log.truncate(addresses[start + currentPosition]);
+            size = currentPosition;
+            if(decodedPosition >= size) {
+                clearDecoded();
+            }
+        }
+    }
+
+    private void append(long address, long rev) {
+        int i = start + size;
+        if(i == addresses.length) {
+            compactIndex();
+            i = start + size;
+        }
+        addresses[i] = address;
+        revisions[i] = rev;
+        size += 1;
+    }
+
+    // makes room at the end of the index, either by moving
+    // the live part to the beginning or by growing the arrays
+    private void compactIndex() {
+        if(start > addresses.length / 2) {
+            System.arraycopy(addresses, start, addresses, 0, size);
+            System.arraycopy(revisions, start, revisions, 0, size);
+        } else {
+            int newLength = addresses.length * 2;
+            long[] newAddresses = new long[newLength];
+            long[] newRevisions = new long[newLength];
+            System.arraycopy(addresses, start, newAddresses, 0, size);
+            System.arraycopy(revisions, start, newRevisions, 0, size);
+            addresses = newAddresses;
+            revisions = newRevisions;
+        }
+        start = 0;
+    }
+
+    private long revisionForPosition(int position) {
+        return position == 0
+                ? zeroPositionRevision
+                : revisions[start + position - 1];
+    }
+
+    private C fetch(int position) {
+        if(position != decodedPosition) {
+            decoded = log.read(addresses[start + position]);
+            decodedPosition = position;
+        }
+        return decoded;
+    }
+
+    private void clearDecoded() {
+        decoded = null;
+        decodedPosition = -1;
+    }
+}
@@ -0,0 +1,425 @@
+package org.fxmisc.undo.impl;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * Base class of the bounded {@link ChangeQueue}s, which keep their changes in a ring buffer and
+ * forget the oldest ones according to an eviction policy, see {@link #evictionCount()}.
+ *
+ * <p>Changes and their revisions are stored in parallel arrays, so that pushing a change does not
+ * allocate a wrapper object. Subclasses may keep further data about each change in arrays of their
+ * own, indexed by {@link #arrayIndex(int)}, which they maintain in {@link #stored(int, Object)},
+ * {@link #releasing(int, int)}, {@link #resizing(int)} and {@link #rebuilt(int)}.</p>
+ *
+ * @param <C> the type of change
+ */
+abstract class RingBufferChangeQueue<C> implements ChangeQueue<C> {
+
+    private class QueuePositionImpl implements QueuePosition {
+        private final int allTimePos;
+        private final long rev;
+
+        QueuePositionImpl(int allTimePos, long rev) {
+            this.allTimePos = allTimePos;
+            this.rev = rev;
+        }
+
+        @Override
+        public boolean isValid() {
+            int pos = allTimePos - forgottenCount;
+            if(0 <= pos && pos <= size) {
+                return rev == revisionForPosition(pos);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(other instanceof RingBufferChangeQueue.QueuePositionImpl) {
+                @SuppressWarnings("unchecked")
+                QueuePositionImpl otherPos = (QueuePositionImpl) other;
+                return getQueue() == otherPos.getQueue() && rev == otherPos.rev;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(rev);
+        }
+
+        private RingBufferChangeQueue<C> getQueue() {
+            return RingBufferChangeQueue.this;
+        }
+    }
+
+    private static final int INITIAL_LENGTH = 8;
+    private static final Object[] NO_CHANGES = new Object[0];
+    private static final long[] NO_REVISIONS = new long[0];
+
+    // the oldest change is stored at index start; allocated on the first push
+    // and grown on demand up to maxLength()
+    private Object[] changes = NO_CHANGES;
+    private long[] revisions = NO_REVISIONS;
+    private int start = 0;
+    private int size = 0;
+
+    // current position is always from the interval [0, size],
+    // i.e. not offset by start
+    private int currentPosition = 0;
+
+    private long revision = 0;
+    private long zeroPositionRevision = revision;
+    private int forgottenCount = 0;
+
+    private IntConsumer evictionListener = null;
+
+    /**
+     * Returns the number of the oldest changes to forget after a push or a restore, which must
+     * not exceed {@link #prevCount()}. Called with the pushed changes already stored.
+     */
+    abstract int evictionCount();
+
+    /**
+     * Returns the maximum length of the arrays. If the arrays have this length and are full,
+     * pushing a change forgets the oldest change to make room for it. Unbounded by default.
+     */
+    int maxLength() {
+        return Integer.MAX_VALUE;
+    }
+
+    /** {@code change} has been stored at the array index {@code i}. Does nothing by default. */
+    void stored(int i, C change) {}
+
+    /**
+     * The {@code count} changes from {@code position} on are about to be discarded or forgotten.
+     * Does nothing by default.
+     */
+    void releasing(int position, int count) {}
+
+    /**
+     * The arrays are about to be reallocated with {@code newLength}, storing the position 0 at
+     * index 0. Subclasses reallocate their own arrays with {@link #resized(long[], int)} or
+     * {@link #resized(Object[], int)}. Does nothing by default.
+     */
+    void resizing(int newLength) {}
+
+    /**
+     * The arrays have been replaced by a restore or a clear; the stored changes are at the array
+     * indices 0 to {@code size() - 1}. Subclasses rebuild their own arrays, of length {@code length}.
+     * Does nothing by default.
+     */
+    void rebuilt(int length) {}
+
+    @Override
+    public boolean hasNext() {
+        return currentPosition < size;
+    }
+
+    @Override
+    public boolean hasPrev() {
+        return currentPosition > 0;
+    }
+
+    @Override
+    public int prevCount() {
+        return currentPosition;
+    }
+
+    /** Returns the number of stored changes. */
+    int size() {
+        return size;
+    }
+
+    @Override
+    public C peekNext() {
+        if(currentPosition < size) {
+            return fetch(currentPosition);
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public C next() {
+        C c = peekNext();
+        currentPosition += 1;
+        return c;
+    }
+
+    @Override
+    public C peekPrev() {
+        if(currentPosition > 0) {
+            return fetch(currentPosition - 1);
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public C prev() {
+        C c = peekPrev();
+        currentPosition -= 1;
+        return c;
+    }
+
+    @Override
+    public void forgetHistory() {
+        forgetOldest(currentPosition);
+    }
+
+    @Override
+    public void clear() {
+        zeroPositionRevision = revisionForPosition(size);
+        forgottenCount += size;
+        changes = NO_CHANGES;
+        revisions = NO_REVISIONS;
+        start = 0;
+        size = 0;
+        currentPosition = 0;
+        rebuilt(0);
+    }
+
+    @Override
+    public final void push(C change) {
+        discardFuture();
+        int evicted = append(change);
+        evict(evicted);
+    }
+
+    @Override
+    @SafeVarargs
+    public final void push(C... changes) {
+        discardFuture();
+        int evicted = 0;
+        for(C c: changes) {
+            evicted += append(c);
+        }
+        evict(evicted);
+    }
+
+    @Override
+    public void setEvictionListener(IntConsumer listener) {
+        evictionListener = listener;
+    }
+
+    @Override
+    public QueuePosition getCurrentPosition() {
+        return new QueuePositionImpl(forgottenCount + currentPosition, revisionForPosition(currentPosition));
+    }
+
+    @Override
+    public long getCurrentRevision() {
+        return revisionForPosition(currentPosition);
+    }
+
+    @Override
+    public int distanceTo(QueuePosition position) {
+        QueuePositionImpl pos = ownPosition(position);
+        return pos.isValid() ? pos.allTimePos - forgottenCount - currentPosition : 0;
+    }
+
+    @Override
+    public void save(WritableByteChannel channel, ChangeCodec<? super C> codec, QueuePosition mark) throws IOException {
+        QueuePositionImpl markPos = ownPosition(mark);
+        HistoryFormat.Writer<C> writer = new HistoryFormat.Writer<>(channel, codec);
+        writer.writeHeader(new HistoryFormat.Header(forgottenCount, size, currentPosition,
+                revision, zeroPositionRevision, markPos.allTimePos, markPos.rev));
+        for(int i = 0; i < size; ++i) {
+            writer.writeChange(fetch(i), revisions[arrayIndex(i)]);
+        }
+        writer.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If the restored history contains more changes than {@link #maxLength()}, the oldest
+     * changes are forgotten. Then the changes selected by the eviction policy are forgotten.</p>
+     *
+     * @throws IOException also if the restored current position would have to be forgotten
+     */
+    @Override
+    public QueuePosition restore(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        HistoryFormat.Reader<C> reader = new HistoryFormat.Reader<>(channel, codec);
+        HistoryFormat.Header header = reader.readHeader();
+        int overflow = Math.max(0, header.size - maxLength());
+        if(header.currentPosition < overflow) {
+            throw new IOException("History of " + header.size + " changes with current position "
+                    + header.currentPosition + " does not fit into a queue of capacity " + maxLength());
+        }
+
+        long restoredZeroPositionRevision = header.zeroPositionRevision;
+        for(int i = 0; i < overflow; ++i) {
+            reader.readEncodedChange();
+            restoredZeroPositionRevision = reader.lastRevision();
+        }
+        int restoredSize = header.size - overflow;
+        int length = restoredSize == 0 ? 0 : lengthFor(restoredSize);
+        Object[] restoredChanges = new Object[length];
+        long[] restoredRevisions = new long[length];
+        for(int i = 0; i < restoredSize; ++i) {
+            restoredChanges[i] = reader.readChange();
+            restoredRevisions[i] = reader.lastRevision();
+        }
+
+        changes = restoredChanges;
+        revisions = restoredRevisions;
+        start = 0;
+        size = restoredSize;
+        currentPosition = header.currentPosition - overflow;
+        revision = header.revision;
+        zeroPositionRevision = restoredZeroPositionRevision;
+        forgottenCount = header.forgottenCount + overflow;
+        rebuilt(length);
+        forgetOldest(evictionCount());
+        return new QueuePositionImpl(header.markPosition, header.markRevision);
+    }
+
+    /** Returns the current length of the arrays. */
+    final int arrayLength() {
+        return changes.length;
+    }
+
+    // returns a number from [0..changes.length-1]
+    final int arrayIndex(int queuePosition) {
+        return (start + queuePosition) % changes.length;
+    }
+
+    /** Returns a copy of {@code array}, in which position 0 is stored at index 0. */
+    final long[] resized(long[] array, int newLength) {
+        long[] resized = new long[newLength];
+        for(int pos = 0; pos < changes.length; ++pos) {
+            resized[pos] = array[arrayIndex(pos)];
+        }
+        return resized;
+    }
+
+    /** Returns a copy of {@code array}, in which position 0 is stored at index 0. */
+    final Object[] resized(Object[] array, int newLength) {
+        Object[] resized = new Object[newLength];
+        for(int pos = 0; pos < changes.length; ++pos) {
+            resized[pos] = array[arrayIndex(pos)];
+        }
+        return resized;
+    }
+
+    /** Sets the elements of {@code array} at the {@code count} positions from {@code position} on to {@code null}. */
+    final void clear(Object[] array, int position, int count) {
+        if(count == 0) {
+            return;
+        }
+        int from = arrayIndex(position);
+        int to = from + count;
+        if(to <= changes.length) {
+            Arrays.fill(array, from, to, null);
+        } else {
+            Arrays.fill(array, from, changes.length, null);
+            Arrays.fill(array, 0, to - changes.length, null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    final C fetch(int position) {
+        return (C) changes[arrayIndex(position)];
+    }
+
+    private QueuePositionImpl ownPosition(QueuePosition pos) {
+        if(pos instanceof RingBufferChangeQueue.QueuePositionImpl) {
+            @SuppressWarnings("unchecked")
+            QueuePositionImpl ownPos = (QueuePositionImpl) pos;
+            if(ownPos.getQueue() == this) {
+                return ownPos;
+            }
+        }
+        throw new IllegalArgumentException("Position does not belong to this queue: " + pos);
+    }
+
+    // discards the changes ahead of the current position
+    private void discardFuture() {
+        int count = size - currentPosition;
+        if(count > 0) {
+            releasing(currentPosition, count);
+            clear(changes, currentPosition, count);
+            size = currentPosition;
+        }
+    }
+
+    // stores the change after the last one and moves past it; returns the number
+    // of changes forgotten to make room for it, which is 1 if the arrays were full
+    private int append(C change) {
+        int evicted = 0;
+        if(size == changes.length) {
+            if(changes.length < maxLength()) {
+                resize(lengthFor(size + 1));
+            } else {
+                forgetOldest(1);
+                evicted = 1;
+            }
+        }
+        int i = arrayIndex(size);
+        changes[i] = change;
+        revisions[i] = ++revision;
+        stored(i, change);
+        size += 1;
+        currentPosition = size;
+        return evicted;
+    }
+
+    // forgets the changes selected by the eviction policy and reports them, together with the
+    // changes forgotten to make room for the pushed changes
+    private void evict(int evicted) {
+        int count = evictionCount();
+        forgetOldest(count);
+        evicted += count;
+        if(evicted > 0 && evictionListener != null) {
+            evictionListener.accept(evicted);
+        }
+    }
+
+    // forgets the given number of the oldest changes at once
+    private void forgetOldest(int count) {
+        if(count == 0) {
+            return;
+        }
+        zeroPositionRevision = revisions[arrayIndex(count - 1)];
+        releasing(0, count);
+        clear(changes, 0, count);
+        start = arrayIndex(count);
+        size -= count;
+        currentPosition -= count;
+        forgottenCount += count;
+    }
+
+    private long revisionForPosition(int position) {
+        return position == 0
+                ? zeroPositionRevision
+                : revisions[arrayIndex(position - 1)];
+    }
+
+    // returns the array length for the given number of changes, a power of two up to maxLength()
+    private int lengthFor(int count) {
+        long length = INITIAL_LENGTH;
+        while(length < count) {
+            length *= 2;
+        }
+        return (int) Math.min(length, maxLength());
+    }
+
+    // reallocates the arrays, which are full, with the given length
+    private void resize(int newLength) {
+        resizing(newLength);
+        Object[] newChanges = resized(changes, newLength);
+        long[] newRevisions = resized(revisions, newLength);
+        changes = newChanges;
+        revisions = newRevisions;
+        start = 0;
+    }
+}
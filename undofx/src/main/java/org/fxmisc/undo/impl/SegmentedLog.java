@@ -0,0 +1,204 @@
+package org.fxmisc.undo.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of encoded changes, stored in a sequence of {@link ByteBuffer} segments.
+ * Each record is the encoded change prefixed by its length. A record is identified by its
+ * address, which combines the index of its segment and its offset within the segment.
+ * A record never spans two segments.
+ *
+ * @param <C> the type of change
+ */
+final class SegmentedLog<C> {
+
+    /**
+     * Allocates the storage of a segment.
+     */
+    @FunctionalInterface
+    interface SegmentAllocator {
+        ByteBuffer allocate(int size) throws IOException;
+
+        /**
+         * Called when the log drops {@code segment}, which was obtained from {@link #allocate(int)}.
+         * The log does not access the segment afterwards.
+         */
+        default void release(ByteBuffer segment) {}
+    }
+
+    private final ChangeCodec<C> codec;
+    private final SegmentAllocator allocator;
+    private final int segmentSize;
+
+    // segments.get(i) is the segment with index firstSegment + i,
+    // released segments are removed from the front of the list
+    private final ArrayList<ByteBuffer> segments = new ArrayList<>();
+    private int firstSegment = 0;
+
+    // index of the segment being written to, or -1 if there is none
+    private int writeSegment = -1;
+    private int writeOffset = 0;
+
+    SegmentedLog(ChangeCodec<C> codec, SegmentAllocator allocator, int segmentSize) {
+        if(segmentSize <= Integer.BYTES) {
+            throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+        }
+
+        this.codec = codec;
+        this.allocator = allocator;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Appends {@code change} to the end of the log and returns its address.
+     */
+    long append(C change) {
+        int length = codec.encodedSize(change);
+        ByteBuffer out = reserve(length);
+        codec.encode(change, out);
+        if(out.hasRemaining()) {
+            throw new IllegalStateException("Codec wrote " + (length - out.remaining())
+                    + " bytes, but announced " + length + " bytes for change " + change);
+        }
+        return commit(length);
+    }
+
+    /**
+     * Appends a change that has already been encoded by this log's codec
+     * to the end of the log and returns its address.
+     */
+    long appendEncoded(ByteBuffer encoded) {
+        int length = encoded.remaining();
+        reserve(length).put(encoded);
+        return commit(length);
+    }
+
+    /**
+     * Decodes the change stored at {@code address}.
+     */
+    C read(long address) {
+        return codec.decode(record(address));
+    }
+
+    /**
+     * Returns the encoded change stored at {@code address}. The returned buffer shares
+     * its content with the log and is only valid until the record is discarded.
+     */
+    ByteBuffer record(long address) {
+        ByteBuffer segment = segment(segmentIndex(address));
+        int offset = offset(address);
+        int length = segment.getInt(offset);
+        ByteBuffer record = segment.duplicate();
+        record.limit(offset + Integer.BYTES + length);
+        record.position(offset + Integer.BYTES);
+        return record;
+    }
+
+    /**
+     * Discards the record at {@code address} and all records after it.
+     */
+    void truncate(long address) {
+        int segment = segmentIndex(address);
+        drop(segment + 1 - firstSegment, segments.size());
+        writeSegment = segment;
+        writeOffset = offset(address);
+    }
+
+    /**
+     * Releases the segments that only contain records preceding {@code address}.
+     */
+    void releaseBefore(long address) {
+        int segment = segmentIndex(address);
+        if(segment > firstSegment) {
+            drop(0, segment - firstSegment);
+            firstSegment = segment;
+        }
+    }
+
+    /**
+     * Discards all records and releases all segments.
+     */
+    void clear() {
+        drop(0, segments.size());
+        firstSegment = 0;
+        writeSegment = -1;
+        writeOffset = 0;
+    }
+
+    /**
+     * Returns an empty log with the same codec and segment storage as this one.
+     */
+    SegmentedLog<C> emptyCopy() {
+        return new SegmentedLog<>(codec, allocator, segmentSize);
+    }
+
+    // writes the length of a record of the given length and returns
+    // a buffer into which exactly length bytes of the record are to be written
+    private ByteBuffer reserve(int length) {
+        int recordSize = Integer.BYTES + length;
+        if(writeSegment < 0 || writeOffset + recordSize > segment(writeSegment).capacity()) {
+            newSegment(recordSize);
+        }
+
+        ByteBuffer segment = segment(writeSegment);
+        segment.putInt(writeOffset, length);
+        ByteBuffer out = segment.duplicate();
+        out.limit(writeOffset + recordSize);
+        out.position(writeOffset + Integer.BYTES);
+        return out;
+    }
+
+    // completes the record started by reserve(length) and returns its address
+    private long commit(int length) {
+        long address = address(writeSegment, writeOffset);
+        writeOffset += Integer.BYTES + length;
+        return address;
+    }
+
+    private void newSegment(int minSize) {
+        ByteBuffer segment;
+        try {
+            segment = allocator.allocate(Math.max(segmentSize, minSize));
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // the current segment may have been left empty by truncate()
+        if(writeSegment >= 0 && writeOffset == 0) {
+            allocator.release(segments.set(writeSegment - firstSegment, segment));
+        } else {
+            segments.add(segment);
+            writeSegment = firstSegment + segments.size() - 1;
+        }
+        writeOffset = 0;
+    }
+
+    private ByteBuffer segment(int index) {
+        return segments.get(index - firstSegment);
+    }
+
+    // removes segments.get(from) to segments.get(to - 1) and hands them back to the allocator
+    private void drop(int from, int to) {
+        List<ByteBuffer> dropped = segments.subList(from, to);
+        for(ByteBuffer segment: dropped) {
+            allocator.release(segment);
+        }
+        dropped.clear();
+    }
+
+    private static long address(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentIndex(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
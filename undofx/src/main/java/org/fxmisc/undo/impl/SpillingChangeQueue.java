@@ -0,0 +1,522 @@
+package org.fxmisc.undo.impl;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link ChangeQueue} with unlimited history that keeps only the most recent changes on the heap.
+ * Older changes are serialized by a {@link ChangeCodec} into append-only, memory-mapped segment
+ * files and are read back lazily when the current position moves into the spilled part of the
+ * history. When reading a spilled change, a few of the following changes (in the direction of
+ * movement) are decoded along with it.
+ *
+ * <p>A segment is dropped and its file deleted as soon as the queue no longer needs it: when the
+ * changes stored in it are forgotten or discarded, and when the queue is {@link #close() closed}.
+ * Where the platform allows it, the file is deleted right after it is mapped, so that it does not
+ * outlive the JVM. The mapping itself is released when it is garbage collected.</p>
+ *
+ * @param <C> the type of change
+ */
+public class SpillingChangeQueue<C> implements ChangeQueue<C> {
+
+    private class QueuePositionImpl implements QueuePosition {
+        private final int allTimePos;
+        private final long rev;
+
+        QueuePositionImpl(int allTimePos, long rev) {
+            this.allTimePos = allTimePos;
+            this.rev = rev;
+        }
+
+        @Override
+        public boolean isValid() {
+            int pos = allTimePos - forgottenCount;
+            if(0 <= pos && pos <= size()) {
+                return rev == revisionForPosition(pos);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(other instanceof SpillingChangeQueue.QueuePositionImpl) {
+                @SuppressWarnings("unchecked")
+                QueuePositionImpl otherPos = (QueuePositionImpl) other;
+                return getQueue() == otherPos.getQueue() && rev == otherPos.rev;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(rev);
+        }
+
+        private SpillingChangeQueue<C> getQueue() {
+            return SpillingChangeQueue.this;
+        }
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_READ_AHEAD = 8;
+
+    private final ChangeCodec<C> codec;
+    private SegmentedLog<C> log;
+    private final int readAhead;
+
+    // spilled changes occupy positions [0, spilledCount) and are stored
+    // in the log at addresses spilledAddresses[spilledStart + position]
+    private long[] spilledAddresses = new long[16];
+    private long[] spilledRevisions = new long[16];
+    private int spilledStart = 0;
+    private int spilledCount = 0;
+
+    // changes kept on heap occupy positions [spilledCount, spilledCount + hotSize)
+    // and are stored in ring buffers of changes and their revisions, the oldest one at index hotStart
+    private final Object[] hot;
+    private final long[] hotRevisions;
+    private int hotStart = 0;
+    private int hotSize = 0;
+
+    // spilled changes decoded recently, cache[i] is the change at position cacheStart + i
+    private final Object[] cache;
+    private int cacheStart = 0;
+    private int cacheSize = 0;
+
+    private int currentPosition = 0;
+
+    private long revision = 0;
+    private long zeroPositionRevision = revision;
+    private int forgottenCount = 0;
+
+    /**
+     * Creates a queue that keeps at most {@code inMemoryCapacity} changes on the heap
+     * and spills older changes to files in {@code directory}.
+     */
+    public SpillingChangeQueue(ChangeCodec<C> codec, int inMemoryCapacity, Path directory) {
+        this(codec, inMemoryCapacity, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * @param codec used to serialize spilled changes
+     * @param inMemoryCapacity maximum number of changes kept on the heap
+     * @param directory directory in which the segment files are created
+     * @param segmentSize size of a segment file in bytes. A change whose encoded size
+     *                    exceeds the segment size gets a segment of its own.
+     * @param readAhead number of additional changes decoded when reading a spilled change
+     */
+    public SpillingChangeQueue(ChangeCodec<C> codec, int inMemoryCapacity, Path directory, int segmentSize, int readAhead) {
+        if(inMemoryCapacity <= 0) {
+            throw new IllegalArgumentException("inMemoryCapacity must be positive");
+        }
+        if(readAhead < 0) {
+            throw new IllegalArgumentException("readAhead must not be negative");
+        }
+
+        this.codec = codec;
+        this.log = new SegmentedLog<>(codec, new SegmentFiles(directory), segmentSize);
+        this.readAhead = readAhead;
+        this.hot = new Object[inMemoryCapacity];
+        this.hotRevisions = new long[inMemoryCapacity];
+        this.cache = new Object[readAhead + 1];
+    }
+
+    @Override
+    public boolean hasNext() {
+        return currentPosition < size();
+    }
+
+    @Override
+    public boolean hasPrev() {
+        return currentPosition > 0;
+    }
+
+    @Override
+    public int prevCount() {
+        return currentPosition;
+    }
+
+    @Override
+    public C peekNext() {
+        if(currentPosition < size()) {
+            return fetch(currentPosition, true);
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public C next() {
+        C c = peekNext();
+        currentPosition += 1;
+        return c;
+    }
+
+    @Override
+    public C peekPrev() {
+        if(currentPosition > 0) {
+            return fetch(currentPosition - 1, false);
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public C prev() {
+        C c = peekPrev();
+        currentPosition -= 1;
+        return c;
+    }
+
+    @Override
+    public void forgetHistory() {
+        if(currentPosition == 0) {
+            return;
+        }
+
+        zeroPositionRevision = revisionForPosition(currentPosition);
+        if(currentPosition < spilledCount) {
+            spilledStart += currentPosition;
+            spilledCount -= currentPosition;
+            log.releaseBefore(spilledAddresses[spilledStart]);
+        } else {
+            int hotForgotten = currentPosition - spilledCount;
+            log.clear();
+            spilledStart = 0;
+            spilledCount = 0;
+            for(int i = 0; i < hotForgotten; ++i) {
+                hot[hotStart] = null;
+                hotStart = hotIndex(1);
+            }
+            hotSize -= hotForgotten;
+        }
+        forgottenCount += currentPosition;
+        currentPosition = 0;
+        clearCache();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The segment files holding the spilled changes are released.</p>
+     */
+    @Override
+    public void clear() {
+        int count = size();
+        zeroPositionRevision = revisionForPosition(count);
+        log.clear();
+        spilledAddresses = new long[16];
+        spilledRevisions = new long[16];
+        spilledStart = 0;
+        spilledCount = 0;
+        Arrays.fill(hot, null);
+        hotStart = 0;
+        hotSize = 0;
+        forgottenCount += count;
+        currentPosition = 0;
+        clearCache();
+    }
+
+    @Override
+    @SafeVarargs
+    public final void push(C... changes) {
+        // discard the changes ahead of the current position
+        if(currentPosition < spilledCount) {
+            log.truncate(spilledAddresses[spilledStart + currentPosition]);
+            spilledCount = currentPosition;
+            hotSize = 0;
+            Arrays.fill(hot, null);
+            clearCache();
+        } else {
+            while(spilledCount + hotSize > currentPosition) {
+                hot[hotIndex(--hotSize)] = null;
+            }
+        }
+
+        for(C c: changes) {
+            if(hotSize == hot.length) {
+                spillOldest();
+            }
+            int i = hotIndex(hotSize++);
+            hot[i] = c;
+            hotRevisions[i] = ++revision;
+        }
+        currentPosition = size();
+    }
+
+    @Override
+    public QueuePosition getCurrentPosition() {
+        return new QueuePositionImpl(forgottenCount + currentPosition, revisionForPosition(currentPosition));
+    }
+
+    @Override
+    public long getCurrentRevision() {
+        return revisionForPosition(currentPosition);
+    }
+
+    @Override
+    public int distanceTo(QueuePosition position) {
+        QueuePositionImpl pos = ownPosition(position);
+        return pos.isValid() ? pos.allTimePos - forgottenCount - currentPosition : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If {@code codec} is the codec this queue was created with,
+     * spilled changes are copied to the channel without being decoded.</p>
+     */
+    @Override
+    public void save(WritableByteChannel channel, ChangeCodec<? super C> codec, QueuePosition mark) throws IOException {
+        QueuePositionImpl markPos = ownPosition(mark);
+        HistoryFormat.Writer<C> writer = new HistoryFormat.Writer<>(channel, codec);
+        writer.writeHeader(new HistoryFormat.Header(forgottenCount, size(), currentPosition,
+                revision, zeroPositionRevision, markPos.allTimePos, markPos.rev));
+        for(int i = 0; i < spilledCount; ++i) {
+            long address = spilledAddresses[spilledStart + i];
+            long rev = spilledRevisions[spilledStart + i];
+            if(codec == this.codec) {
+                writer.writeEncodedChange(log.record(address), rev);
+            } else {
+                writer.writeChange(log.read(address), rev);
+            }
+        }
+        for(int i = 0; i < hotSize; ++i) {
+            writer.writeChange(hotChange(i), hotRevisions[hotIndex(i)]);
+        }
+        writer.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The most recent restored changes are kept on the heap, the older ones are
+     * spilled right away. If {@code codec} is the codec this queue was created with,
+     * spilled changes are copied from the channel without being decoded.</p>
+     */
+    @Override
+    public QueuePosition restore(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        HistoryFormat.Reader<C> reader = new HistoryFormat.Reader<>(channel, codec);
+        HistoryFormat.Header header = reader.readHeader();
+        int restoredSpilledCount = Math.max(0, header.size - hot.length);
+        int restoredHotSize = header.size - restoredSpilledCount;
+
+        // spill into a fresh log, so that this queue is left unchanged if reading fails
+        SegmentedLog<C> restoredLog = log.emptyCopy();
+        int length = 16;
+        while(length < restoredSpilledCount) {
+            length *= 2;
+        }
+        long[] restoredAddresses = new long[length];
+        long[] restoredRevisions = new long[length];
+        Object[] restoredHot = new Object[restoredHotSize];
+        long[] restoredHotRevisions = new long[restoredHotSize];
+        try {
+            for(int i = 0; i < restoredSpilledCount; ++i) {
+                restoredAddresses[i] = codec == this.codec
+                        ? restoredLog.appendEncoded(reader.readEncodedChange())
+                        : restoredLog.append(reader.readChange());
+                restoredRevisions[i] = reader.lastRevision();
+            }
+            for(int i = 0; i < restoredHotSize; ++i) {
+                C c = reader.readChange();
+                restoredHot[i] = c;
+                restoredHotRevisions[i] = reader.lastRevision();
+            }
+        } catch(IOException | RuntimeException e) {
+            restoredLog.clear();
+            throw e;
+        }
+
+        log.clear();
+        log = restoredLog;
+        spilledAddresses = restoredAddresses;
+        spilledRevisions = restoredRevisions;
+        spilledStart = 0;
+        spilledCount = restoredSpilledCount;
+        Arrays.fill(hot, null);
+        System.arraycopy(restoredHot, 0, hot, 0, restoredHotSize);
+        System.arraycopy(restoredHotRevisions, 0, hotRevisions, 0, restoredHotSize);
+        hotStart = 0;
+        hotSize = restoredHotSize;
+        clearCache();
+        currentPosition = header.currentPosition;
+        revision = header.revision;
+        zeroPositionRevision = header.zeroPositionRevision;
+        forgottenCount = header.forgottenCount;
+        return new QueuePositionImpl(header.markPosition, header.markRevision);
+    }
+
+    /**
+     * Discards all changes and releases the segment files.
+     * This queue must not be used after it has been closed.
+     */
+    @Override
+    public void close() {
+        log.clear();
+        Arrays.fill(hot, null);
+        clearCache();
+    }
+
+    private QueuePositionImpl ownPosition(QueuePosition pos) {
+        if(pos instanceof SpillingChangeQueue.QueuePositionImpl) {
+            @SuppressWarnings("unchecked")
+            QueuePositionImpl ownPos = (QueuePositionImpl) pos;
+            if(ownPos.getQueue() == this) {
+                return ownPos;
+            }
+        }
+        throw new IllegalArgumentException("Position does not belong to this queue: " + pos);
+    }
+
+    private int size() {
+        return spilledCount + hotSize;
+    }
+
+    private void spillOldest() {
+        long address = log.append(hotChange(0));
+
+        int i = spilledStart + spilledCount;
+        if(i == spilledAddresses.length) {
+            compactSpilledIndex();
+            i = spilledStart + spilledCount;
+        }
+        spilledAddresses[i] = address;
+        spilledRevisions[i] = hotRevisions[hotStart];
+        spilledCount += 1;
+
+        hot[hotStart] = null;
+        hotStart = hotIndex(1);
+        hotSize -= 1;
+    }
+
+    // makes room at the end of the spilled index, either by moving
+    // the live part to the beginning or by growing the arrays
+    private void compactSpilledIndex() {
+        if(spilledStart > spilledAddresses.length / 2) {
+            System.arraycopy(spilledAddresses, spilledStart, spilledAddresses, 0, spilledCount);
+            System.arraycopy(spilledRevisions, spilledStart, spilledRevisions, 0, spilledCount);
+        } else {
+            int newLength = spilledAddresses.length * 2;
+            long[] newAddresses = new long[newLength];
+            long[] newRevisions = new long[newLength];
+            System.arraycopy(spilledAddresses, spilledStart, newAddresses, 0, spilledCount);
+            System.arraycopy(spilledRevisions, spilledStart, newRevisions, 0, spilledCount);
+            spilledAddresses = newAddresses;
+            spilledRevisions = newRevisions;
+        }
+        spilledStart = 0;
+    }
+
+    private long revisionForPosition(int position) {
+        if(position == 0) {
+            return zeroPositionRevision;
+        } else if(position <= spilledCount) {
+            return spilledRevisions[spilledStart + position - 1];
+        } else {
+            return hotRevisions[hotIndex(position - 1 - spilledCount)];
+        }
+    }
+
+    private C fetch(int position, boolean forward) {
+        if(position >= spilledCount) {
+            return hotChange(position - spilledCount);
+        }
+
+        if(position < cacheStart || position >= cacheStart + cacheSize) {
+            // decode the requested change and a few more in the direction of movement
+            int from = forward ? position : Math.max(0, position - readAhead);
+            int to = forward ? Math.min(spilledCount, position + readAhead + 1) : position + 1;
+            for(int pos = from; pos < to; ++pos) {
+                cache[pos - from] = log.read(spilledAddresses[spilledStart + pos]);
+            }
+            if(cacheSize > to - from) {
+                Arrays.fill(cache, to - from, cacheSize, null);
+            }
+            cacheStart = from;
+            cacheSize = to - from;
+        }
+
+        @SuppressWarnings("unchecked")
+        C c = (C) cache[position - cacheStart];
+        return c;
+    }
+
+    private void clearCache() {
+        Arrays.fill(cache, 0, cacheSize, null);
+        cacheSize = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private C hotChange(int hotPosition) {
+        return (C) hot[hotIndex(hotPosition)];
+    }
+
+    // returns an index into the hot ring buffers
+    private int hotIndex(int hotPosition) {
+        return (hotStart + hotPosition) % hot.length;
+    }
+
+    /**
+     * Maps segments to temporary files and deletes the files on release. The mappings are
+     * released when garbage collected, so that a buffer still referenced after its release
+     * stays readable.
+     */
+    private static final class SegmentFiles implements SegmentedLog.SegmentAllocator {
+        private final Path directory;
+
+        // files that could not be deleted while mapped
+        private final Map<ByteBuffer, Path> undeletedFiles = new IdentityHashMap<>();
+
+        SegmentFiles(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public ByteBuffer allocate(int size) throws IOException {
+            Path file = Files.createTempFile(directory, "undofx-", ".segment");
+            ByteBuffer segment;
+            try(FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+                segment = channel.map(MapMode.READ_WRITE, 0, size);
+            } catch(IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+
+            try {
+                Files.delete(file);
+            } catch(IOException e) {
+                // e.g. on Windows, a mapped file cannot be deleted
+                undeletedFiles.put(segment, file);
+            }
+            return segment;
+        }
+
+        @Override
+        public void release(ByteBuffer segment) {
+            Path file = undeletedFiles.remove(segment);
+            if(file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch(IOException e) {
+                    // still mapped until garbage collected
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+    }
+}
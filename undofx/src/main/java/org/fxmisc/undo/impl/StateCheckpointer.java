@@ -0,0 +1,27 @@
+package org.fxmisc.undo.impl;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Captures and restores snapshots of the state of the undoable model. Enables
+ * {@link UndoManagerImpl} to jump to a distant position in its history by restoring
+ * a nearby snapshot and applying only the changes between the snapshot and the target
+ * position. See {@link UndoManagerImpl#enableCheckpoints(StateCheckpointer, int)}.
+ *
+ * @param <S> the type of snapshot
+ */
+public interface StateCheckpointer<S> {
+
+    /**
+     * Captures a snapshot of the current state. The snapshot may be completed
+     * asynchronously, but it has to reflect the state at the time of this call.
+     * Until the returned stage completes, the snapshot is not used.
+     */
+    CompletionStage<S> capture();
+
+    /**
+     * Restores the model to the state of {@code snapshot}. Changes emitted
+     * by the model while restoring are not recorded in the history.
+     */
+    void restore(S snapshot);
+}
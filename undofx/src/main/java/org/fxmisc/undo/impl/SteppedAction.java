@@ -0,0 +1,83 @@
+package org.fxmisc.undo.impl;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.DoubleConsumer;
+import java.util.function.Function;
+
+/**
+ * Undo or redo whose change is split into steps that are applied on the owner thread, as many
+ * as fit in a time slice at a time. The history moves only once all the steps have been applied.
+ * If a step fails, the steps applied before it are reverted.
+ *
+ * @param <C> the type of change
+ */
+class SteppedAction<C> extends AsyncAction<C> implements Runnable {
+    private final List<? extends C> steps;
+    private final Function<? super C, ? extends C> invert;
+    private final long sliceNanos;
+    private final Executor owner;
+    private final DoubleConsumer progress;
+    private int applied = 0;
+
+    SteppedAction(UndoManagerImpl<C> manager, ChangeQueue<C> queue, C change, boolean undo,
+                  List<? extends C> steps, Function<? super C, ? extends C> invert,
+                  long sliceNanos, Executor owner, DoubleConsumer progress) {
+        super(manager, queue, change, undo);
+        this.steps = steps;
+        this.invert = invert;
+        this.sliceNanos = sliceNanos;
+        this.owner = owner;
+        this.progress = progress;
+    }
+
+    @Override
+    void changeReceived() {
+        // the steps are applied synchronously, each one is checked by performChange
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            while(applied < steps.size()) {
+                manager.performChange(steps.get(applied));
+                applied += 1;
+                if(System.nanoTime() - start >= sliceNanos) {
+                    break;
+                }
+            }
+        } catch(RuntimeException e) {
+            rollBack(e);
+            fail(e);
+            return;
+        }
+
+        progress.accept((double) applied / steps.size());
+        if(applied < steps.size()) {
+            owner.execute(this);
+        } else {
+            if(undo) {
+                queue.prev();
+            } else {
+                queue.next();
+            }
+            manager.invalidateProperties();
+            complete();
+        }
+    }
+
+    // applies the inverses of the applied steps in reverse order;
+    // if that fails too, the failure is added to the original one
+    private void rollBack(RuntimeException failure) {
+        try {
+            while(applied > 0) {
+                manager.performChange(invert.apply(steps.get(applied - 1)));
+                applied -= 1;
+            }
+        } catch(RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+        progress.accept((double) applied / steps.size());
+    }
+}
@@ -0,0 +1,93 @@
+package org.fxmisc.undo.impl;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link ChangeQueue} whose history is bounded by the age of the stored changes. Whenever a change
+ * is pushed, the changes that were pushed longer than the maximum age ago are forgotten, so no timer
+ * is needed. The most recent change is always retained.
+ *
+ * @param <C> the type of change
+ */
+public class TimeBoundedChangeQueue<C> extends RingBufferChangeQueue<C> {
+
+    private static final long[] NO_TIMESTAMPS = new long[0];
+
+    private final long maxAgeNanos;
+    private final LongSupplier nanoClock;
+
+    // the times at which the changes were pushed, indexed like the changes
+    private long[] timestamps = NO_TIMESTAMPS;
+
+    /**
+     * @param maxAge changes pushed longer than {@code maxAge} ago are forgotten
+     */
+    public TimeBoundedChangeQueue(Duration maxAge) {
+        this(maxAge, System::nanoTime);
+    }
+
+    /**
+     * @param maxAge changes pushed longer than {@code maxAge} ago are forgotten
+     * @param nanoClock source of the current time in nanoseconds, like {@link System#nanoTime()}
+     */
+    TimeBoundedChangeQueue(Duration maxAge, LongSupplier nanoClock) {
+        if(maxAge.isZero() || maxAge.isNegative()) {
+            throw new IllegalArgumentException("maxAge must be positive");
+        }
+
+        this.maxAgeNanos = maxAge.toNanos();
+        this.nanoClock = nanoClock;
+    }
+
+    public Duration getMaxAge() {
+        return Duration.ofNanos(maxAgeNanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The saved history does not include the times at which the changes were pushed,
+     * so the restored changes age as if they had been pushed at the time of restoring.</p>
+     */
+    @Override
+    public QueuePosition restore(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        return super.restore(channel, codec);
+    }
+
+    // the changes older than the maximum age at the time of the last push, except for the most recent one;
+    // timestamps increase from the oldest change, so only the oldest changes are checked
+    @Override
+    int evictionCount() {
+        int size = size();
+        if(size == 0) {
+            return 0;
+        }
+        long now = timestamps[arrayIndex(size - 1)];
+        int limit = Math.min(prevCount(), size - 1);
+        int count = 0;
+        while(count < limit && now - timestamps[arrayIndex(count)] > maxAgeNanos) {
+            count += 1;
+        }
+        return count;
+    }
+
+    @Override
+    void stored(int i, C change) {
+        timestamps[i] = nanoClock.getAsLong();
+    }
+
+    @Override
+    void resizing(int newLength) {
+        timestamps = resized(timestamps, newLength);
+    }
+
+    @Override
+    void rebuilt(int length) {
+        timestamps = new long[length];
+        Arrays.fill(timestamps, 0, size(), nanoClock.getAsLong());
+    }
+}
@@ -0,0 +1,84 @@
+package org.fxmisc.undo.impl;
+
+/**
+ * Receives events describing the work of an {@link UndoManagerImpl}, for monitoring.
+ * See {@link UndoManagerImpl#setInstrumentation(UndoInstrumentation)}. The methods
+ * do nothing by default. They are called on the thread that owns the undo manager, except
+ * {@link #applyStarting(Object)} and {@link #applyTimed(Object, long, Object)} for the change
+ * of {@link UndoManagerImpl#undoAsync(java.util.concurrent.Executor, java.util.concurrent.Executor) undoAsync}
+ * or {@code redoAsync}, which are called on the executor thread that applies it. Implementations
+ * used with asynchronous undo and redo must therefore be thread-safe.
+ * {@link UndoStatistics} aggregates the events and exposes them via JMX.
+ */
+public interface UndoInstrumentation {
+
+    /**
+     * Instrumentation that ignores all events. Undo managers use it by default;
+     * with it, the undo manager does not measure any latencies.
+     */
+    UndoInstrumentation NONE = new UndoInstrumentation() {};
+
+    /** A change has been recorded as a new history entry. */
+    default void changeRecorded() {}
+
+    /**
+     * A change has been offered to the merge function together with the previous entry.
+     *
+     * @param merged whether the merge function merged the changes
+     */
+    default void mergeAttempted(boolean merged) {}
+
+    /** An identity change has been observed, or a merge has resulted in an identity, and was not recorded. */
+    default void identityDropped() {}
+
+    /** The queue has forgotten {@code count} of its oldest entries to stay within its bounds. */
+    default void changesEvicted(int count) {}
+
+    /** {@link UndoManagerImpl#forgetHistory()} has been called. */
+    default void historyForgotten() {}
+
+    /** The history has changed; {@code undoDepth} entries can now be undone. */
+    default void historyChanged(int undoDepth) {}
+
+    /**
+     * {@code change} is about to be applied. Always followed by {@link #applyTimed(Object, long, Object)}
+     * on the same thread, which receives the returned object, e.g. an event begun for this call.
+     * Returns {@code null} by default.
+     */
+    default Object applyStarting(Object change) { return null; }
+
+    /**
+     * Applying {@code change} took {@code nanos} nanoseconds, whether or not it succeeded.
+     *
+     * @param started the object returned by {@link #applyStarting(Object)} for this call
+     */
+    default void applyTimed(Object change, long nanos, Object started) {}
+
+    /**
+     * {@code change} is about to be inverted. Always followed by {@link #invertTimed(Object, long, Object)}
+     * on the same thread, which receives the returned object. Returns {@code null} by default.
+     */
+    default Object invertStarting(Object change) { return null; }
+
+    /**
+     * Inverting {@code change} took {@code nanos} nanoseconds, whether or not it succeeded.
+     *
+     * @param started the object returned by {@link #invertStarting(Object)} for this call
+     */
+    default void invertTimed(Object change, long nanos, Object started) {}
+
+    /**
+     * {@code change} is about to be merged into {@code prev}. Always followed by
+     * {@link #mergeTimed(Object, Object, boolean, long, Object)} on the same thread,
+     * which receives the returned object. Returns {@code null} by default.
+     */
+    default Object mergeStarting(Object prev, Object change) { return null; }
+
+    /**
+     * Merging {@code change} into {@code prev} took {@code nanos} nanoseconds.
+     *
+     * @param merged whether the merge function merged the changes; {@code false} if it failed
+     * @param started the object returned by {@link #mergeStarting(Object, Object)} for this call
+     */
+    default void mergeTimed(Object prev, Object change, boolean merged, long nanos, Object started) {}
+}
@@ -1,13 +1,26 @@
 package org.fxmisc.undo.impl;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import javafx.application.Platform;
 import javafx.beans.binding.BooleanBinding;
 import javafx.beans.value.ObservableBooleanValue;
 
@@ -15,6 +28,7 @@ import org.fxmisc.undo.UndoManager;
 import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
 import org.reactfx.EventSource;
 import org.reactfx.EventStream;
+import org.reactfx.Guard;
 import org.reactfx.Subscription;
 import org.reactfx.SuspendableNo;
 import org.reactfx.value.Val;
@@ -30,6 +44,7 @@ public class UndoManagerImpl<C> implements UndoManager<C> {
 
     private class UndoPositionImpl implements UndoPosition {
         private final QueuePosition queuePos;
+        private final int generation = historyGeneration;
 
         UndoPositionImpl(QueuePosition queuePos) {
             this.queuePos = queuePos;
@@ -37,50 +52,193 @@ public class UndoManagerImpl<C> implements UndoManager<C> {
 
         @Override
         public void mark() {
+            ensureRehydrated();
             mark = queuePos;
             canMerge = false;
-            atMarkedPosition.invalidate();
+            if(atMarkedPosition != null) {
+                atMarkedPosition.invalidate();
+            }
         }
 
         @Override
         public boolean isValid() {
-            return queuePos.isValid();
+            ensureRehydrated();
+            return generation == historyGeneration && queuePos.isValid();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(other instanceof UndoManagerImpl.UndoPositionImpl) {
+                UndoManagerImpl<?>.UndoPositionImpl otherPos = (UndoManagerImpl<?>.UndoPositionImpl) other;
+                return getManager() == otherPos.getManager() && generation == otherPos.generation
+                        && queuePos.equals(otherPos.queuePos);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return queuePos.hashCode();
+        }
+
+        private UndoManagerImpl<C> getManager() {
+            return UndoManagerImpl.this;
         }
     }
 
+    private static final int DEFAULT_MAX_SNAPSHOTS = 32;
+
     private final ChangeQueue<C> queue;
-    private final Function<? super C, ? extends C> invert;
-    private final Consumer<C> apply;
-    private final BiFunction<C, C, Optional<C>> merge;
+
+    // incremented when the history is replaced by restoreHistory, which invalidates the positions handed out
+    private int historyGeneration = 0;
     private final Predicate<C> isIdentity;
+    private final EventStream<C> changeSource;
+
+    // invert, apply and merge, measured while instrumentation is enabled
+    private final InstrumentedFunctions<C> functions;
     private final Subscription subscription;
-    private final SuspendableNo performingAction = new SuspendableNo();
 
-    private final EventSource<Void> invalidationRequests = new EventSource<Void>();
+    // the observable state is created on first access, so that an undo manager
+    // whose properties are never observed costs little more than its queue
+    private SuspendableNo performingAction = null;
+
+    // emits whether the properties are to be invalidated only if their value changed;
+    // created with the first property that observes it
+    private EventSource<Boolean> invalidationRequests = null;
+
+    private Val<C> nextUndo = null;
+    private Val<C> nextRedo = null;
+    private BooleanBinding atMarkedPosition = null;
+
+    private SuspendableNo performingAction() {
+        if(performingAction == null) {
+            performingAction = new SuspendableNo();
+        }
+        return performingAction;
+    }
+
+    private EventSource<Boolean> invalidationRequests() {
+        if(invalidationRequests == null) {
+            invalidationRequests = new EventSource<>();
+        }
+        return invalidationRequests;
+    }
+
+    private Val<C> nextUndo() {
+        if(nextUndo == null) {
+            nextUndo = new AdjacentChangeVal() {
+                @Override C current() { return peekNextUndo(); }
+            };
+        }
+        return nextUndo;
+    }
+
+    private Val<C> nextRedo() {
+        if(nextRedo == null) {
+            nextRedo = new AdjacentChangeVal() {
+                @Override C current() { return peekNextRedo(); }
+            };
+        }
+        return nextRedo;
+    }
+
+    private BooleanBinding atMarkedPosition() {
+        if(atMarkedPosition == null) {
+            atMarkedPosition = new BooleanBinding() {
+                private boolean value;
+
+                {
+                    invalidationRequests().addObserver(onlyIfChanged -> {
+                        if(!onlyIfChanged || value != isQueueAtMark()) {
+                            this.invalidate();
+                        }
+                    });
+                }
 
-    private final Val<C> nextUndo = new ValBase<C>() {
-        @Override protected Subscription connect() { return invalidationRequests.subscribe(x -> invalidate()); }
-        @Override protected C computeValue() { return queue.hasPrev() ? queue.peekPrev() : null; }
-    };
+                @Override
+                protected boolean computeValue() {
+                    value = isQueueAtMark();
+                    return value;
+                }
+            };
+        }
+        return atMarkedPosition;
+    }
 
-    private final Val<C> nextRedo = new ValBase<C>() {
-        @Override protected Subscription connect() { return invalidationRequests.subscribe(x -> invalidate()); }
-        @Override protected C computeValue() { return queue.hasNext() ? queue.peekNext() : null; }
-    };
+    // The getters read the properties, if they exist, so that a property read through a getter
+    // becomes valid again and is invalidated by the next change, as in an undo manager without
+    // deferred invalidation. While an invalidation is pending, the properties may be stale, and
+    // the getters read the queue instead; the invalidation is left to flushInvalidations(),
+    // rather than delivered from within a getter.
 
-    private final BooleanBinding atMarkedPosition = new BooleanBinding() {
-        { invalidationRequests.addObserver(x -> this.invalidate()); }
+    private C peekNextUndo() {
+        ensureRehydrated();
+        return queue.hasPrev() ? queue.peekPrev() : null;
+    }
+
+    private C peekNextRedo() {
+        ensureRehydrated();
+        return queue.hasNext() ? queue.peekNext() : null;
+    }
+
+    /**
+     * Change adjacent to the current position. When invalidations are deferred,
+     * it is only invalidated if a different change has become adjacent.
+     */
+    private abstract class AdjacentChangeVal extends ValBase<C> {
+        private C value;
+
+        abstract C current();
+
+        @Override
+        protected Subscription connect() {
+            return invalidationRequests().subscribe(onlyIfChanged -> {
+                if(!onlyIfChanged || current() != value) {
+                    invalidate();
+                }
+            });
+        }
 
         @Override
-        protected boolean computeValue() {
-            return mark.equals(queue.getCurrentPosition());
+        protected C computeValue() {
+            value = current();
+            return value;
         }
-    };
+    }
+
+    private InvalidationMode invalidationMode = InvalidationMode.IMMEDIATE;
+    private boolean invalidationPending = false;
 
     private boolean canMerge;
     private QueuePosition mark;
     private C expectedChange = null;
 
+    // changes observed during the current transaction, null if there is no transaction in progress
+    private List<C> transaction = null;
+
+    // combines the changes of the current transaction that do not merge, null if not given
+    private Function<? super List<C>, ? extends C> transactionCombiner = null;
+
+    // the asynchronous undo or redo in progress, if any
+    private AsyncAction<C> asyncAction = null;
+
+    private HistoryListener historyListener = null;
+
+    // file holding the history while this undo manager is hibernated, null otherwise
+    private HibernatedHistory<C> hibernated = null;
+
+    private Checkpoints<C, ?> checkpoints = null;
+    private boolean restoringSnapshot = false;
+
+    // keeps the positions handed out by getCurrentPosition(), which compaction must not squash
+    private final HistoryCompaction<C> compaction;
+
+    // changes recorded from a ConcurrentChangeBuffer, and whether it is being drained
+    private Subscription bufferedChanges = Subscription.EMPTY;
+    private boolean drainingBuffer = false;
+
     public UndoManagerImpl(
             ChangeQueue<C> queue,
             Function<? super C, ? extends C> invert,
@@ -100,10 +258,10 @@ public class UndoManagerImpl<C> implements UndoManager<C> {
             EventStream<C> changeSource,
             Duration preventMergeDelay) {
         this.queue = queue;
-        this.invert = invert;
-        this.apply = apply;
-        this.merge = merge;
         this.isIdentity = isIdentity;
+        this.changeSource = changeSource;
+        this.functions = new InstrumentedFunctions<>(invert, apply, merge);
+        this.compaction = new HistoryCompaction<>(queue);
         this.mark = queue.getCurrentPosition();
 
         Subscription mainSub = changeSource.subscribe(this::changeObserved);
@@ -119,11 +277,21 @@ public class UndoManagerImpl<C> implements UndoManager<C> {
     @Override
     public void close() {
         subscription.unsubscribe();
+        compaction.disableIdleCompaction();
+        bufferedChanges.unsubscribe();
+        queue.close();
+        if(hibernated != null) {
+            try {
+                hibernated.delete();
+            } catch(IOException e) {
+                // the history is discarded anyway
+            }
+        }
     }
 
     @Override
     public boolean undo() {
-        return applyChange(isUndoAvailable(), () -> invert.apply(queue.prev()));
+        return applyChange(isUndoAvailable(), () -> queue.prevInverse(functions.invert()));
     }
 
     @Override
@@ -131,61 +299,245 @@ public class UndoManagerImpl<C> implements UndoManager<C> {
         return applyChange(isRedoAvailable(), queue::next);
     }
 
+    /**
+     * Like {@link #undo()}, but applies the change on {@code executor}, rather than on the
+     * calling thread, and emits failures on the JavaFX application thread.
+     *
+     * @see #undoAsync(Executor, Executor)
+     */
+    public CompletableFuture<Boolean> undoAsync(Executor executor) {
+        return undoAsync(executor, Platform::runLater);
+    }
+
+    /**
+     * Like {@link #undo()}, but applies the change on {@code executor}, rather than on the
+     * calling thread, so that a change that is expensive to apply does not block the thread
+     * that owns this undo manager. The history moves to the previous position right away.
+     * Until the applied change is received back from the change stream on the owner thread,
+     * {@link #performingActionProperty()} is {@code true} and undo and redo are rejected
+     * with an {@link IllegalStateException}.
+     *
+     * <p>The returned future completes with {@code true} on the owner thread once the applied
+     * change has been received, or with {@code false} right away if there was nothing to undo.
+     * If {@code apply} throws, the history moves back to where it was and the future completes
+     * exceptionally. Like {@link #undo()}, it completes with an {@link IllegalStateException} if
+     * the change has not been received by the time {@code owner} runs a task submitted after
+     * {@code apply} returned. {@code apply} must not emit the change on the thread it runs on,
+     * but on the owner thread, e.g. through {@code owner}; a change emitted on any other thread
+     * while the undo is in progress is rejected with an {@link IllegalStateException}.</p>
+     *
+     * <p>The {@link UndoInstrumentation#applyStarting(Object) applyStarting} and
+     * {@link UndoInstrumentation#applyTimed(Object, long, Object) applyTimed} events of the
+     * change are reported on the {@code executor} thread, to the instrumentation that was set
+     * when this method was called.</p>
+     *
+     * @param executor runs {@code apply}
+     * @param owner executes tasks on the thread that owns this undo manager
+     */
+    public CompletableFuture<Boolean> undoAsync(Executor executor, Executor owner) {
+        checkCanUndoOrRedo();
+        return applyChangeAsync(true, isUndoAvailable(), () -> queue.prevInverse(functions.invert()), executor, owner);
+    }
+
+    /**
+     * Like {@link #redo()}, but applies the change on {@code executor}, rather than on the
+     * calling thread, and emits failures on the JavaFX application thread.
+     *
+     * @see #redoAsync(Executor, Executor)
+     */
+    public CompletableFuture<Boolean> redoAsync(Executor executor) {
+        return redoAsync(executor, Platform::runLater);
+    }
+
+    /**
+     * Like {@link #redo()}, but applies the change on {@code executor}. See
+     * {@link #undoAsync(Executor, Executor)} for details.
+     *
+     * @param executor runs {@code apply}
+     * @param owner executes tasks on the thread that owns this undo manager
+     */
+    public CompletableFuture<Boolean> redoAsync(Executor executor, Executor owner) {
+        checkCanUndoOrRedo();
+        return applyChangeAsync(false, isRedoAvailable(), queue::next, executor, owner);
+    }
+
+    @Override
+    public boolean undoTo(UndoPosition position) {
+        checkCanUndoOrRedo();
+        QueuePosition target = queuePosition(position);
+        int distance = target != null ? queue.distanceTo(target) : 0;
+        return distance < 0 && jump(distance);
+    }
+
+    @Override
+    public boolean redoTo(UndoPosition position) {
+        checkCanUndoOrRedo();
+        QueuePosition target = queuePosition(position);
+        int distance = target != null ? queue.distanceTo(target) : 0;
+        return distance > 0 && jump(distance);
+    }
+
+    @Override
+    public void beginTransaction() {
+        beginTransaction(null);
+    }
+
+    @Override
+    public void beginTransaction(Function<? super List<C>, ? extends C> combiner) {
+        if(transaction != null) {
+            throw new IllegalStateException("A transaction is already in progress");
+        }
+        transaction = new ArrayList<>();
+        transactionCombiner = combiner;
+    }
+
+    @Override
+    public void commit() {
+        Function<? super List<C>, ? extends C> combiner = transactionCombiner;
+        List<C> changes = endTransaction();
+        if(changes.isEmpty()) {
+            return;
+        }
+        ensureRehydrated();
+
+        List<C> composed = compose(changes);
+        C entry;
+        if(composed.isEmpty()) {
+            entry = null;
+        } else if(composed.size() == 1) {
+            entry = composed.get(0);
+        } else if(combiner != null) {
+            entry = combiner.apply(composed);
+        } else {
+            // keep the transaction open, so that the caller can roll it back
+            transaction = changes;
+            throw new IllegalStateException("The " + changes.size() + " changes of the transaction"
+                    + " cannot be merged into a single history entry; begin the transaction with a combiner"
+                    + " or roll it back");
+        }
+
+        canMerge = false;
+        if(entry != null && !isIdentity.test(entry)) {
+            pushEntry(entry);
+            invalidateProperties();
+        }
+    }
+
+    @Override
+    public void rollback() {
+        List<C> changes = endTransaction();
+        if(changes.isEmpty()) {
+            return;
+        }
+
+        List<C> inverses = new ArrayList<>(changes.size());
+        for(int i = changes.size() - 1; i >= 0; --i) {
+            inverses.add(functions.invert(changes.get(i)));
+        }
+        List<C> composed = compose(inverses);
+        performingAction().suspendWhile(() -> {
+            for(C change: composed) {
+                performChange(change);
+            }
+        });
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return transaction != null;
+    }
+
     @Override
     public Val<C> nextUndoProperty() {
-        return nextUndo;
+        return nextUndo();
     }
 
     @Override
     public Val<C> nextRedoProperty() {
-        return nextRedo;
+        return nextRedo();
+    }
+
+    @Override
+    public C getNextUndo() {
+        return nextUndo != null && !invalidationPending ? nextUndo.getValue() : peekNextUndo();
+    }
+
+    @Override
+    public C getNextRedo() {
+        return nextRedo != null && !invalidationPending ? nextRedo.getValue() : peekNextRedo();
     }
 
     @Override
     public boolean isUndoAvailable() {
-        return nextUndo.isPresent();
+        ensureRehydrated();
+        return nextUndo != null && !invalidationPending ? nextUndo.isPresent() : queue.hasPrev();
     }
 
     @Override
     public Val<Boolean> undoAvailableProperty() {
-        return nextUndo.map(c -> true).orElseConst(false);
+        return nextUndo().map(c -> true).orElseConst(false);
     }
 
     @Override
     public boolean isRedoAvailable() {
-        return nextRedo.isPresent();
+        ensureRehydrated();
+        return nextRedo != null && !invalidationPending ? nextRedo.isPresent() : queue.hasNext();
     }
 
     @Override
     public Val<Boolean> redoAvailableProperty() {
-        return nextRedo.map(c -> true).orElseConst(false);
+        return nextRedo().map(c -> true).orElseConst(false);
     }
 
     @Override
     public boolean isPerformingAction() {
-        return performingAction.get();
+        return performingAction != null && performingAction.get();
     }
 
     @Override
     public ObservableBooleanValue performingActionProperty() {
-        return performingAction;
+        return performingAction();
     }
 
     @Override
     public boolean isAtMarkedPosition() {
-        return atMarkedPosition.get();
+        return atMarkedPosition != null && !invalidationPending ? atMarkedPosition.get() : isQueueAtMark();
     }
 
     @Override
     public ObservableBooleanValue atMarkedPositionProperty() {
-        return atMarkedPosition;
+        return atMarkedPosition();
     }
 
     @Override
     public UndoPosition getCurrentPosition() {
+        ensureRehydrated();
         return new UndoPositionImpl(queue.getCurrentPosition());
     }
 
+    /**
+     * Keeps {@link #compactHistory(int)} from merging entries across {@code position}, so that
+     * it stays valid, until it is {@link #releasePosition(UndoPosition) released}. A position
+     * retained several times has to be released as many times. Positions that are not retained,
+     * other than the marked position, may become invalid when the history is compacted.
+     */
+    public void retainPosition(UndoPosition position) {
+        QueuePosition pos = queuePosition(position);
+        if(pos != null) {
+            compaction.retain(pos);
+        }
+    }
+
+    /**
+     * Releases {@code position}, retained by {@link #retainPosition(UndoPosition)}.
+     */
+    public void releasePosition(UndoPosition position) {
+        QueuePosition pos = queuePosition(position);
+        if(pos != null) {
+            compaction.release(pos);
+        }
+    }
+
     @Override
     public void preventMerge() {
         canMerge = false;
@@ -193,7 +545,416 @@ public class UndoManagerImpl<C> implements UndoManager<C> {
 
     @Override
     public void forgetHistory() {
+        ensureRehydrated();
         queue.forgetHistory();
+        if(checkpoints != null) {
+            checkpoints.prune();
+        }
+        functions.instrumentation().historyForgotten();
+        invalidateProperties();
+    }
+
+    /**
+     * Starts capturing snapshots of the model every {@code interval} history entries.
+     * When jumping more than {@code interval} entries, {@link #undoTo(UndoPosition)} and
+     * {@link #redoTo(UndoPosition)} then restore the snapshot closest to the target position
+     * and apply only the changes between the snapshot and the target position. A snapshot of
+     * the current state is captured right away. The entry at which a snapshot is captured is
+     * not merged with the following change, so that the snapshot stays valid.
+     *
+     * <p>At most 32 snapshots are kept, see
+     * {@link #enableCheckpoints(StateCheckpointer, int, int)}.</p>
+     */
+    public <S> void enableCheckpoints(StateCheckpointer<S> checkpointer, int interval) {
+        enableCheckpoints(checkpointer, interval, DEFAULT_MAX_SNAPSHOTS);
+    }
+
+    /**
+     * Like {@link #enableCheckpoints(StateCheckpointer, int)}, but keeps at most
+     * {@code maxSnapshots} snapshots. Once the limit is reached, older snapshots are
+     * thinned out, so that the distance between them grows geometrically with their age.
+     * Snapshots of forgotten entries are discarded by {@link #forgetHistory()}.
+     */
+    public <S> void enableCheckpoints(StateCheckpointer<S> checkpointer, int interval, int maxSnapshots) {
+        if(interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        if(maxSnapshots < 2) {
+            throw new IllegalArgumentException("maxSnapshots must be at least 2");
+        }
+        checkpoints = new Checkpoints<>(this, queue, checkpointer, interval, maxSnapshots);
+        checkpoints.capture();
+    }
+
+    /**
+     * Stops capturing snapshots and discards the captured ones.
+     */
+    public void disableCheckpoints() {
+        checkpoints = null;
+    }
+
+    /**
+     * Squashes the history entries that precede the current position by more than
+     * {@code keepRecent} entries, by merging runs of adjacent entries using the merge
+     * function. Entries are never merged across the marked position, a position retained by
+     * {@link #retainPosition(UndoPosition)} or a checkpoint, and merges
+     * that result in an identity change are not performed. Undoing a squashed entry undoes
+     * all the changes merged into it at once. Only queues that support
+     * {@link ChangeQueue#compact(int, BiFunction, Predicate) compaction} are compacted.
+     *
+     * <p>A hibernated history is not compacted.</p>
+     *
+     * @return the number of entries removed from the history
+     */
+    public int compactHistory(int keepRecent) {
+        if(keepRecent < 0) {
+            throw new IllegalArgumentException("keepRecent must not be negative");
+        }
+        if(hibernated != null) {
+            return 0;
+        }
+
+        Set<QueuePosition> boundaries = new HashSet<>();
+        boundaries.add(mark);
+        if(checkpoints != null) {
+            checkpoints.addPositionsTo(boundaries);
+        }
+
+        int removed = compaction.compact(keepRecent,
+                (a, b) -> functions.merge(a, b).filter(c -> !isIdentity.test(c)),
+                boundaries);
+        if(removed > 0) {
+            invalidateProperties();
+        }
+        return removed;
+    }
+
+    /**
+     * Runs {@link #compactHistory(int) compactHistory(keepRecent)} whenever no change has been
+     * observed for {@code idleTime}. Replaces any previously enabled idle compaction.
+     * Must be called on the JavaFX application thread, on which the compaction then runs.
+     */
+    public void enableIdleCompaction(Duration idleTime, int keepRecent) {
+        if(keepRecent < 0) {
+            throw new IllegalArgumentException("keepRecent must not be negative");
+        }
+        compaction.enableIdleCompaction(changeSource, idleTime, () -> compactHistory(keepRecent));
+    }
+
+    public void disableIdleCompaction() {
+        compaction.disableIdleCompaction();
+    }
+
+    /**
+     * Records the changes submitted to {@code buffer} from any thread, in addition to the changes of
+     * the change stream. The changes of each drain of the buffer are recorded one by one, merged as
+     * usual, but the properties are invalidated once per drain, rather than once per change.
+     * Replaces any previously observed buffer. Must be called on the thread that owns this undo
+     * manager, which must be the owner thread of the buffer.
+     */
+    public void recordChangesFrom(ConcurrentChangeBuffer<? extends C> buffer) {
+        bufferedChanges.unsubscribe();
+        Subscription changes = buffer.subscribe(this::changeObserved);
+        Subscription drains = buffer.addDrainListener(new ConcurrentChangeBuffer.DrainListener() {
+            @Override
+            public void drainStarted() {
+                drainingBuffer = true;
+            }
+
+            @Override
+            public void drainFinished() {
+                drainingBuffer = false;
+                if(invalidationMode == InvalidationMode.IMMEDIATE) {
+                    flushInvalidations();
+                }
+            }
+        });
+        bufferedChanges = changes.and(drains);
+    }
+
+    public UndoInstrumentation getInstrumentation() {
+        return functions.instrumentation();
+    }
+
+    /**
+     * Reports the work of this undo manager to {@code instrumentation}, e.g. {@link UndoStatistics}.
+     * While the instrumentation is {@link UndoInstrumentation#NONE} (the default), no events are
+     * reported and the latencies of {@code apply}, {@code invert} and {@code merge} are not measured.
+     */
+    public void setInstrumentation(UndoInstrumentation instrumentation) {
+        functions.setInstrumentation(instrumentation);
+        if(instrumentation == UndoInstrumentation.NONE) {
+            queue.setEvictionListener(null);
+        } else {
+            queue.setEvictionListener(instrumentation::changesEvicted);
+            instrumentation.historyChanged(queue.prevCount());
+        }
+    }
+
+    public InvalidationMode getInvalidationMode() {
+        return invalidationMode;
+    }
+
+    /**
+     * Sets when the observers of this undo manager's properties are notified of changes
+     * to the history. Pending invalidations are delivered when switching to
+     * {@link InvalidationMode#IMMEDIATE}. Regardless of the mode, the {@code is*} and
+     * {@code getNext*} methods of this undo manager always reflect the current history,
+     * without delivering the pending invalidations.
+     */
+    public void setInvalidationMode(InvalidationMode mode) {
+        invalidationMode = mode;
+        if(mode == InvalidationMode.IMMEDIATE) {
+            flushInvalidations();
+        }
+    }
+
+    /**
+     * Delivers the invalidations deferred by {@link InvalidationMode#NEXT_PULSE}
+     * or {@link InvalidationMode#MANUAL}, if there are any.
+     */
+    public void flushInvalidations() {
+        if(invalidationPending) {
+            invalidationPending = false;
+            if(invalidationRequests != null) {
+                invalidationRequests.push(true);
+            }
+        }
+    }
+
+    /**
+     * Writes the history of this undo manager, including the current and the marked
+     * position, to {@code channel}. Changes are encoded by {@code codec}.
+     *
+     * @throws UnsupportedOperationException if the underlying queue does not support saving its history
+     */
+    public void saveHistory(WritableByteChannel channel, ChangeCodec<? super C> codec) throws IOException {
+        rehydrate();
+        queue.save(channel, codec, mark);
+    }
+
+    /**
+     * Replaces the history of this undo manager, including the current and the marked
+     * position, with the history read from {@code channel}, previously written by
+     * {@link #saveHistory(WritableByteChannel, ChangeCodec)}. The model has to be in the
+     * state it was in when the history was saved. If reading fails, the history is left unchanged.
+     * A hibernated history is rehydrated first, so that it is the history left unchanged.
+     *
+     * <p>Positions obtained before restoring become invalid and are no longer retained. Checkpoints are
+     * discarded and a new one is captured, and a {@link GlobalUndoCoordinator} this undo manager
+     * is registered with forgets its steps.</p>
+     *
+     * @throws IllegalStateException if a transaction or an asynchronous undo or redo is in progress
+     * @throws UnsupportedOperationException if the underlying queue does not support restoring its history
+     */
+    public void restoreHistory(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        rehydrate();
+        checkCanUndoOrRedo();
+        mark = queue.restore(channel, codec);
+        canMerge = false;
+        historyGeneration += 1;
+        compaction.clearRetainedPositions();
+        if(checkpoints != null) {
+            checkpoints.reset();
+        }
+        if(historyListener != null) {
+            historyListener.historyReplaced(this);
+        }
+        invalidateProperties();
+    }
+
+    /**
+     * Moves the history of this undo manager to {@code file}, with the changes encoded by
+     * {@code codec}, and releases the memory held by the changes. The history is restored from
+     * the file, which is then deleted, as soon as it is needed again: by an undo or redo, when
+     * a change is observed, or when any of the {@code is*}, {@code getNext*} or
+     * {@code getCurrentPosition} methods is called or a property is recomputed.
+     * Positions obtained before hibernating remain valid.
+     *
+     * <p>The history is saved as by {@link #saveHistory(WritableByteChannel, ChangeCodec)} and
+     * restored as by {@link #restoreHistory(ReadableByteChannel, ChangeCodec)}; if restoring
+     * fails when the history is needed, an {@link UncheckedIOException} is thrown and the
+     * undo manager remains hibernated. Checkpoints captured by
+     * {@link #enableCheckpoints(StateCheckpointer, int)} stay in memory.</p>
+     *
+     * @throws UnsupportedOperationException if the underlying queue does not support saving and
+     * restoring its history
+     * @throws IllegalStateException if this undo manager is already hibernated, or a transaction
+     * or an asynchronous undo or redo is in progress
+     */
+    public void hibernate(Path file, ChangeCodec<C> codec) throws IOException {
+        if(hibernated != null) {
+            throw new IllegalStateException("The UndoManager is already hibernated");
+        }
+        checkCanUndoOrRedo();
+        hibernated = HibernatedHistory.hibernate(queue, mark, file, codec);
+        canMerge = false;
+    }
+
+    /**
+     * Restores the history moved to a file by {@link #hibernate(Path, ChangeCodec)}, if this
+     * undo manager is hibernated, and deletes the file. Called automatically when the history
+     * is needed, but may be called in advance, e.g. when a document is activated.
+     */
+    public void rehydrate() throws IOException {
+        if(hibernated == null) {
+            return;
+        }
+
+        HibernatedHistory<C> history = hibernated;
+        mark = history.restore(queue);
+        hibernated = null;
+        history.delete();
+    }
+
+    public boolean isHibernated() {
+        return hibernated != null;
+    }
+
+    private void ensureRehydrated() {
+        if(hibernated != null) {
+            try {
+                rehydrate();
+            } catch(IOException e) {
+                throw new UncheckedIOException("Failed to restore the hibernated history from " + hibernated.getFile(), e);
+            }
+        }
+    }
+
+    /**
+     * Combines consecutive changes into as few changes as possible, so that applying
+     * the returned changes in order has the same effect as applying {@code changes} in order.
+     * Used by {@link #undoTo(UndoPosition)}, {@link #redoTo(UndoPosition)} and to fold
+     * the changes of a transaction before they are passed to its combiner.
+     * The default implementation combines changes using the merge function
+     * and drops merged changes that are identities.
+     */
+    protected List<C> compose(List<C> changes) {
+        List<C> composed = new ArrayList<>();
+        C acc = null;
+        for(C change: changes) {
+            if(acc == null) {
+                acc = change;
+            } else {
+                Optional<C> merged = functions.merge(acc, change);
+                if(!merged.isPresent()) {
+                    composed.add(acc);
+                    acc = change;
+                } else if(isIdentity.test(merged.get())) {
+                    acc = null;
+                } else {
+                    acc = merged.get();
+                }
+            }
+        }
+        if(acc != null) {
+            composed.add(acc);
+        }
+        return composed;
+    }
+
+    private List<C> endTransaction() {
+        if(transaction == null) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        List<C> changes = transaction;
+        transaction = null;
+        transactionCombiner = null;
+        return changes;
+    }
+
+    HistoryListener getHistoryListener() {
+        return historyListener;
+    }
+
+    void setHistoryListener(HistoryListener listener) {
+        historyListener = listener;
+    }
+
+    long getCurrentRevision() {
+        ensureRehydrated();
+        return queue.getCurrentRevision();
+    }
+
+    void checkCanUndoOrRedo() {
+        ensureRehydrated();
+        if(transaction != null) {
+            throw new IllegalStateException("Cannot undo or redo while a transaction is in progress");
+        }
+        if(asyncAction != null) {
+            throw new IllegalStateException("Cannot undo or redo while an asynchronous undo or redo is in progress");
+        }
+    }
+
+    /**
+     * Returns the queue position of {@code position}, or {@code null} if it was obtained
+     * before the history was replaced by {@link #restoreHistory(ReadableByteChannel, ChangeCodec)}.
+     */
+    QueuePosition queuePosition(UndoPosition position) {
+        if(position instanceof UndoManagerImpl.UndoPositionImpl) {
+            @SuppressWarnings("unchecked")
+            UndoPositionImpl pos = (UndoPositionImpl) position;
+            if(pos.getManager() == this) {
+                return pos.generation == historyGeneration ? pos.queuePos : null;
+            }
+        }
+        throw new IllegalArgumentException("Position does not belong to this UndoManager: " + position);
+    }
+
+    // moves the current position by the given number of steps,
+    // applying the changes in between as few changes as possible
+    private boolean jump(int distance) {
+        if(checkpoints != null && checkpoints.jump(distance)) {
+            return true;
+        }
+
+        return move(Math.max(0, -distance), Math.max(0, distance));
+    }
+
+    /**
+     * Undoes {@code undoCount} changes and then redoes {@code redoCount} changes,
+     * applying them composed into as few changes as possible.
+     */
+    boolean move(int undoCount, int redoCount) {
+        List<C> changes = new ArrayList<>(undoCount + redoCount);
+        collectChanges(-undoCount, changes);
+        collectChanges(redoCount, changes);
+        if(changes.isEmpty()) {
+            return false;
+        }
+        applyChanges(null, changes);
+        return true;
+    }
+
+    // moves the current position by the given number of steps and collects
+    // the changes to apply (inverses when moving backwards) in the order of application
+    void collectChanges(int distance, List<C> changes) {
+        for(; distance < 0; ++distance) {
+            changes.add(queue.prevInverse(functions.invert()));
+        }
+        for(; distance > 0; --distance) {
+            changes.add(queue.next());
+        }
+    }
+
+    // applies changes already taken from the queue, composed into as few changes
+    // as possible, after restoring the model from the given snapshot, if any
+    void applyChanges(Runnable restoreSnapshot, List<C> changes) {
+        canMerge = false;
+        List<C> composed = compose(changes);
+        performingAction().suspendWhile(() -> {
+            if(restoreSnapshot != null) {
+                restoringSnapshot = true;
+                try {
+                    restoreSnapshot.run();
+                } finally {
+                    restoringSnapshot = false;
+                }
+            }
+            for(C change: composed) {
+                performChange(change);
+            }
+        });
         invalidateProperties();
     }
 
@@ -201,22 +962,17 @@ public class UndoManagerImpl<C> implements UndoManager<C> {
      * Helper method for reducing code duplication
      *
      * @param isChangeAvailable same as `isUndoAvailable()` [Undo] or `isRedoAvailable()` [Redo]
-     * @param changeToApply same as `invert.apply(queue.prev())` [Undo] or `queue.next()` [Redo]
+     * @param changeToApply same as `queue.prevInverse(invert)` [Undo] or `queue.next()` [Redo]
      * @throws IllegalStateException if the applied change was not reinserted into the event stream
      */
     private boolean applyChange(boolean isChangeAvailable, Supplier<C> changeToApply) throws IllegalStateException {
+        checkCanUndoOrRedo();
         if (isChangeAvailable) {
             canMerge = false;
 
             // perform change
             C change = changeToApply.get();
-            this.expectedChange = change;
-            performingAction.suspendWhile(() -> apply.accept(change));
-            if(this.expectedChange != null) {
-                throw new IllegalStateException("Expected change not received:\n"
-                        + this.expectedChange
-			+ "\nThe most likely cause is that the apply action did not reinsert the change into the event stream.");
-            }
+            performingAction().suspendWhile(() -> performChange(change));
 
             invalidateProperties();
             return true;
@@ -225,13 +981,121 @@ public class UndoManagerImpl<C> implements UndoManager<C> {
         }
     }
 
+    private CompletableFuture<Boolean> applyChangeAsync(boolean undo, boolean isChangeAvailable, Supplier<C> changeToApply,
+                                                        Executor executor, Executor owner) {
+        if(!isChangeAvailable) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        canMerge = false;
+        C change = changeToApply.get();
+        AsyncAction<C> action = new AsyncAction<>(this, queue, change, undo);
+        action.movedTo = queue.getCurrentPosition();
+        asyncAction = action;
+        expectedChange = change;
+        invalidateProperties();
+        action.applyOn(executor, owner, functions.apply());
+        return action.future;
+    }
+
+    Guard suspendPerformingAction() {
+        return performingAction().suspend();
+    }
+
+    boolean isInProgress(AsyncAction<C> action) {
+        return asyncAction == action;
+    }
+
+    void actionFinished(AsyncAction<C> action) {
+        if(asyncAction == action) {
+            asyncAction = null;
+        }
+    }
+
+    void discardExpectedChange() {
+        expectedChange = null;
+    }
+
+    /**
+     * Undoes ({@code undo == true}) or redoes the adjacent change in steps obtained by {@code split},
+     * applying as many steps as fit in {@code sliceNanos} at a time and continuing on {@code owner}.
+     * The first slice is applied right away. {@code progress} receives the fraction of the steps
+     * applied after each slice. The history moves once all the steps have been applied.
+     */
+    CompletableFuture<Boolean> applyInSteps(boolean undo, Function<? super C, ? extends List<? extends C>> split,
+                                            long sliceNanos, Executor owner, DoubleConsumer progress) {
+        checkCanUndoOrRedo();
+        if(undo ? !isUndoAvailable() : !isRedoAvailable()) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        canMerge = false;
+        C change = undo ? functions.invert(queue.peekPrev()) : queue.peekNext();
+        List<? extends C> steps = split.apply(change);
+        if(steps.isEmpty()) {
+            if(undo) {
+                queue.prev();
+            } else {
+                queue.next();
+            }
+            invalidateProperties();
+            progress.accept(1.0);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        SteppedAction<C> action = new SteppedAction<>(this, queue, change, undo, steps, functions.invert(),
+                sliceNanos, owner, progress);
+        asyncAction = action;
+        progress.accept(0.0);
+        action.run();
+        return action.future;
+    }
+
+    /**
+     * Applies the change and checks that it was reinserted into the event stream.
+     *
+     * @throws IllegalStateException if the applied change was not reinserted into the event stream
+     */
+    void performChange(C change) {
+        this.expectedChange = change;
+        functions.apply(change);
+        if(this.expectedChange != null) {
+            throw new IllegalStateException("Expected change not received:\n"
+                    + this.expectedChange
+                    + "\nThe most likely cause is that the apply action did not reinsert the change into the event stream.");
+        }
+    }
+
     private void changeObserved(C change) {
+        // asyncAction is set before apply is submitted to another thread, so that thread sees it
+        if(asyncAction != null && Thread.currentThread() != asyncAction.ownerThread) {
+            throw new IllegalStateException("Change received on " + Thread.currentThread()
+                    + " instead of the thread that owns the UndoManager. The apply action of an"
+                    + " asynchronous undo or redo has to emit the change on the owner thread:\n" + change);
+        }
+        if(restoringSnapshot) {
+            return; // the model is being restored from a checkpoint
+        }
+        ensureRehydrated();
+
         if(expectedChange == null) {
+            if(asyncAction != null) {
+                throw new IllegalArgumentException("Change received while an undo or redo is in progress:\n" + change);
+            }
             if (!isIdentity.test(change)) {
-                addChange(change);
+                if (transaction != null) {
+                    transaction.add(change);
+                } else {
+                    addChange(change);
+                }
+            } else {
+                functions.instrumentation().identityDropped();
             }
         } else if(expectedChange.equals(change)) {
             expectedChange = null;
+            if(asyncAction != null) {
+                asyncAction.changeReceived();
+            }
         } else {
             throw new IllegalArgumentException("Unexpected change received."
                     + "\nExpected:\n" + expectedChange
@@ -239,34 +1103,83 @@ public class UndoManagerImpl<C> implements UndoManager<C> {
         }
     }
 
-    @SuppressWarnings("unchecked")
     private void addChange(C change) {
         if(canMerge && queue.hasPrev()) {
-            C prev = queue.prev();
+            C prev = queue.peekPrev();
 
             // attempt to merge the changes
-            Optional<C> merged = merge.apply(prev, change);
+            Optional<C> merged = functions.merge(prev, change);
+            functions.instrumentation().mergeAttempted(merged.isPresent());
             if(merged.isPresent()) {
+                long oldRevision = historyListener != null ? queue.getCurrentRevision() : 0;
                 if (isIdentity.test(merged.get())) {
                     canMerge = false;
-                    queue.push(); // clears the future
+                    queue.dropPrev();
+                    functions.instrumentation().identityDropped();
+                    if(historyListener != null) {
+                        historyListener.entryDropped(this, oldRevision);
+                    }
                 } else {
                     canMerge = true;
-                    queue.push(merged.get());
+                    queue.replacePrev(merged.get());
+                    if(historyListener != null) {
+                        historyListener.entryReplaced(this, oldRevision, queue.getCurrentRevision());
+                    }
                 }
             } else {
                 canMerge = true;
-                queue.next();
-                queue.push(change);
+                pushEntry(change);
             }
         } else {
-            queue.push(change);
             canMerge = true;
+            pushEntry(change);
         }
         invalidateProperties();
     }
 
-    private void invalidateProperties() {
-        invalidationRequests.push(null);
+    private void pushEntry(C change) {
+        long prevRevision = historyListener != null ? queue.getCurrentRevision() : 0;
+        queue.push(change);
+        functions.instrumentation().changeRecorded();
+        if(historyListener != null) {
+            historyListener.entryPushed(this, prevRevision, queue.getCurrentRevision());
+        }
+        entryAdded();
+    }
+
+    private void entryAdded() {
+        if(checkpoints != null) {
+            checkpoints.entryAdded();
+        }
+    }
+
+    private boolean isQueueAtMark() {
+        ensureRehydrated();
+        return mark.equals(queue.getCurrentPosition());
+    }
+
+    void invalidateProperties() {
+        if(functions.isInstrumented()) {
+            functions.instrumentation().historyChanged(queue.prevCount());
+        }
+        switch(invalidationMode) {
+            case IMMEDIATE:
+                if(drainingBuffer) {
+                    // delivered once the drain has finished
+                    invalidationPending = true;
+                } else if(invalidationRequests != null) {
+                    invalidationRequests.push(false);
+                }
+                break;
+            case NEXT_PULSE:
+                if(!invalidationPending) {
+                    invalidationPending = true;
+                    Platform.runLater(this::flushInvalidations);
+                }
+                break;
+            case MANUAL:
+                invalidationPending = true;
+                break;
+        }
     }
 }
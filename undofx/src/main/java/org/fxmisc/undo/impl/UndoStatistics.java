@@ -0,0 +1,183 @@
+package org.fxmisc.undo.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link UndoInstrumentation} that counts the events of an undo manager and records
+ * latency histograms of {@code apply}, {@code invert} and {@code merge}. The statistics
+ * are thread-safe: they may be updated from the executor threads of asynchronous undo
+ * and redo, which record the apply latencies, and read from any thread, e.g. via JMX
+ * after {@link #register(String)}.
+ *
+ * <pre>{@code
+ * UndoStatistics stats = new UndoStatistics();
+ * undoManager.setInstrumentation(stats);
+ * stats.register("editor");
+ * }</pre>
+ */
+public class UndoStatistics implements UndoInstrumentation, UndoStatisticsMXBean {
+
+    /**
+     * Histogram of latencies with a bucket per power of two nanoseconds.
+     */
+    private static final class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos));
+            count.increment();
+            sum.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // returns the upper bound of the bucket that contains the given percentile
+        long percentile(double p) {
+            long n = count.sum();
+            if(n == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(n * p / 100);
+            long seen = 0;
+            for(int i = 0; i < Long.SIZE; ++i) {
+                seen += buckets.get(i);
+                if(seen >= threshold) {
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for(int i = 0; i < Long.SIZE; ++i) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+    }
+
+    private final LongAdder changesRecorded = new LongAdder();
+    private final LongAdder mergesAttempted = new LongAdder();
+    private final LongAdder mergesSucceeded = new LongAdder();
+    private final LongAdder identitiesDropped = new LongAdder();
+    private final LongAdder changesEvicted = new LongAdder();
+    private final LongAdder forgetHistoryCalls = new LongAdder();
+    private volatile int undoDepth = 0;
+
+    private final LatencyHistogram applyLatency = new LatencyHistogram();
+    private final LatencyHistogram invertLatency = new LatencyHistogram();
+    private final LatencyHistogram mergeLatency = new LatencyHistogram();
+
+    private ObjectName objectName = null;
+
+    /**
+     * Registers these statistics with the platform MBean server under the name
+     * {@code org.fxmisc.undo:type=UndoStatistics,name=<name>}.
+     *
+     * @return the name under which the statistics have been registered
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("org.fxmisc.undo:type=UndoStatistics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Removes these statistics from the platform MBean server, if they have been registered.
+     */
+    public void unregister() throws JMException {
+        if(objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override public void changeRecorded() { changesRecorded.increment(); }
+
+    @Override
+    public void mergeAttempted(boolean merged) {
+        mergesAttempted.increment();
+        if(merged) {
+            mergesSucceeded.increment();
+        }
+    }
+
+    @Override public void identityDropped() { identitiesDropped.increment(); }
+    @Override public void changesEvicted(int count) { changesEvicted.add(count); }
+    @Override public void historyForgotten() { forgetHistoryCalls.increment(); }
+    @Override public void historyChanged(int undoDepth) { this.undoDepth = undoDepth; }
+    @Override public void applyTimed(Object change, long nanos, Object started) { applyLatency.record(nanos); }
+    @Override public void invertTimed(Object change, long nanos, Object started) { invertLatency.record(nanos); }
+    @Override public void mergeTimed(Object prev, Object change, boolean merged, long nanos, Object started) { mergeLatency.record(nanos); }
+
+    @Override public long getChangesRecorded() { return changesRecorded.sum(); }
+    @Override public long getMergesAttempted() { return mergesAttempted.sum(); }
+    @Override public long getMergesSucceeded() { return mergesSucceeded.sum(); }
+
+    @Override
+    public double getMergeHitRate() {
+        long attempted = mergesAttempted.sum();
+        return attempted == 0 ? 0 : (double) mergesSucceeded.sum() / attempted;
+    }
+
+    @Override public long getIdentitiesDropped() { return identitiesDropped.sum(); }
+    @Override public long getChangesEvicted() { return changesEvicted.sum(); }
+    @Override public long getForgetHistoryCalls() { return forgetHistoryCalls.sum(); }
+    @Override public int getUndoDepth() { return undoDepth; }
+
+    @Override public long getApplyCount() { return applyLatency.count(); }
+    @Override public double getApplyMeanNanos() { return applyLatency.mean(); }
+    @Override public long getApplyP99Nanos() { return applyLatency.percentile(99); }
+    @Override public long getApplyMaxNanos() { return applyLatency.max(); }
+
+    @Override public long getInvertCount() { return invertLatency.count(); }
+    @Override public double getInvertMeanNanos() { return invertLatency.mean(); }
+    @Override public long getInvertP99Nanos() { return invertLatency.percentile(99); }
+    @Override public long getInvertMaxNanos() { return invertLatency.max(); }
+
+    @Override public long getMergeCount() { return mergeLatency.count(); }
+    @Override public double getMergeMeanNanos() { return mergeLatency.mean(); }
+    @Override public long getMergeP99Nanos() { return mergeLatency.percentile(99); }
+    @Override public long getMergeMaxNanos() { return mergeLatency.max(); }
+
+    @Override
+    public void reset() {
+        changesRecorded.reset();
+        mergesAttempted.reset();
+        mergesSucceeded.reset();
+        identitiesDropped.reset();
+        changesEvicted.reset();
+        forgetHistoryCalls.reset();
+        applyLatency.reset();
+        invertLatency.reset();
+        mergeLatency.reset();
+    }
+}
@@ -0,0 +1,52 @@
+package org.fxmisc.undo.impl;
+
+/**
+ * Management interface of {@link UndoStatistics}. Latencies are in nanoseconds;
+ * percentiles are upper bounds, accurate to a factor of two.
+ */
+public interface UndoStatisticsMXBean {
+
+    long getChangesRecorded();
+
+    long getMergesAttempted();
+
+    long getMergesSucceeded();
+
+    /** Fraction of the attempted merges that succeeded, or 0 if none were attempted. */
+    double getMergeHitRate();
+
+    long getIdentitiesDropped();
+
+    long getChangesEvicted();
+
+    long getForgetHistoryCalls();
+
+    int getUndoDepth();
+
+    long getApplyCount();
+
+    double getApplyMeanNanos();
+
+    long getApplyP99Nanos();
+
+    long getApplyMaxNanos();
+
+    long getInvertCount();
+
+    double getInvertMeanNanos();
+
+    long getInvertP99Nanos();
+
+    long getInvertMaxNanos();
+
+    long getMergeCount();
+
+    double getMergeMeanNanos();
+
+    long getMergeP99Nanos();
+
+    long getMergeMaxNanos();
+
+    /** Resets all counters and latency histograms. The undo depth is kept. */
+    void reset();
+}
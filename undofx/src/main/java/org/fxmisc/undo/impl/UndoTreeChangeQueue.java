@@ -0,0 +1,991 @@
+package org.fxmisc.undo.impl;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * {@link ChangeQueue} that keeps its history as a tree: pushing a change after an undo starts
+ * a new branch instead of discarding the undone changes. The changes preceding the branching
+ * point are shared by all branches. The current position is a node of the tree; {@link #prev()}
+ * moves to its parent and {@link #next()} to its <em>active</em> child, which is the child that
+ * was visited or created most recently, or the one selected by {@link #selectBranch(int)}.
+ *
+ * <p>Branches that are not on the active path (from the root through the current node and its active
+ * descendants) are <em>abandoned</em>. When the total estimated size of the stored changes exceeds the
+ * byte budget, the least recently abandoned branches are forgotten first, then the oldest changes on
+ * the active path. The most recent change is always retained, even if its size alone exceeds the budget.</p>
+ *
+ * <p>Nodes are stored in parallel arrays indexed by node, so a change costs no object besides the
+ * change itself.</p>
+ *
+ * @param <C> the type of change
+ */
+public class UndoTreeChangeQueue<C> implements ChangeQueue<C> {
+
+    private class QueuePositionImpl implements QueuePosition {
+        private final int node;
+        private final long rev;
+
+        QueuePositionImpl(int node, long rev) {
+            this.node = node;
+            this.rev = rev;
+        }
+
+        @Override
+        public boolean isValid() {
+            return revisions[node] == rev;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(other instanceof UndoTreeChangeQueue.QueuePositionImpl) {
+                @SuppressWarnings("unchecked")
+                QueuePositionImpl otherPos = (QueuePositionImpl) other;
+                return getQueue() == otherPos.getQueue() && rev == otherPos.rev;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(rev);
+        }
+
+        private UndoTreeChangeQueue<C> getQueue() {
+            return UndoTreeChangeQueue.this;
+        }
+    }
+
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // revision of a free node slot
+    private static final long FREE = -1;
+
+    private final ToLongFunction<? super C> sizeEstimator;
+    private final long byteBudget;
+
+    // node storage; the root stands for the state before the oldest retained change,
+    // every other node for the state after its change. Children of a node form a list
+    // linked by nextSibling, oldest first; free slots are linked by nextSibling as well.
+    private Object[] changes;
+    private long[] revisions;
+    private long[] sizes;
+    private int[] parent;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] activeChild;
+    private int[] depth;
+    private int allocated = 0;
+    private int freeList = NONE;
+
+    private int root;
+    private int current;
+
+    private long retainedBytes = 0;
+    private long revision = 0;
+
+    // roots of abandoned branches in the order in which they were abandoned, as a ring buffer;
+    // an entry is stale if its node has been freed or its branch has become active again
+    private int[] abandonedNodes = new int[INITIAL_CAPACITY];
+    private long[] abandonedRevisions = new long[INITIAL_CAPACITY];
+    private int abandonedStart = 0;
+    private int abandonedCount = 0;
+
+    // number of nodes freed so far, used to count evicted changes
+    private long freedNodes = 0;
+    private IntConsumer evictionListener = null;
+
+    /**
+     * @param sizeEstimator estimates the number of bytes retained by a change
+     * @param byteBudget maximum total estimated size of the stored changes
+     */
+    public UndoTreeChangeQueue(ToLongFunction<? super C> sizeEstimator, long byteBudget) {
+        if(byteBudget <= 0) {
+            throw new IllegalArgumentException("byteBudget must be positive");
+        }
+
+        this.sizeEstimator = sizeEstimator;
+        this.byteBudget = byteBudget;
+        this.changes = new Object[INITIAL_CAPACITY];
+        this.revisions = new long[INITIAL_CAPACITY];
+        this.sizes = new long[INITIAL_CAPACITY];
+        this.parent = new int[INITIAL_CAPACITY];
+        this.firstChild = new int[INITIAL_CAPACITY];
+        this.nextSibling = new int[INITIAL_CAPACITY];
+        this.activeChild = new int[INITIAL_CAPACITY];
+        this.depth = new int[INITIAL_CAPACITY];
+
+        root = allocNode();
+        revisions[root] = revision;
+        parent[root] = NONE;
+        current = root;
+    }
+
+    /**
+     * Returns the total estimated size of the changes currently stored in this queue.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return activeChild[current] != NONE;
+    }
+
+    @Override
+    public boolean hasPrev() {
+        return current != root;
+    }
+
+    @Override
+    public int prevCount() {
+        return depth[current] - depth[root];
+    }
+
+    @Override
+    public C peekNext() {
+        if(activeChild[current] != NONE) {
+            return change(activeChild[current]);
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public C next() {
+        C c = peekNext();
+        current = activeChild[current];
+        return c;
+    }
+
+    @Override
+    public C peekPrev() {
+        if(current != root) {
+            return change(current);
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public C prev() {
+        C c = peekPrev();
+        current = parent[current];
+        return c;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The changes ahead of the current position are not discarded,
+     * but kept as an abandoned branch.</p>
+     */
+    @Override
+    public final void push(C change) {
+        addNode(change);
+        enforceBudget();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The changes ahead of the current position are not discarded,
+     * but kept as an abandoned branch.</p>
+     */
+    @Override
+    @SafeVarargs
+    public final void push(C... changes) {
+        if(changes.length == 0) {
+            setActiveChild(current, NONE);
+        }
+        for(C c: changes) {
+            addNode(c);
+        }
+        enforceBudget();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If there are no changes ahead of the current position, the previous
+     * change is replaced in place, without creating a branch.</p>
+     */
+    @Override
+    public void replacePrev(C change) {
+        if(current == root) {
+            throw new NoSuchElementException();
+        } else if(firstChild[current] != NONE) {
+            prev();
+            push(change);
+        } else {
+            long size = sizeEstimator.applyAsLong(change);
+            retainedBytes += size - sizes[current];
+            changes[current] = change;
+            sizes[current] = size;
+            revisions[current] = ++revision;
+            enforceBudget();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If there are no changes ahead of the current position, the previous
+     * change is removed, without creating a branch.</p>
+     */
+    @Override
+    public void dropPrev() {
+        if(current == root) {
+            throw new NoSuchElementException();
+        } else if(firstChild[current] != NONE) {
+            prev();
+            push();
+        } else {
+            int node = current;
+            current = parent[node];
+            unlink(node);
+            freeNode(node);
+        }
+    }
+
+    @Override
+    public void setEvictionListener(IntConsumer listener) {
+        evictionListener = listener;
+    }
+
+    @Override
+    public QueuePosition getCurrentPosition() {
+        return new QueuePositionImpl(current, revisions[current]);
+    }
+
+    @Override
+    public long getCurrentRevision() {
+        return revisions[current];
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Only positions on the path from the root to the current position, or on the active
+     * branch ahead of it, can be reached. Runs in time proportional to the returned distance.</p>
+     */
+    @Override
+    public int distanceTo(QueuePosition position) {
+        if(!position.isValid()) {
+            return 0;
+        }
+        int node = validNode(position);
+        int steps = depth[node] - depth[current];
+        if(steps <= 0) {
+            // an ancestor of the current position, if walking back from there reaches it
+            int n = current;
+            for(int i = steps; i < 0; ++i) {
+                n = parent[n];
+            }
+            return n == node ? steps : 0;
+        } else {
+            // a descendant on the active branch, if walking back from it reaches the current position
+            int n = node;
+            for(int i = 0; i < steps; ++i) {
+                if(activeChild[parent[n]] != n) {
+                    return 0;
+                }
+                n = parent[n];
+            }
+            return n == current ? steps : 0;
+        }
+    }
+
+    /**
+     * Forgets all changes that do not follow the current position,
+     * including all branches that do not contain the current position.
+     */
+    @Override
+    public void forgetHistory() {
+        if(current == root) {
+            return;
+        }
+
+        // free the ancestors of the current node, bottom-up, together with their other branches
+        int child = current;
+        int ancestor = parent[current];
+        while(ancestor != NONE) {
+            int next = parent[ancestor];
+            for(int c = firstChild[ancestor]; c != NONE; ) {
+                int sibling = nextSibling[c];
+                if(c != child) {
+                    freeSubtree(c);
+                }
+                c = sibling;
+            }
+            freeNode(ancestor);
+            child = ancestor;
+            ancestor = next;
+        }
+        parent[current] = NONE;
+        nextSibling[current] = NONE;
+        retainedBytes -= sizes[current];
+        changes[current] = null;
+        sizes[current] = 0;
+        root = current;
+    }
+
+    /**
+     * Forgets all changes, including all branches, and replaces the node arrays with arrays
+     * of the initial capacity. The new root has the revision of the end of the active path.
+     */
+    @Override
+    public void clear() {
+        int end = current;
+        while(activeChild[end] != NONE) {
+            end = activeChild[end];
+        }
+        UndoTreeChangeQueue<C> empty = new UndoTreeChangeQueue<>(sizeEstimator, byteBudget);
+        empty.revision = revision;
+        empty.revisions[empty.root] = revisions[end];
+        adopt(empty);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The entries are the changes on the active path, from the oldest retained change through
+     * the current position to the end of the active branch, so any queue can restore them. They are
+     * followed by the other branches, which only {@link UndoTreeChangeQueue} restores: the number of
+     * their changes and, for each change after its parent, the revision of its parent, its index
+     * among the children of its parent, whether it is the active child, and the change entry.
+     * Last come the slots of the nodes in the arrays, so that positions obtained before saving
+     * remain valid when the history is restored into this queue, e.g. after hibernation.</p>
+     */
+    @Override
+    public void save(WritableByteChannel channel, ChangeCodec<? super C> codec, QueuePosition mark) throws IOException {
+        int[] branchNodes = branchNodes();
+        int size = 0;
+        for(int n = activeChild[root]; n != NONE; n = activeChild[n]) {
+            size += 1;
+        }
+        QueuePositionImpl markPos = ownPosition(mark);
+
+        HistoryFormat.Writer<C> writer = new HistoryFormat.Writer<>(channel, codec);
+        writer.writeHeader(new HistoryFormat.Header(depth[root], size, depth[current] - depth[root],
+                revision, revisions[root], markPos.isValid() ? depth[markPos.node] : 0, markPos.rev));
+        for(int n = activeChild[root]; n != NONE; n = activeChild[n]) {
+            writer.writeChange(change(n), revisions[n]);
+        }
+        writer.writeVarLong(branchNodes.length);
+        for(int n: branchNodes) {
+            int p = parent[n];
+            int index = 0;
+            for(int c = firstChild[p]; c != n; c = nextSibling[c]) {
+                index += 1;
+            }
+            writer.writeVarLong(revisions[p]);
+            writer.writeVarLong(2L * index + (activeChild[p] == n ? 1 : 0));
+            writer.writeChange(change(n), revisions[n]);
+        }
+        writer.writeVarLong(allocated);
+        for(int n = root; n != NONE; n = activeChild[n]) {
+            writer.writeVarLong(n);
+        }
+        for(int n: branchNodes) {
+            writer.writeVarLong(n);
+        }
+        writer.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>A history saved by another kind of queue is restored as a single branch. The changes
+     * that exceed the byte budget are forgotten as if they had just been pushed. If the saved
+     * slots of the nodes are much sparser than the nodes, they are numbered anew and the
+     * positions obtained before saving do not match the restored nodes.</p>
+     */
+    @Override
+    public QueuePosition restore(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        HistoryFormat.Reader<C> reader = new HistoryFormat.Reader<>(channel, codec);
+        HistoryFormat.Header header = reader.readHeader();
+
+        // build the restored tree in a new queue, so that this queue is left unchanged if reading fails
+        UndoTreeChangeQueue<C> restored = new UndoTreeChangeQueue<>(sizeEstimator, byteBudget);
+        Map<Long, Integer> nodesByRevision = new HashMap<>();
+        int restoredCurrent = restored.root;
+        restored.revisions[restored.root] = header.zeroPositionRevision;
+        restored.depth[restored.root] = header.forgottenCount;
+        nodesByRevision.put(header.zeroPositionRevision, restored.root);
+        for(int i = 0; i < header.size; ++i) {
+            C change = reader.readChange();
+            restored.addNode(change);
+            restoredRevision(restored, nodesByRevision, reader.lastRevision());
+            if(i == header.currentPosition - 1) {
+                restoredCurrent = restored.current;
+            }
+        }
+
+        int[] slots = null;
+        if(reader.hasMore()) {
+            long count = reader.readVarLong();
+            for(long i = 0; i < count; ++i) {
+                Integer p = nodesByRevision.get(reader.readVarLong());
+                long indexAndActive = reader.readVarLong();
+                C change = reader.readChange();
+                if(p == null || indexAndActive / 2 > restored.getChildCount(p)) {
+                    throw new StreamCorruptedException("Branch does not fit into the restored tree");
+                }
+                restored.current = p;
+                restored.insertNode(change, (int) (indexAndActive / 2), (indexAndActive & 1) != 0);
+                restoredRevision(restored, nodesByRevision, reader.lastRevision());
+            }
+            slots = readSlots(reader, restored.allocated);
+        }
+        restored.revision = header.revision;
+        restored.current = restoredCurrent;
+        if(slots != null) {
+            restored.relocate(slots);
+        }
+        restored.abandonBranches();
+        restored.enforceBudget();
+        adopt(restored);
+
+        Integer markNode = nodesByRevision.get(header.markRevision);
+        if(markNode == null) {
+            return new QueuePositionImpl(root, header.markRevision);
+        } else {
+            return new QueuePositionImpl(slots != null ? slots[markNode] : markNode, header.markRevision);
+        }
+    }
+
+    /**
+     * Returns the number of branches that follow the current position.
+     */
+    public int getBranchCount() {
+        int count = 0;
+        for(int child = firstChild[current]; child != NONE; child = nextSibling[child]) {
+            count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the index of the branch that {@link #next()} follows, oldest branch first,
+     * or -1 if there is no change ahead of the current position.
+     */
+    public int getActiveBranch() {
+        int index = 0;
+        for(int child = firstChild[current]; child != NONE; child = nextSibling[child]) {
+            if(child == activeChild[current]) {
+                return index;
+            }
+            index += 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Makes the {@code index}-th branch following the current position, oldest branch
+     * first, the one that {@link #next()} follows. The previously active branch is abandoned.
+     *
+     * @throws IndexOutOfBoundsException if there are not enough branches
+     */
+    public void selectBranch(int index) {
+        int child = firstChild[current];
+        for(int i = 0; i < index && child != NONE; ++i) {
+            child = nextSibling[child];
+        }
+        if(index < 0 || child == NONE) {
+            throw new IndexOutOfBoundsException("Branch: " + index + ", branches: " + getBranchCount());
+        }
+        setActiveChild(current, child);
+    }
+
+    /**
+     * Returns the number of changes between the root of the tree and {@code position}.
+     *
+     * @throws IllegalArgumentException if the position does not belong to this queue or is no longer valid
+     */
+    public int getDepth(QueuePosition position) {
+        return depth[validNode(position)] - depth[root];
+    }
+
+    /**
+     * Prepares navigation to {@code target} on any branch: activates the branches from the
+     * closest common ancestor of the current position and {@code target} down to {@code target}.
+     * Afterwards, {@code target} is reached by moving back the returned number of steps, to the
+     * common ancestor, and then forward until {@code target}. Runs in time proportional to the
+     * depth of the two positions in the tree.
+     *
+     * @return the number of steps from the current position back to the common ancestor
+     * @throws IllegalArgumentException if the position does not belong to this queue or is no longer valid
+     */
+    public int activatePathTo(QueuePosition target) {
+        int node = validNode(target);
+        int a = current;
+        int b = node;
+        while(depth[a] > depth[b]) {
+            a = parent[a];
+        }
+        while(depth[b] > depth[a]) {
+            setActiveChild(parent[b], b);
+            b = parent[b];
+        }
+        while(a != b) {
+            a = parent[a];
+            setActiveChild(parent[b], b);
+            b = parent[b];
+        }
+        return depth[current] - depth[a];
+    }
+
+    private QueuePositionImpl ownPosition(QueuePosition pos) {
+        if(pos instanceof UndoTreeChangeQueue.QueuePositionImpl) {
+            @SuppressWarnings("unchecked")
+            QueuePositionImpl ownPos = (QueuePositionImpl) pos;
+            if(ownPos.getQueue() == this) {
+                return ownPos;
+            }
+        }
+        throw new IllegalArgumentException("Position does not belong to this queue: " + pos);
+    }
+
+    // returns the nodes that are not on the active path, each after its parent and its older siblings
+    private int[] branchNodes() {
+        int[] nodes = new int[allocated];
+        int count = 0;
+        int[] stack = new int[allocated];
+        for(int p = root; p != NONE; p = activeChild[p]) {
+            int top = pushChildren(p, activeChild[p], stack, 0);
+            while(top > 0) {
+                int n = stack[--top];
+                nodes[count++] = n;
+                top = pushChildren(n, NONE, stack, top);
+            }
+        }
+        return Arrays.copyOf(nodes, count);
+    }
+
+    // pushes the children of node except skip, so that the oldest child is popped first
+    private int pushChildren(int node, int skip, int[] stack, int top) {
+        int first = top;
+        for(int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+            if(c != skip) {
+                stack[top++] = c;
+            }
+        }
+        for(int i = first, j = top - 1; i < j; ++i, --j) {
+            int tmp = stack[i];
+            stack[i] = stack[j];
+            stack[j] = tmp;
+        }
+        return top;
+    }
+
+    private int getChildCount(int node) {
+        int count = 0;
+        for(int c = firstChild[node]; c != NONE; c = nextSibling[c]) {
+            count += 1;
+        }
+        return count;
+    }
+
+    // gives the node just added to the restored queue the revision read from the history
+    private static void restoredRevision(UndoTreeChangeQueue<?> restored, Map<Long, Integer> nodesByRevision,
+                                         long rev) throws StreamCorruptedException {
+        if(rev < 0 || nodesByRevision.put(rev, restored.current) != null) {
+            throw new StreamCorruptedException("Duplicate or negative revision " + rev);
+        }
+        restored.revisions[restored.current] = rev;
+    }
+
+    // adds a child at the given index among the children of the current node and moves to it
+    private void insertNode(C change, int index, boolean active) {
+        long size = sizeEstimator.applyAsLong(change);
+        int node = allocNode();
+        changes[node] = change;
+        sizes[node] = size;
+        parent[node] = current;
+        depth[node] = depth[current] + 1;
+        if(index == 0) {
+            nextSibling[node] = firstChild[current];
+            firstChild[current] = node;
+        } else {
+            int prev = firstChild[current];
+            for(int i = 1; i < index; ++i) {
+                prev = nextSibling[prev];
+            }
+            nextSibling[node] = nextSibling[prev];
+            nextSibling[prev] = node;
+        }
+        if(active && activeChild[current] == NONE) {
+            activeChild[current] = node;
+        }
+        current = node;
+        retainedBytes += size;
+    }
+
+    // abandons the roots of all branches that are not active, oldest revision first
+    private void abandonBranches() {
+        int[] branches = branchNodes();
+        int count = 0;
+        for(int n: branches) {
+            if(activeChild[parent[n]] != n) {
+                branches[count++] = n;
+            }
+        }
+        Integer[] byRevision = new Integer[count];
+        for(int i = 0; i < count; ++i) {
+            byRevision[i] = branches[i];
+        }
+        Arrays.sort(byRevision, (a, b) -> Long.compare(revisions[a], revisions[b]));
+        for(int n: byRevision) {
+            abandon(n);
+        }
+    }
+
+    // reads the saved slots of the restored nodes, or returns null if they are too sparse to be kept
+    private static int[] readSlots(HistoryFormat.Reader<?> reader, int nodeCount) throws IOException {
+        long length = reader.readVarLong();
+        if(length < nodeCount) {
+            throw new StreamCorruptedException("Fewer node slots than nodes: " + length);
+        }
+        int[] slots = new int[nodeCount];
+        boolean[] used = new boolean[(int) Math.min(length, 4L * nodeCount + INITIAL_CAPACITY)];
+        for(int i = 0; i < nodeCount; ++i) {
+            long slot = reader.readVarLong();
+            if(slot < 0 || slot >= length) {
+                throw new StreamCorruptedException("Node slot " + slot + " out of range " + length);
+            }
+            if(slots != null && slot < used.length && !used[(int) slot]) {
+                used[(int) slot] = true;
+                slots[i] = (int) slot;
+            } else {
+                // sparse or duplicate slots, number the nodes anew
+                slots = null;
+            }
+        }
+        return slots;
+    }
+
+    // moves every node n to the slot slots[n], making the other slots free
+    private void relocate(int[] slots) {
+        int length = INITIAL_CAPACITY;
+        for(int slot: slots) {
+            while(slot >= length) {
+                length *= 2;
+            }
+        }
+        Object[] newChanges = new Object[length];
+        long[] newRevisions = new long[length];
+        long[] newSizes = new long[length];
+        int[] newParent = new int[length];
+        int[] newFirstChild = new int[length];
+        int[] newNextSibling = new int[length];
+        int[] newActiveChild = new int[length];
+        int[] newDepth = new int[length];
+        boolean[] used = new boolean[length];
+        for(int n = 0; n < allocated; ++n) {
+            int slot = slots[n];
+            used[slot] = true;
+            newChanges[slot] = changes[n];
+            newRevisions[slot] = revisions[n];
+            newSizes[slot] = sizes[n];
+            newParent[slot] = parent[n] == NONE ? NONE : slots[parent[n]];
+            newFirstChild[slot] = firstChild[n] == NONE ? NONE : slots[firstChild[n]];
+            newNextSibling[slot] = nextSibling[n] == NONE ? NONE : slots[nextSibling[n]];
+            newActiveChild[slot] = activeChild[n] == NONE ? NONE : slots[activeChild[n]];
+            newDepth[slot] = depth[n];
+        }
+
+        // link the unused slots below the highest used one into the free list
+        int highest = 0;
+        for(int slot: slots) {
+            highest = Math.max(highest, slot);
+        }
+        freeList = NONE;
+        for(int slot = highest - 1; slot >= 0; --slot) {
+            if(!used[slot]) {
+                newRevisions[slot] = FREE;
+                newNextSibling[slot] = freeList;
+                freeList = slot;
+            }
+        }
+
+        changes = newChanges;
+        revisions = newRevisions;
+        sizes = newSizes;
+        parent = newParent;
+        firstChild = newFirstChild;
+        nextSibling = newNextSibling;
+        activeChild = newActiveChild;
+        depth = newDepth;
+        allocated = highest + 1;
+        root = slots[root];
+        current = slots[current];
+    }
+
+    // takes over the tree of other, keeping the eviction listener of this queue
+    private void adopt(UndoTreeChangeQueue<C> other) {
+        changes = other.changes;
+        revisions = other.revisions;
+        sizes = other.sizes;
+        parent = other.parent;
+        firstChild = other.firstChild;
+        nextSibling = other.nextSibling;
+        activeChild = other.activeChild;
+        depth = other.depth;
+        allocated = other.allocated;
+        freeList = other.freeList;
+        root = other.root;
+        current = other.current;
+        retainedBytes = other.retainedBytes;
+        revision = other.revision;
+        abandonedNodes = other.abandonedNodes;
+        abandonedRevisions = other.abandonedRevisions;
+        abandonedStart = other.abandonedStart;
+        abandonedCount = other.abandonedCount;
+    }
+
+    private int validNode(QueuePosition position) {
+        if(position instanceof UndoTreeChangeQueue.QueuePositionImpl) {
+            @SuppressWarnings("unchecked")
+            QueuePositionImpl pos = (QueuePositionImpl) position;
+            if(pos.getQueue() == this && pos.isValid()) {
+                return pos.node;
+            }
+        }
+        throw new IllegalArgumentException("Not a valid position of this queue: " + position);
+    }
+
+    private void addNode(C change) {
+        long size = sizeEstimator.applyAsLong(change);
+        int node = allocNode();
+        changes[node] = change;
+        sizes[node] = size;
+        revisions[node] = ++revision;
+        parent[node] = current;
+        depth[node] = depth[current] + 1;
+
+        // append to the children of the current node
+        if(firstChild[current] == NONE) {
+            firstChild[current] = node;
+        } else {
+            int last = firstChild[current];
+            while(nextSibling[last] != NONE) {
+                last = nextSibling[last];
+            }
+            nextSibling[last] = node;
+        }
+
+        setActiveChild(current, node);
+        current = node;
+        retainedBytes += size;
+    }
+
+    // sets the active child of node, abandoning the previously active one
+    private void setActiveChild(int node, int child) {
+        int previous = activeChild[node];
+        if(previous != child) {
+            if(previous != NONE) {
+                abandon(previous);
+            }
+            activeChild[node] = child;
+        }
+    }
+
+    private void abandon(int node) {
+        if(abandonedCount == abandonedNodes.length) {
+            compactAbandoned();
+        }
+        int i = (abandonedStart + abandonedCount) % abandonedNodes.length;
+        abandonedNodes[i] = node;
+        abandonedRevisions[i] = revisions[node];
+        abandonedCount += 1;
+    }
+
+    private boolean isAbandoned(int node, long rev) {
+        return revisions[node] == rev && node != root && activeChild[parent[node]] != node;
+    }
+
+    // drops stale entries and, if that does not free enough room, grows the ring buffer
+    private void compactAbandoned() {
+        int length = abandonedNodes.length;
+        int[] nodes = new int[length];
+        long[] revs = new long[length];
+        int count = 0;
+        for(int k = 0; k < abandonedCount; ++k) {
+            int i = (abandonedStart + k) % length;
+            if(isAbandoned(abandonedNodes[i], abandonedRevisions[i])) {
+                nodes[count] = abandonedNodes[i];
+                revs[count] = abandonedRevisions[i];
+                count += 1;
+            }
+        }
+        if(count > length / 2) {
+            nodes = Arrays.copyOf(nodes, length * 2);
+            revs = Arrays.copyOf(revs, length * 2);
+        }
+        abandonedNodes = nodes;
+        abandonedRevisions = revs;
+        abandonedStart = 0;
+        abandonedCount = count;
+    }
+
+    private void enforceBudget() {
+        // forgetting the root frees the old root node for the forgotten change,
+        // so the number of freed nodes equals the number of forgotten changes
+        long freedBefore = freedNodes;
+        while(retainedBytes > byteBudget) {
+            if(!forgetOldestAbandonedBranch()) {
+                if(depth[current] - depth[root] > 1) {
+                    forgetRoot();
+                } else {
+                    break;
+                }
+            }
+        }
+        if(freedNodes > freedBefore && evictionListener != null) {
+            evictionListener.accept((int) (freedNodes - freedBefore));
+        }
+    }
+
+    private boolean forgetOldestAbandonedBranch() {
+        while(abandonedCount > 0) {
+            int node = abandonedNodes[abandonedStart];
+            long rev = abandonedRevisions[abandonedStart];
+            abandonedStart = (abandonedStart + 1) % abandonedNodes.length;
+            abandonedCount -= 1;
+            if(isAbandoned(node, rev)) {
+                freeSubtree(node);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // forgets the root and the oldest change on the active path; all other
+    // children of the root are abandoned, so they are forgotten as well
+    private void forgetRoot() {
+        int oldRoot = root;
+        int newRoot = activeChild[oldRoot];
+        for(int child = firstChild[oldRoot]; child != NONE; ) {
+            int sibling = nextSibling[child];
+            if(child != newRoot) {
+                freeSubtree(child);
+            }
+            child = sibling;
+        }
+        makeRoot(newRoot);
+    }
+
+    // makes the only child of the root the new root, forgetting its change
+    private void makeRoot(int node) {
+        int oldRoot = root;
+        firstChild[oldRoot] = NONE;
+        activeChild[oldRoot] = NONE;
+        freeNode(oldRoot);
+        parent[node] = NONE;
+        nextSibling[node] = NONE;
+        retainedBytes -= sizes[node];
+        changes[node] = null;
+        sizes[node] = 0;
+        root = node;
+    }
+
+    // removes the subtree rooted at node from the tree and frees its nodes
+    private void freeSubtree(int node) {
+        unlink(node);
+
+        // free the nodes bottom-up: descend to a leaf, which is the first child
+        // of its parent, free it and continue with the parent
+        int n = node;
+        while(true) {
+            while(firstChild[n] != NONE) {
+                n = firstChild[n];
+            }
+            if(n == node) {
+                freeNode(n);
+                return;
+            }
+            int p = parent[n];
+            firstChild[p] = nextSibling[n];
+            freeNode(n);
+            n = p;
+        }
+    }
+
+    // removes node from the children of its parent
+    private void unlink(int node) {
+        int p = parent[node];
+        if(firstChild[p] == node) {
+            firstChild[p] = nextSibling[node];
+        } else {
+            int sibling = firstChild[p];
+            while(nextSibling[sibling] != node) {
+                sibling = nextSibling[sibling];
+            }
+            nextSibling[sibling] = nextSibling[node];
+        }
+        if(activeChild[p] == node) {
+            activeChild[p] = NONE;
+        }
+        nextSibling[node] = NONE;
+    }
+
+    private int allocNode() {
+        int node;
+        if(freeList != NONE) {
+            node = freeList;
+            freeList = nextSibling[node];
+        } else {
+            if(allocated == changes.length) {
+                grow();
+            }
+            node = allocated++;
+        }
+        firstChild[node] = NONE;
+        nextSibling[node] = NONE;
+        activeChild[node] = NONE;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        freedNodes += 1;
+        retainedBytes -= sizes[node];
+        changes[node] = null;
+        sizes[node] = 0;
+        revisions[node] = FREE;
+        nextSibling[node] = freeList;
+        freeList = node;
+    }
+
+    private void grow() {
+        int newLength = changes.length * 2;
+        changes = Arrays.copyOf(changes, newLength);
+        revisions = Arrays.copyOf(revisions, newLength);
+        sizes = Arrays.copyOf(sizes, newLength);
+        parent = Arrays.copyOf(parent, newLength);
+        firstChild = Arrays.copyOf(firstChild, newLength);
+        nextSibling = Arrays.copyOf(nextSibling, newLength);
+        activeChild = Arrays.copyOf(activeChild, newLength);
+        depth = Arrays.copyOf(depth, newLength);
+    }
+
+    @SuppressWarnings("unchecked")
+    private C change(int node) {
+        return (C) changes[node];
+    }
+}
@@ -0,0 +1,95 @@
+package org.fxmisc.undo.impl;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.fxmisc.undo.UndoManager;
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.reactfx.EventStream;
+
+/**
+ * {@link UndoManager} whose history is an undo tree (see {@link UndoTreeChangeQueue}):
+ * a change made after an undo starts a new branch and the undone changes remain reachable.
+ * In addition to undo and redo along the active branch, it can switch the branch followed
+ * by {@link #redo()} and jump to a position on any branch.
+ *
+ * @param <C> the type of change to undo/redo
+ */
+public class UndoTreeManagerImpl<C> extends UndoManagerImpl<C> {
+
+    private final UndoTreeChangeQueue<C> tree;
+
+    public UndoTreeManagerImpl(
+            UndoTreeChangeQueue<C> queue,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Predicate<C> isIdentity,
+            EventStream<C> changeSource) {
+        this(queue, invert, apply, merge, isIdentity, changeSource, Duration.ZERO);
+    }
+
+    public UndoTreeManagerImpl(
+            UndoTreeChangeQueue<C> queue,
+            Function<? super C, ? extends C> invert,
+            Consumer<C> apply,
+            BiFunction<C, C, Optional<C>> merge,
+            Predicate<C> isIdentity,
+            EventStream<C> changeSource,
+            Duration preventMergeDelay) {
+        super(queue, invert, apply, merge, isIdentity, changeSource, preventMergeDelay);
+        this.tree = queue;
+    }
+
+    /**
+     * Moves to {@code position}, which may lie on any branch of the history, by undoing the
+     * changes back to the closest common ancestor of the current position and {@code position}
+     * and redoing the changes from there to {@code position}. The changes are combined, where
+     * possible, and applied at once.
+     *
+     * @return {@code true} if any changes were applied, {@code false} if {@code position}
+     * is not valid or is the current position.
+     */
+    public boolean jumpTo(UndoPosition position) {
+        checkCanUndoOrRedo();
+        QueuePosition target = queuePosition(position);
+        if(target == null || !target.isValid() || target.equals(tree.getCurrentPosition())) {
+            return false;
+        }
+
+        int currentDepth = tree.getDepth(tree.getCurrentPosition());
+        int undoCount = tree.activatePathTo(target);
+        int redoCount = tree.getDepth(target) - (currentDepth - undoCount);
+        return move(undoCount, redoCount);
+    }
+
+    /**
+     * Returns the number of branches that follow the current position.
+     */
+    public int getBranchCount() {
+        return tree.getBranchCount();
+    }
+
+    /**
+     * Returns the index of the branch followed by {@link #redo()}, oldest branch first,
+     * or -1 if there is nothing to redo.
+     */
+    public int getActiveBranch() {
+        return tree.getActiveBranch();
+    }
+
+    /**
+     * Selects the branch followed by {@link #redo()}, oldest branch first.
+     *
+     * @throws IndexOutOfBoundsException if there are not enough branches
+     */
+    public void selectBranch(int index) {
+        checkCanUndoOrRedo();
+        tree.selectBranch(index);
+        invalidateProperties();
+    }
+}
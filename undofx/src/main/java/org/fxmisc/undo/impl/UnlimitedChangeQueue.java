@@ -1,26 +1,29 @@
 package org.fxmisc.undo.impl;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class UnlimitedChangeQueue<C> implements ChangeQueue<C> {
 
+    // a position is identified by the revision of the change preceding it, since compaction
+    // moves changes; revisions of the stored changes increase with their position
     private class QueuePositionImpl implements QueuePosition {
-        private final int allTimePos;
         private final long rev;
 
-        QueuePositionImpl(int allTimePos, long rev) {
-            this.allTimePos = allTimePos;
+        QueuePositionImpl(long rev) {
             this.rev = rev;
         }
 
         @Override
         public boolean isValid() {
-            int pos = allTimePos - forgottenCount;
-            if(0 <= pos && pos <= changes.size()) {
-                return rev == revisionForPosition(pos);
-            } else {
-                return false;
-            }
+            return positionOf(rev) >= 0;
         }
 
         @Override
@@ -34,12 +37,34 @@ public class UnlimitedChangeQueue<C> implements ChangeQueue<C> {
             }
         }
 
+        @Override
+        public int hashCode() {
+            return Long.hashCode(rev);
+        }
+
         private UnlimitedChangeQueue<C> getQueue() {
             return UnlimitedChangeQueue.this;
         }
     }
 
-    private final ArrayList<RevisionedChange<C>> changes = new ArrayList<>();
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_CHUNKS = 4;
+
+    // parallel arrays of changes and their revisions, split into chunks
+    // of CHUNK_SIZE entries, so that forgetting history releases whole chunks
+    // instead of moving the remaining changes. Position 0 is stored at index head
+    // of chunk firstChunk; chunks are allocated on demand.
+    private Object[][] changeChunks = new Object[INITIAL_CHUNKS][];
+    private long[][] revisionChunks = new long[INITIAL_CHUNKS][];
+
+    // soft references to the inverses of the changes, computed by prevInverse;
+    // a chunk of inverses is only allocated once a change from the chunk is undone
+    private Object[][] inverseChunks = new Object[INITIAL_CHUNKS][];
+    private int firstChunk = 0;
+    private int head = 0;
+    private int size = 0;
     private int currentPosition = 0;
 
     private long revision = 0;
@@ -48,7 +73,7 @@ public class UnlimitedChangeQueue<C> implements ChangeQueue<C> {
 
     @Override
     public final boolean hasNext() {
-        return currentPosition < changes.size();
+        return currentPosition < size;
     }
 
     @Override
@@ -56,59 +81,340 @@ public class UnlimitedChangeQueue<C> implements ChangeQueue<C> {
         return currentPosition > 0;
     }
 
+    @Override
+    public final int prevCount() {
+        return currentPosition;
+    }
+
     @Override
     public final C peekNext() {
-        return changes.get(currentPosition).getChange();
+        return fetch(checkIndex(currentPosition));
     }
 
     @Override
     public final C next() {
-        return changes.get(currentPosition++).getChange();
+        C c = peekNext();
+        currentPosition += 1;
+        return c;
     }
 
     @Override
     public final C peekPrev() {
-        return changes.get(currentPosition - 1).getChange();
+        return fetch(checkIndex(currentPosition - 1));
     }
 
     @Override
     public final C prev() {
-        return changes.get(--currentPosition).getChange();
+        C c = peekPrev();
+        currentPosition -= 1;
+        return c;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The inverse is cached for as long as the change is stored in this queue,
+     * unless the garbage collector reclaims it under memory pressure.</p>
+     */
+    @Override
+    public final C prevInverse(Function<? super C, ? extends C> invert) {
+        int position = checkIndex(currentPosition - 1);
+        int index = head + position;
+        int chunk = firstChunk + (index >>> CHUNK_SHIFT);
+        Object[] inverses = inverseChunks[chunk];
+        if(inverses == null) {
+            inverses = inverseChunks[chunk] = new Object[CHUNK_SIZE];
+        }
+
+        @SuppressWarnings("unchecked")
+        SoftReference<C> ref = (SoftReference<C>) inverses[index & CHUNK_MASK];
+        C inverse = ref != null ? ref.get() : null;
+        if(inverse == null) {
+            inverse = invert.apply(fetch(position));
+            inverses[index & CHUNK_MASK] = new SoftReference<>(inverse);
+        }
+        currentPosition -= 1;
+        return inverse;
     }
 
     @Override
     public void forgetHistory() {
         if(currentPosition > 0) {
             zeroPositionRevision = revisionForPosition(currentPosition);
-            int newSize = changes.size() - currentPosition;
-            for(int i = 0; i < newSize; ++i) {
-                changes.set(i, changes.get(currentPosition + i));
+            int index = head + currentPosition;
+            int droppedChunks = index >>> CHUNK_SHIFT;
+            Arrays.fill(changeChunks, firstChunk, firstChunk + droppedChunks, null);
+            Arrays.fill(revisionChunks, firstChunk, firstChunk + droppedChunks, null);
+            Arrays.fill(inverseChunks, firstChunk, firstChunk + droppedChunks, null);
+            firstChunk += droppedChunks;
+            head = index & CHUNK_MASK;
+            if(head > 0) {
+                Arrays.fill(changeChunks[firstChunk], 0, head, null);
+                if(inverseChunks[firstChunk] != null) {
+                    Arrays.fill(inverseChunks[firstChunk], 0, head, null);
+                }
             }
-            changes.subList(newSize, changes.size()).clear();
+            size -= currentPosition;
             forgottenCount += currentPosition;
             currentPosition = 0;
         }
     }
 
+    @Override
+    public void clear() {
+        zeroPositionRevision = revisionForPosition(size);
+        forgottenCount += size;
+        changeChunks = new Object[INITIAL_CHUNKS][];
+        revisionChunks = new long[INITIAL_CHUNKS][];
+        inverseChunks = new Object[INITIAL_CHUNKS][];
+        firstChunk = 0;
+        head = 0;
+        size = 0;
+        currentPosition = 0;
+    }
+
+    @Override
+    public int compact(int keepRecent, BiFunction<C, C, Optional<C>> merge, Predicate<QueuePosition> isBoundary) {
+        int end = currentPosition - keepRecent;
+        if(end < 2) {
+            return 0;
+        }
+
+        // squash the changes at [0, end) in place; w is the position of the accumulated change
+        int w = 0;
+        C acc = fetch(0);
+        for(int r = 1; r < end; ++r) {
+            C c = fetch(r);
+            long accRev = revisionAt(r - 1);
+            Optional<C> merged = isBoundary.test(new QueuePositionImpl(accRev))
+                    ? Optional.empty()
+                    : merge.apply(acc, c);
+            if(merged.isPresent()) {
+                acc = merged.get();
+            } else {
+                store(w++, acc, accRev);
+                acc = c;
+            }
+        }
+        store(w++, acc, revisionAt(end - 1));
+
+        int removed = end - w;
+        if(removed > 0) {
+            for(int r = end; r < size; ++r) {
+                store(r - removed, fetch(r), revisionAt(r));
+            }
+            int current = currentPosition;
+            currentPosition = size - removed;
+            discardFuture();
+            currentPosition = current - removed;
+        }
+        return removed;
+    }
+
+    @Override
+    public final void push(C change) {
+        discardFuture();
+        append(change, ++revision);
+        currentPosition = size;
+    }
+
     @Override
     @SafeVarargs
     public final void push(C... changes) {
-        this.changes.subList(currentPosition, this.changes.size()).clear();
+        discardFuture();
         for(C c: changes) {
-            RevisionedChange<C> revC = new RevisionedChange<>(c, ++revision);
-            this.changes.add(revC);
+            append(c, ++revision);
         }
-        currentPosition += changes.length;
+        currentPosition = size;
     }
 
     @Override
     public QueuePosition getCurrentPosition() {
-        return new QueuePositionImpl(forgottenCount + currentPosition, revisionForPosition(currentPosition));
+        return new QueuePositionImpl(revisionForPosition(currentPosition));
+    }
+
+    @Override
+    public long getCurrentRevision() {
+        return revisionForPosition(currentPosition);
+    }
+
+    @Override
+    public int distanceTo(QueuePosition position) {
+        int pos = positionOf(ownPosition(position).rev);
+        return pos >= 0 ? pos - currentPosition : 0;
+    }
+
+    @Override
+    public void save(WritableByteChannel channel, ChangeCodec<? super C> codec, QueuePosition mark) throws IOException {
+        QueuePositionImpl markPos = ownPosition(mark);
+        HistoryFormat.Writer<C> writer = new HistoryFormat.Writer<>(channel, codec);
+        int markPosition = Math.max(0, positionOf(markPos.rev));
+        writer.writeHeader(new HistoryFormat.Header(forgottenCount, size, currentPosition,
+                revision, zeroPositionRevision, forgottenCount + markPosition, markPos.rev));
+        for(int i = 0; i < size; ++i) {
+            writer.writeChange(fetch(i), revisionAt(i));
+        }
+        writer.finish();
+    }
+
+    @Override
+    public QueuePosition restore(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        HistoryFormat.Reader<C> reader = new HistoryFormat.Reader<>(channel, codec);
+        HistoryFormat.Header header = reader.readHeader();
+        int chunks = Math.max(INITIAL_CHUNKS, (header.size + CHUNK_MASK) >>> CHUNK_SHIFT);
+        Object[][] restoredChanges = new Object[chunks][];
+        long[][] restoredRevisions = new long[chunks][];
+        for(int i = 0; i < header.size; ++i) {
+            int chunk = i >>> CHUNK_SHIFT;
+            if(restoredChanges[chunk] == null) {
+                restoredChanges[chunk] = new Object[CHUNK_SIZE];
+                restoredRevisions[chunk] = new long[CHUNK_SIZE];
+            }
+            restoredChanges[chunk][i & CHUNK_MASK] = reader.readChange();
+            restoredRevisions[chunk][i & CHUNK_MASK] = reader.lastRevision();
+        }
+
+        changeChunks = restoredChanges;
+        revisionChunks = restoredRevisions;
+        inverseChunks = new Object[chunks][];
+        firstChunk = 0;
+        head = 0;
+        size = header.size;
+        currentPosition = header.currentPosition;
+        revision = header.revision;
+        zeroPositionRevision = header.zeroPositionRevision;
+        forgottenCount = header.forgottenCount;
+        return new QueuePositionImpl(header.markRevision);
+    }
+
+    private QueuePositionImpl ownPosition(QueuePosition pos) {
+        if(pos instanceof UnlimitedChangeQueue.QueuePositionImpl) {
+            @SuppressWarnings("unchecked")
+            QueuePositionImpl ownPos = (QueuePositionImpl) pos;
+            if(ownPos.getQueue() == this) {
+                return ownPos;
+            }
+        }
+        throw new IllegalArgumentException("Position does not belong to this queue: " + pos);
+    }
+
+    // discards the changes ahead of the current position
+    // and releases the chunks that no longer hold any change
+    private void discardFuture() {
+        if(currentPosition < size) {
+            int from = head + currentPosition;
+            int keptChunks = (from + CHUNK_MASK) >>> CHUNK_SHIFT;
+            int usedChunks = (head + size + CHUNK_MASK) >>> CHUNK_SHIFT;
+            if((from & CHUNK_MASK) != 0) {
+                int chunk = firstChunk + (from >>> CHUNK_SHIFT);
+                Arrays.fill(changeChunks[chunk], from & CHUNK_MASK, CHUNK_SIZE, null);
+                if(inverseChunks[chunk] != null) {
+                    Arrays.fill(inverseChunks[chunk], from & CHUNK_MASK, CHUNK_SIZE, null);
+                }
+            }
+            Arrays.fill(changeChunks, firstChunk + keptChunks, firstChunk + usedChunks, null);
+            Arrays.fill(revisionChunks, firstChunk + keptChunks, firstChunk + usedChunks, null);
+            Arrays.fill(inverseChunks, firstChunk + keptChunks, firstChunk + usedChunks, null);
+            size = currentPosition;
+        }
+    }
+
+    private void append(C change, long rev) {
+        int index = head + size;
+        int chunk = firstChunk + (index >>> CHUNK_SHIFT);
+        if(chunk == changeChunks.length) {
+            growChunkDirectory();
+            chunk = firstChunk + (index >>> CHUNK_SHIFT);
+        }
+        if(changeChunks[chunk] == null) {
+            changeChunks[chunk] = new Object[CHUNK_SIZE];
+            revisionChunks[chunk] = new long[CHUNK_SIZE];
+        }
+        changeChunks[chunk][index & CHUNK_MASK] = change;
+        revisionChunks[chunk][index & CHUNK_MASK] = rev;
+        size += 1;
+    }
+
+    // makes room for another chunk, either by moving the live
+    // chunks to the beginning or by growing the chunk directory
+    private void growChunkDirectory() {
+        int liveChunks = changeChunks.length - firstChunk;
+        if(firstChunk >= changeChunks.length / 2) {
+            System.arraycopy(changeChunks, firstChunk, changeChunks, 0, liveChunks);
+            System.arraycopy(revisionChunks, firstChunk, revisionChunks, 0, liveChunks);
+            System.arraycopy(inverseChunks, firstChunk, inverseChunks, 0, liveChunks);
+            Arrays.fill(changeChunks, liveChunks, changeChunks.length, null);
+            Arrays.fill(revisionChunks, liveChunks, revisionChunks.length, null);
+            Arrays.fill(inverseChunks, liveChunks, inverseChunks.length, null);
+        } else {
+            int newLength = changeChunks.length * 2;
+            Object[][] newChangeChunks = new Object[newLength][];
+            long[][] newRevisionChunks = new long[newLength][];
+            Object[][] newInverseChunks = new Object[newLength][];
+            System.arraycopy(changeChunks, firstChunk, newChangeChunks, 0, liveChunks);
+            System.arraycopy(revisionChunks, firstChunk, newRevisionChunks, 0, liveChunks);
+            System.arraycopy(inverseChunks, firstChunk, newInverseChunks, 0, liveChunks);
+            changeChunks = newChangeChunks;
+            revisionChunks = newRevisionChunks;
+            inverseChunks = newInverseChunks;
+        }
+        firstChunk = 0;
+    }
+
+    // returns the position following the change with the given revision,
+    // or -1 if there is no such position
+    private int positionOf(long rev) {
+        if(rev == zeroPositionRevision) {
+            return 0;
+        }
+        int lo = 0;
+        int hi = size - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midRev = revisionAt(mid);
+            if(midRev < rev) {
+                lo = mid + 1;
+            } else if(midRev > rev) {
+                hi = mid - 1;
+            } else {
+                return mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    // overwrites the change at the given position, dropping its cached inverse
+    private void store(int position, C change, long rev) {
+        int index = head + position;
+        int chunk = firstChunk + (index >>> CHUNK_SHIFT);
+        changeChunks[chunk][index & CHUNK_MASK] = change;
+        revisionChunks[chunk][index & CHUNK_MASK] = rev;
+        if(inverseChunks[chunk] != null) {
+            inverseChunks[chunk][index & CHUNK_MASK] = null;
+        }
     }
 
     private long revisionForPosition(int position) {
         return position == 0
                 ? zeroPositionRevision
-                : changes.get(position - 1).getRevision();
+                : revisionAt(position - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private C fetch(int position) {
+        int index = head + position;
+        return (C) changeChunks[firstChunk + (index >>> CHUNK_SHIFT)][index & CHUNK_MASK];
+    }
+
+    private long revisionAt(int position) {
+        int index = head + position;
+        return revisionChunks[firstChunk + (index >>> CHUNK_SHIFT)][index & CHUNK_MASK];
+    }
+
+    private int checkIndex(int position) {
+        if(position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position: " + position + ", size: " + size);
+        }
+        return position;
     }
 }
@@ -1,5 +1,8 @@
 package org.fxmisc.undo.impl;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.NoSuchElementException;
 
 public class ZeroSizeChangeQueue<C> implements ChangeQueue<C> {
@@ -27,6 +30,11 @@ public class ZeroSizeChangeQueue<C> implements ChangeQueue<C> {
             }
         }
 
+        @Override
+        public int hashCode() {
+            return Long.hashCode(rev);
+        }
+
         private ZeroSizeChangeQueue<C> getQueue() {
             return ZeroSizeChangeQueue.this;
         }
@@ -44,6 +52,11 @@ public class ZeroSizeChangeQueue<C> implements ChangeQueue<C> {
         return false;
     }
 
+    @Override
+    public int prevCount() {
+        return 0;
+    }
+
     @Override
     public C peekNext() {
         throw new NoSuchElementException();
@@ -75,8 +88,62 @@ public class ZeroSizeChangeQueue<C> implements ChangeQueue<C> {
         return new QueuePositionImpl(revision);
     }
 
+    @Override
+    public long getCurrentRevision() {
+        return revision;
+    }
+
+    @Override
+    public int distanceTo(QueuePosition position) {
+        ownPosition(position);
+        return 0;
+    }
+
     @Override
     public void forgetHistory() {
         // there is nothing to forget
     }
+
+    @Override
+    public void save(WritableByteChannel channel, ChangeCodec<? super C> codec, QueuePosition mark) throws IOException {
+        QueuePositionImpl markPos = ownPosition(mark);
+        HistoryFormat.Writer<C> writer = new HistoryFormat.Writer<>(channel, codec);
+        writer.writeHeader(new HistoryFormat.Header(0, 0, 0, revision, revision, 0, markPos.rev));
+        writer.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The restored changes are immediately forgotten, only the revision
+     * of the current position and the mark are retained.</p>
+     */
+    @Override
+    public QueuePosition restore(ReadableByteChannel channel, ChangeCodec<? extends C> codec) throws IOException {
+        HistoryFormat.Reader<C> reader = new HistoryFormat.Reader<>(channel, codec);
+        HistoryFormat.Header header = reader.readHeader();
+        long currentRevision = header.zeroPositionRevision;
+        for(int i = 0; i < header.currentPosition; ++i) {
+            reader.readEncodedChange();
+            currentRevision = reader.lastRevision();
+        }
+
+        revision = currentRevision;
+
+        // a mark ahead of the current position could be matched
+        // by the revisions of future changes, but is unreachable
+        long markRevision = header.markRevision > currentRevision ? -1 : header.markRevision;
+        return new QueuePositionImpl(markRevision);
+    }
+
+    private QueuePositionImpl ownPosition(QueuePosition pos) {
+        if(pos instanceof ZeroSizeChangeQueue.QueuePositionImpl) {
+            @SuppressWarnings("unchecked")
+            QueuePositionImpl ownPos = (QueuePositionImpl) pos;
+            if(ownPos.getQueue() == this) {
+                return ownPos;
+            }
+        }
+        throw new IllegalArgumentException("Position does not belong to this queue: " + pos);
+    }
 }
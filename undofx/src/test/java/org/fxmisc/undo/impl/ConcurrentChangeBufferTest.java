@@ -0,0 +1,201 @@
+package org.fxmisc.undo.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.reactfx.EventSource;
+
+public class ConcurrentChangeBufferTest {
+
+    @Test
+    public void testBurstIsDrainedInOneTaskInSubmissionOrder() {
+        List<Runnable> tasks = new ArrayList<>();
+        ConcurrentChangeBuffer<Integer> buffer = new ConcurrentChangeBuffer<>(tasks::add);
+        List<Integer> emitted = new ArrayList<>();
+        buffer.subscribe(emitted::add);
+
+        buffer.submit(1);
+        buffer.submit(2);
+        buffer.submit(3);
+        assertEquals(1, tasks.size());
+        assertTrue(emitted.isEmpty());
+
+        tasks.remove(0).run();
+        assertEquals(Arrays.asList(1, 2, 3), emitted);
+        assertFalse(buffer.hasPending());
+
+        buffer.submit(4);
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void testUndoManagerRecordsDrainAndInvalidatesOnce() {
+        List<Runnable> tasks = new ArrayList<>();
+        ConcurrentChangeBuffer<Integer> buffer = new ConcurrentChangeBuffer<>(tasks::add);
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, changes::push, (a, b) -> Optional.empty(), i -> i == 0, changes);
+        um.recordChangesFrom(buffer);
+        List<Integer> nextUndoValues = new ArrayList<>();
+        um.nextUndoProperty().addListener((obs, oldVal, newVal) -> nextUndoValues.add(newVal));
+
+        buffer.submit(1);
+        buffer.submit(2);
+        buffer.submit(3);
+        tasks.remove(0).run();
+        assertEquals(Arrays.asList(3), nextUndoValues);
+
+        um.undo();
+        assertEquals(Arrays.asList(3, 2), nextUndoValues);
+        um.undo();
+        um.undo();
+        assertFalse(um.isUndoAvailable());
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNoChangesAndKeepPerThreadOrder() throws InterruptedException {
+        int producers = 4;
+        int changesPerProducer = 100_000;
+        ExecutorService owner = Executors.newSingleThreadExecutor();
+        Thread[] ownerThread = new Thread[1];
+        owner.execute(() -> ownerThread[0] = Thread.currentThread());
+
+        ConcurrentChangeBuffer<long[]> buffer = new ConcurrentChangeBuffer<>(owner);
+        long[] lastSeq = new long[producers];
+        Arrays.fill(lastSeq, -1);
+        boolean[] failed = { false };
+        CountDownLatch received = new CountDownLatch(producers * changesPerProducer);
+        buffer.subscribe(change -> {
+            int producer = (int) change[0];
+            if(Thread.currentThread() != ownerThread[0] || change[1] != lastSeq[producer] + 1) {
+                failed[0] = true;
+            }
+            lastSeq[producer] = change[1];
+            received.countDown();
+        });
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for(int p = 0; p < producers; ++p) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch(InterruptedException e) {
+                    return;
+                }
+                for(long i = 0; i < changesPerProducer; ++i) {
+                    buffer.submit(new long[] { producer, i });
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+        for(Thread t: threads) {
+            t.join();
+        }
+
+        assertTrue(received.await(30, TimeUnit.SECONDS));
+        owner.shutdown();
+        assertTrue(owner.awaitTermination(10, TimeUnit.SECONDS));
+        assertFalse(failed[0]);
+        for(long seq: lastSeq) {
+            assertEquals(changesPerProducer - 1, seq);
+        }
+    }
+
+    // state of one round of testSubmitsRacingDrainAreNeitherLostNorReordered
+    private static final class Round {
+        final AtomicInteger scheduled = new AtomicInteger();
+        final ConcurrentChangeBuffer<Integer> buffer = new ConcurrentChangeBuffer<>(task -> scheduled.incrementAndGet());
+        final List<Integer> emitted = new ArrayList<>();
+        int drains = 0;
+
+        Round() {
+            buffer.subscribe(emitted::add);
+            buffer.addDrainListener(new ConcurrentChangeBuffer.DrainListener() {
+                @Override
+                public void drainStarted() {
+                    drains += 1;
+                }
+
+                @Override
+                public void drainFinished() {}
+            });
+        }
+
+        // returns a description of the violated property, or null
+        String check() {
+            buffer.drain();
+            if(emitted.size() != 4 || !emitted.containsAll(Arrays.asList(1, 2, 3, 4))) {
+                return "lost or duplicated changes: " + emitted;
+            }
+            if(emitted.indexOf(1) > emitted.indexOf(2) || emitted.indexOf(3) > emitted.indexOf(4)) {
+                return "changes of a producer reordered: " + emitted;
+            }
+            // every submission that finds the buffer empty schedules exactly one drain
+            if(scheduled.get() != drains) {
+                return scheduled.get() + " drains scheduled for " + drains + " non-empty drains";
+            }
+            return null;
+        }
+    }
+
+    @Test
+    public void testSubmitsRacingDrainAreNeitherLostNorReordered() throws InterruptedException {
+        // in each round, two producers submit two changes each while the owner drains once,
+        // all released together by a barrier, so that submissions overlap the swap in drain()
+        int rounds = 20_000;
+        Round[] round = { new Round() };
+        String[] failure = { null };
+        int[] barriers = { 0 };
+        CyclicBarrier barrier = new CyclicBarrier(3, () -> {
+            // the first barrier only starts the first round
+            if(barriers[0]++ > 0 && failure[0] == null) {
+                failure[0] = round[0].check();
+            }
+            round[0] = new Round();
+        });
+
+        Thread[] actors = {
+            actor(barrier, rounds, () -> { round[0].buffer.submit(1); round[0].buffer.submit(2); }),
+            actor(barrier, rounds, () -> { round[0].buffer.submit(3); round[0].buffer.submit(4); }),
+            actor(barrier, rounds, () -> round[0].buffer.drain()),
+        };
+        for(Thread t: actors) {
+            t.start();
+        }
+        for(Thread t: actors) {
+            t.join(60_000);
+            assertFalse(t.isAlive());
+        }
+        assertNull(failure[0]);
+    }
+
+    // runs the action once per round, and waits for the last round to be checked
+    private static Thread actor(CyclicBarrier barrier, int rounds, Runnable action) {
+        return new Thread(() -> {
+            try {
+                barrier.await();
+                for(int i = 0; i < rounds; ++i) {
+                    action.run();
+                    barrier.await();
+                }
+            } catch(InterruptedException | BrokenBarrierException e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+}
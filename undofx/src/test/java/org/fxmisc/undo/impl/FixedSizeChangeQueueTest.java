@@ -1,7 +1,13 @@
 package org.fxmisc.undo.impl;
 
+import static org.fxmisc.undo.impl.TestCodecs.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
 import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
 import org.junit.Test;
 
@@ -25,6 +31,48 @@ public class FixedSizeChangeQueueTest {
         assertTrue(queue.hasNext());
     }
 
+    @Test
+    public void testDistanceToPosition() {
+        ChangeQueue<Integer> queue = new FixedSizeChangeQueue<>(3);
+        QueuePosition start = queue.getCurrentPosition();
+        queue.push(1);
+        QueuePosition pos1 = queue.getCurrentPosition();
+        queue.push(2, 3);
+        QueuePosition pos3 = queue.getCurrentPosition();
+        queue.prev();
+        queue.prev();
+
+        assertEquals(-1, queue.distanceTo(start));
+        assertEquals(0, queue.distanceTo(pos1));
+        assertEquals(2, queue.distanceTo(pos3));
+
+        queue.next();
+        queue.next();
+        queue.push(4); // forgets 1
+        assertEquals(0, queue.distanceTo(start));
+        assertEquals(-1, queue.distanceTo(pos3));
+    }
+
+    @Test
+    public void testArraysGrowOnDemandUpToCapacity() {
+        ChangeQueue<Integer> queue = new FixedSizeChangeQueue<>(20);
+        for(int i = 1; i <= 6; ++i) {
+            queue.push(i);
+        }
+        queue.prev();
+        queue.forgetHistory(); // the remaining changes wrap around the end of the arrays
+        queue.push(7, 8, 9, 10, 11, 12, 13, 14, 15);
+        QueuePosition pos = queue.getCurrentPosition();
+        queue.push(16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30);
+
+        assertTrue(pos.isValid());
+        assertEquals(20, queue.prevCount());
+        for(int i = 30; i > 10; --i) {
+            assertEquals(Integer.valueOf(i), queue.prev());
+        }
+        assertFalse(queue.hasPrev());
+    }
+
     @Test
     public void testPositionValidityOnOverflow() {
         // create empty queue
@@ -160,4 +208,38 @@ public class FixedSizeChangeQueueTest {
         queue.push(3);
         assertNotEquals(pos, queue.getCurrentPosition());
     }
+
+    @Test
+    public void testRestoreIntoSmallerQueue() throws IOException {
+        ChangeQueue<Integer> queue = new UnlimitedChangeQueue<>();
+        queue.push(1, 2, 3, 4, 5, 6);
+        queue.prev();
+        QueuePosition mark = queue.getCurrentPosition();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        queue.save(Channels.newChannel(out), INT_CODEC, mark);
+
+        ChangeQueue<Integer> restored = new FixedSizeChangeQueue<>(3);
+        QueuePosition restoredMark = restored.restore(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), INT_CODEC);
+
+        assertTrue(restoredMark.isValid());
+        assertEquals(restoredMark, restored.getCurrentPosition());
+        assertEquals(Integer.valueOf(6), restored.next());
+        assertFalse(restored.hasNext());
+        restored.prev();
+        assertEquals(Integer.valueOf(5), restored.prev());
+        assertEquals(Integer.valueOf(4), restored.prev());
+        assertFalse(restored.hasPrev());
+    }
+
+    @Test
+    public void testInverseOfOverwrittenChangeIsNotReused() {
+        ChangeQueue<Integer> queue = new FixedSizeChangeQueue<>(2);
+        queue.push(1, 2);
+        assertEquals(Integer.valueOf(-2), queue.prevInverse(i -> -i));
+        queue.next();
+        queue.push(3, 4); // overwrites both slots
+        assertEquals(Integer.valueOf(-4), queue.prevInverse(i -> -i));
+        assertEquals(Integer.valueOf(-3), queue.prevInverse(i -> -i));
+        assertFalse(queue.hasPrev());
+    }
 }
@@ -0,0 +1,194 @@
+package org.fxmisc.undo.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Optional;
+
+import org.junit.Test;
+import org.reactfx.EventSource;
+
+public class GlobalUndoCoordinatorTest {
+
+    private static UndoManagerImpl<Integer> manager(EventSource<Integer> changes) {
+        return new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, changes::push, (a, b) -> Optional.of(a + b), i -> i == 0, changes);
+    }
+
+    @Test
+    public void testUndoAndRedoFollowTheGlobalOrderOfEntries() {
+        EventSource<Integer> changesA = new EventSource<>();
+        EventSource<Integer> changesB = new EventSource<>();
+        UndoManagerImpl<Integer> a = manager(changesA);
+        UndoManagerImpl<Integer> b = manager(changesB);
+        GlobalUndoCoordinator coordinator = new GlobalUndoCoordinator();
+        coordinator.register(a);
+        coordinator.register(b);
+
+        changesA.push(1);
+        changesA.push(2); // merged
+        changesB.push(10);
+        changesA.push(3); // not merged, since B recorded an entry in between
+        assertEquals(3, coordinator.getStepCount());
+
+        assertSame(a, coordinator.undo());
+        assertEquals(Integer.valueOf(3), a.getNextRedo());
+        assertSame(b, coordinator.undo());
+        assertSame(a, coordinator.undo());
+        assertEquals(Integer.valueOf(3), a.getNextRedo());
+        assertNull(coordinator.undo());
+
+        assertSame(a, coordinator.redo());
+        assertSame(b, coordinator.redo());
+        assertEquals(Integer.valueOf(10), b.getNextUndo());
+
+        // recording an entry discards the global steps ahead
+        changesB.push(20);
+        assertNull(coordinator.redo());
+        assertEquals(Integer.valueOf(3), a.getNextRedo());
+    }
+
+    @Test
+    public void testStepsOfEntriesUndoneLocallyAreSkipped() {
+        EventSource<Integer> changesA = new EventSource<>();
+        EventSource<Integer> changesB = new EventSource<>();
+        UndoManagerImpl<Integer> a = manager(changesA);
+        UndoManagerImpl<Integer> b = manager(changesB);
+        GlobalUndoCoordinator coordinator = new GlobalUndoCoordinator();
+        coordinator.register(a);
+        coordinator.register(b);
+
+        changesA.push(1);
+        changesB.push(10);
+        changesA.push(2);
+        a.undo();
+
+        assertSame(b, coordinator.undo());
+        assertSame(a, coordinator.undo());
+        assertFalse(a.isUndoAvailable());
+
+        // the step of B is removed once B is unregistered
+        coordinator.unregister(b);
+        assertSame(a, coordinator.redo());
+        assertSame(a, coordinator.redo());
+        assertEquals(Integer.valueOf(2), a.getNextUndo());
+        assertNull(coordinator.redo());
+        assertTrue(b.isRedoAvailable());
+    }
+
+    @Test
+    public void testRestoredHistoryRemovesTheStepsOfTheManager() throws IOException {
+        EventSource<Integer> changesA = new EventSource<>();
+        EventSource<Integer> changesB = new EventSource<>();
+        UndoManagerImpl<Integer> a = manager(changesA);
+        UndoManagerImpl<Integer> b = manager(changesB);
+        GlobalUndoCoordinator coordinator = new GlobalUndoCoordinator();
+        coordinator.register(a);
+        coordinator.register(b);
+
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        a.saveHistory(Channels.newChannel(empty), TestCodecs.INT_CODEC);
+        changesA.push(1);
+        changesB.push(10);
+        changesA.push(2);
+
+        a.restoreHistory(Channels.newChannel(new ByteArrayInputStream(empty.toByteArray())), TestCodecs.INT_CODEC);
+        assertEquals(1, coordinator.getStepCount());
+
+        // the restored history reuses the revisions, which must not match the forgotten steps
+        changesA.push(3);
+        assertSame(a, coordinator.undo());
+        assertSame(b, coordinator.undo());
+        assertNull(coordinator.undo());
+        assertFalse(a.isUndoAvailable());
+    }
+
+    @Test
+    public void testRejectedUndoKeepsTheStep() {
+        EventSource<Integer> changesA = new EventSource<>();
+        EventSource<Integer> changesB = new EventSource<>();
+        UndoManagerImpl<Integer> a = manager(changesA);
+        UndoManagerImpl<Integer> b = manager(changesB);
+        GlobalUndoCoordinator coordinator = new GlobalUndoCoordinator();
+        coordinator.register(a);
+        coordinator.register(b);
+
+        changesB.push(10);
+        changesA.push(1);
+        a.beginTransaction();
+        try {
+            coordinator.undo();
+            fail("undo must be rejected during a transaction");
+        } catch(IllegalStateException expected) {
+        }
+        a.rollback();
+
+        // the step of A has not been passed, so B's entry is not undone before it
+        assertSame(a, coordinator.undo());
+        assertSame(b, coordinator.undo());
+        assertNull(coordinator.undo());
+    }
+
+    @Test
+    public void testOldestStepsAreForgottenBeyondTheMaximum() {
+        EventSource<Integer> changesA = new EventSource<>();
+        EventSource<Integer> changesB = new EventSource<>();
+        UndoManagerImpl<Integer> a = manager(changesA);
+        UndoManagerImpl<Integer> b = manager(changesB);
+        GlobalUndoCoordinator coordinator = new GlobalUndoCoordinator(8);
+        coordinator.register(a);
+        coordinator.register(b);
+
+        for(int i = 1; i <= 9; ++i) {
+            (i % 2 == 0 ? changesB : changesA).push(i);
+        }
+        // the ninth step has made the coordinator forget the oldest two
+        assertEquals(7, coordinator.getStepCount());
+
+        for(int i = 0; i < 7; ++i) {
+            assertNotNull(coordinator.undo());
+        }
+        assertNull(coordinator.undo());
+        assertEquals(Integer.valueOf(3), a.getNextRedo());
+        assertEquals(Integer.valueOf(2), b.getNextUndo());
+    }
+
+    @Test
+    public void testUnregisterRemovesTheStepsOfTheManager() {
+        EventSource<Integer> changesA = new EventSource<>();
+        EventSource<Integer> changesB = new EventSource<>();
+        EventSource<Integer> changesC = new EventSource<>();
+        UndoManagerImpl<Integer> a = manager(changesA);
+        UndoManagerImpl<Integer> b = manager(changesB);
+        UndoManagerImpl<Integer> c = manager(changesC);
+        GlobalUndoCoordinator coordinator = new GlobalUndoCoordinator();
+        coordinator.register(a);
+        coordinator.register(b);
+        coordinator.register(c);
+
+        changesC.push(100);
+        changesA.push(1);
+        changesC.push(200);
+        changesA.push(2);
+        assertSame(a, coordinator.undo());
+        assertEquals(4, coordinator.getStepCount());
+
+        coordinator.unregister(a);
+        assertEquals(2, coordinator.getStepCount());
+        assertNull(coordinator.redo());
+
+        // C has taken the index of A and is still tracked
+        changesB.push(10);
+        changesC.push(300);
+        assertEquals(4, coordinator.getStepCount());
+        assertSame(c, coordinator.undo());
+        assertSame(b, coordinator.undo());
+        assertSame(c, coordinator.undo());
+        assertEquals(Integer.valueOf(100), c.getNextUndo());
+        assertSame(c, coordinator.undo());
+        assertNull(coordinator.undo());
+    }
+}
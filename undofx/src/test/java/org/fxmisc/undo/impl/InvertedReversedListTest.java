@@ -0,0 +1,26 @@
+package org.fxmisc.undo.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class InvertedReversedListTest {
+
+    @Test
+    public void testElementsAreInvertedOnceOnFirstAccess() {
+        int[] inversions = { 0 };
+        List<Integer> list = new InvertedReversedList<>(Arrays.asList(1, 2, 3), i -> { inversions[0] += 1; return -i; });
+
+        assertEquals(3, list.size());
+        assertEquals(0, inversions[0]);
+        assertEquals(Integer.valueOf(-3), list.get(0));
+        assertEquals(Integer.valueOf(-3), list.get(0));
+        assertEquals(1, inversions[0]);
+
+        assertEquals(Arrays.asList(-3, -2, -1), list);
+        assertEquals(3, inversions[0]);
+    }
+}
@@ -0,0 +1,152 @@
+package org.fxmisc.undo.impl;
+
+import static org.junit.Assert.*;
+
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.junit.Test;
+
+public class MemoryBoundedChangeQueueTest {
+
+    // the size of a change is its value
+    private static MemoryBoundedChangeQueue<Integer> queue(long byteBudget) {
+        return new MemoryBoundedChangeQueue<>(i -> i, byteBudget);
+    }
+
+    @Test
+    public void testOverflow() {
+        MemoryBoundedChangeQueue<Integer> queue = queue(10);
+        queue.push(1, 2, 3);
+        queue.push(4);
+        assertEquals(10, queue.getRetainedBytes());
+
+        queue.push(5); // evicts 1, 2 and 3
+        assertEquals(9, queue.getRetainedBytes());
+
+        assertEquals(Integer.valueOf(5), queue.prev());
+        assertEquals(Integer.valueOf(4), queue.prev());
+        assertFalse(queue.hasPrev());
+        assertTrue(queue.hasNext());
+    }
+
+    @Test
+    public void testMostRecentChangeIsRetainedWhenOverBudget() {
+        MemoryBoundedChangeQueue<Integer> queue = queue(10);
+        queue.push(3);
+        queue.push(20);
+        assertEquals(20, queue.getRetainedBytes());
+
+        assertEquals(Integer.valueOf(20), queue.prev());
+        assertFalse(queue.hasPrev());
+    }
+
+    @Test
+    public void testRetainedBytesAfterDiscardingRedoTail() {
+        MemoryBoundedChangeQueue<Integer> queue = queue(100);
+        queue.push(1, 2, 3, 4);
+        queue.prev();
+        queue.prev();
+        assertEquals(10, queue.getRetainedBytes());
+
+        queue.push(5);
+        assertEquals(8, queue.getRetainedBytes());
+        assertFalse(queue.hasNext());
+
+        queue.prev();
+        queue.forgetHistory();
+        assertEquals(5, queue.getRetainedBytes());
+    }
+
+    @Test
+    public void testRetainedBytesAfterForgettingHistory() {
+        MemoryBoundedChangeQueue<Integer> queue = queue(100);
+        queue.push(1, 2, 3, 4);
+        queue.prev();
+        queue.forgetHistory();
+        assertEquals(4, queue.getRetainedBytes());
+        assertFalse(queue.hasPrev());
+        assertEquals(Integer.valueOf(4), queue.next());
+    }
+
+    @Test
+    public void testGrowthPreservesOrder() {
+        MemoryBoundedChangeQueue<Integer> queue = queue(40);
+        for(int i = 0; i < 100; ++i) {
+            queue.push(1);
+        }
+        queue.push(2, 3); // wrap around the ring buffer before it grows
+        for(int i = 0; i < 100; ++i) {
+            queue.push(1);
+        }
+        assertEquals(40, queue.getRetainedBytes());
+        for(int i = 0; i < 40; ++i) {
+            assertEquals(Integer.valueOf(1), queue.prev());
+        }
+        assertFalse(queue.hasPrev());
+    }
+
+    @Test
+    public void testPositionValidityOnOverflow() {
+        MemoryBoundedChangeQueue<Integer> queue = queue(2);
+        QueuePosition pos0 = queue.getCurrentPosition();
+        queue.push(1);
+        QueuePosition pos1 = queue.getCurrentPosition();
+        queue.push(1);
+        QueuePosition pos2 = queue.getCurrentPosition();
+
+        assertTrue(pos0.isValid());
+        assertTrue(pos1.isValid());
+        assertTrue(pos2.isValid());
+
+        queue.push(1);
+
+        assertFalse(pos0.isValid());
+        assertTrue(pos1.isValid());
+        assertTrue(pos2.isValid());
+
+        queue.push(2);
+
+        assertFalse(pos0.isValid());
+        assertFalse(pos1.isValid());
+        assertFalse(pos2.isValid());
+        assertTrue(queue.getCurrentPosition().isValid());
+    }
+
+    @Test
+    public void testPositionValidityOnForgetHistory() {
+        ChangeQueue<Integer> queue = queue(100);
+        QueuePosition pos0 = queue.getCurrentPosition();
+        queue.push(1);
+        QueuePosition pos1 = queue.getCurrentPosition();
+        queue.push(2);
+        QueuePosition pos2 = queue.getCurrentPosition();
+        queue.push(3);
+        QueuePosition pos3 = queue.getCurrentPosition();
+
+        queue.prev();
+        queue.forgetHistory();
+
+        assertFalse(pos0.isValid());
+        assertFalse(pos1.isValid());
+        assertTrue(pos2.isValid());
+        assertTrue(pos3.isValid());
+    }
+
+    @Test
+    public void testPositionEquality() {
+        ChangeQueue<Integer> queue = queue(2);
+        queue.push(1);
+        QueuePosition pos = queue.getCurrentPosition();
+        assertEquals(pos, queue.getCurrentPosition());
+        queue.push(1);
+        assertNotEquals(pos, queue.getCurrentPosition());
+        queue.prev();
+        assertEquals(pos, queue.getCurrentPosition());
+        queue.prev();
+        assertNotEquals(pos, queue.getCurrentPosition());
+        queue.next();
+        assertEquals(pos, queue.getCurrentPosition());
+        queue.prev();
+        queue.push(1);
+        assertNotEquals(pos, queue.getCurrentPosition());
+    }
+}
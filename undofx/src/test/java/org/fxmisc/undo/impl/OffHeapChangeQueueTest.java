@@ -0,0 +1,104 @@
+package org.fxmisc.undo.impl;
+
+import static org.fxmisc.undo.impl.TestCodecs.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.junit.Test;
+
+public class OffHeapChangeQueueTest {
+
+    @Test
+    public void testUndoRedoAcrossSegments() {
+        // 3 changes per segment
+        ChangeQueue<Integer> queue = new OffHeapChangeQueue<>(INT_CODEC, 24);
+        for(int i = 1; i <= 20; ++i) {
+            queue.push(i);
+        }
+
+        for(int i = 20; i >= 1; --i) {
+            assertEquals(Integer.valueOf(i), queue.peekPrev());
+            assertEquals(Integer.valueOf(i), queue.prev());
+        }
+        assertFalse(queue.hasPrev());
+
+        for(int i = 1; i <= 10; ++i) {
+            assertEquals(Integer.valueOf(i), queue.next());
+        }
+        queue.push(-1);
+        assertFalse(queue.hasNext());
+        assertEquals(Integer.valueOf(-1), queue.prev());
+        assertEquals(Integer.valueOf(10), queue.prev());
+    }
+
+    @Test
+    public void testClearKeepsRevisionCounter() {
+        ChangeQueue<Integer> queue = new OffHeapChangeQueue<>(INT_CODEC, 24);
+        for(int i = 1; i <= 10; ++i) {
+            queue.push(i);
+        }
+        queue.prev();
+        QueuePosition pos = queue.getCurrentPosition();
+
+        queue.clear();
+        assertFalse(queue.hasPrev());
+        assertFalse(queue.hasNext());
+        assertFalse(pos.isValid());
+
+        queue.push(11);
+        assertEquals(Integer.valueOf(11), queue.prev());
+        assertFalse(pos.isValid());
+    }
+
+    @Test
+    public void testPositionValidityOnForgetHistory() {
+        ChangeQueue<Integer> queue = new OffHeapChangeQueue<>(INT_CODEC, 24);
+        QueuePosition pos0 = queue.getCurrentPosition();
+        for(int i = 1; i <= 10; ++i) {
+            queue.push(i);
+        }
+        queue.prev();
+        queue.prev();
+        QueuePosition pos8 = queue.getCurrentPosition();
+        queue.forgetHistory();
+
+        assertFalse(pos0.isValid());
+        assertTrue(pos8.isValid());
+        assertFalse(queue.hasPrev());
+        assertEquals(Integer.valueOf(9), queue.next());
+        assertEquals(Integer.valueOf(10), queue.next());
+        for(int i = 11; i <= 100; ++i) {
+            queue.push(i);
+        }
+        assertEquals(Integer.valueOf(100), queue.prev());
+        assertTrue(pos8.isValid());
+    }
+
+    @Test
+    public void testSaveRestore() throws IOException {
+        OffHeapChangeQueue<Integer> queue = new OffHeapChangeQueue<>(INT_CODEC, 24);
+        for(int i = 1; i <= 10; ++i) {
+            queue.push(i);
+        }
+        queue.prev();
+        QueuePosition mark = queue.getCurrentPosition();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        queue.save(Channels.newChannel(out), INT_CODEC, mark);
+
+        OffHeapChangeQueue<Integer> restored = new OffHeapChangeQueue<>(INT_CODEC, 24);
+        QueuePosition restoredMark = restored.restore(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), INT_CODEC);
+
+        assertEquals(restoredMark, restored.getCurrentPosition());
+        assertEquals(Integer.valueOf(10), restored.next());
+        for(int i = 10; i >= 1; --i) {
+            assertEquals(Integer.valueOf(i), restored.prev());
+        }
+        assertFalse(restored.hasPrev());
+    }
+}
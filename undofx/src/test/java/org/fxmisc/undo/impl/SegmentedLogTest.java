@@ -0,0 +1,61 @@
+package org.fxmisc.undo.impl;
+
+import static org.fxmisc.undo.impl.TestCodecs.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SegmentedLogTest {
+
+    private static class TrackingAllocator implements SegmentedLog.SegmentAllocator {
+        final Set<ByteBuffer> live = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        @Override
+        public ByteBuffer allocate(int size) {
+            ByteBuffer segment = ByteBuffer.allocate(size);
+            live.add(segment);
+            return segment;
+        }
+
+        @Override
+        public void release(ByteBuffer segment) {
+            assertTrue(live.remove(segment));
+        }
+    }
+
+    @Test
+    public void testReleasedSegmentsAreDropped() {
+        TrackingAllocator allocator = new TrackingAllocator();
+        // 2 records per segment
+        SegmentedLog<Integer> log = new SegmentedLog<>(INT_CODEC, allocator, 16);
+
+        List<Long> addresses = new ArrayList<>();
+        for(int i = 0; i < 1000; ++i) {
+            addresses.add(log.append(i));
+            if(i >= 10) {
+                log.releaseBefore(addresses.get(i - 10));
+            }
+        }
+
+        assertTrue(allocator.live.size() <= 7);
+        for(int i = 990; i < 1000; ++i) {
+            assertEquals(Integer.valueOf(i), log.read(addresses.get(i)));
+        }
+
+        log.truncate(addresses.get(995));
+        assertEquals(4, allocator.live.size());
+        assertEquals(Long.valueOf(log.append(-995)), addresses.get(995));
+        assertEquals(Integer.valueOf(-995), log.read(addresses.get(995)));
+        assertEquals(Integer.valueOf(994), log.read(addresses.get(994)));
+
+        log.clear();
+        assertTrue(allocator.live.isEmpty());
+    }
+}
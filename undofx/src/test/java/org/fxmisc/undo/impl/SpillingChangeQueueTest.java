@@ -0,0 +1,232 @@
+package org.fxmisc.undo.impl;
+
+import static org.fxmisc.undo.impl.TestCodecs.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillingChangeQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SpillingChangeQueue<Integer> queue;
+
+    @Before
+    public void setUp() throws IOException {
+        // 2 changes on heap, 3 changes per segment, read ahead of 2
+        queue = new SpillingChangeQueue<>(INT_CODEC, 2, folder.getRoot().toPath(), 24, 2);
+    }
+
+    @After
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Test
+    public void testCloseDeletesSegmentFiles() throws IOException {
+        for(int i = 1; i <= 20; ++i) {
+            queue.push(i);
+        }
+
+        queue.close();
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testClearDeletesSegmentFiles() {
+        for(int i = 1; i <= 20; ++i) {
+            queue.push(i);
+        }
+        queue.prev();
+        long revision = queue.getCurrentRevision();
+
+        queue.clear();
+        assertEquals(0, folder.getRoot().list().length);
+        assertFalse(queue.hasPrev());
+        assertFalse(queue.hasNext());
+        assertTrue(queue.getCurrentRevision() > revision);
+
+        queue.push(21);
+        assertEquals(Integer.valueOf(21), queue.prev());
+        assertFalse(queue.hasPrev());
+    }
+
+    @Test
+    public void testUndoRedoThroughSpilledChanges() {
+        for(int i = 1; i <= 20; ++i) {
+            queue.push(i);
+        }
+
+        for(int i = 20; i >= 1; --i) {
+            assertEquals(Integer.valueOf(i), queue.peekPrev());
+            assertEquals(Integer.valueOf(i), queue.prev());
+        }
+        assertFalse(queue.hasPrev());
+
+        for(int i = 1; i <= 20; ++i) {
+            assertEquals(Integer.valueOf(i), queue.peekNext());
+            assertEquals(Integer.valueOf(i), queue.next());
+        }
+        assertFalse(queue.hasNext());
+    }
+
+    @Test
+    public void testPushIntoSpilledRegionDiscardsTheRest() {
+        for(int i = 1; i <= 20; ++i) {
+            queue.push(i);
+        }
+        for(int i = 0; i < 15; ++i) {
+            queue.prev();
+        }
+
+        queue.push(100, 101, 102);
+        assertFalse(queue.hasNext());
+
+        assertEquals(Integer.valueOf(102), queue.prev());
+        assertEquals(Integer.valueOf(101), queue.prev());
+        assertEquals(Integer.valueOf(100), queue.prev());
+        for(int i = 5; i >= 1; --i) {
+            assertEquals(Integer.valueOf(i), queue.prev());
+        }
+        assertFalse(queue.hasPrev());
+    }
+
+    @Test
+    public void testForgetHistoryInSpilledRegion() {
+        for(int i = 1; i <= 20; ++i) {
+            queue.push(i);
+        }
+        for(int i = 0; i < 15; ++i) {
+            queue.prev();
+        }
+        queue.forgetHistory();
+
+        assertFalse(queue.hasPrev());
+        for(int i = 6; i <= 20; ++i) {
+            assertEquals(Integer.valueOf(i), queue.next());
+        }
+        assertFalse(queue.hasNext());
+    }
+
+    @Test
+    public void testChangeLargerThanSegment() {
+        ChangeCodec<int[]> arrayCodec = new ChangeCodec<int[]>() {
+            @Override public int encodedSize(int[] change) { return Integer.BYTES * change.length; }
+            @Override public void encode(int[] change, ByteBuffer buffer) { buffer.asIntBuffer().put(change); buffer.position(buffer.limit()); }
+            @Override public int[] decode(ByteBuffer buffer) {
+                int[] array = new int[buffer.remaining() / Integer.BYTES];
+                buffer.asIntBuffer().get(array);
+                return array;
+            }
+        };
+        SpillingChangeQueue<int[]> queue = new SpillingChangeQueue<>(arrayCodec, 1, folder.getRoot().toPath(), 16, 0);
+        try {
+            queue.push(new int[] { 1 });
+            queue.push(new int[100]);
+            queue.push(new int[] { 2, 3 });
+
+            assertArrayEquals(new int[] { 2, 3 }, queue.prev());
+            assertEquals(100, queue.prev().length);
+            assertArrayEquals(new int[] { 1 }, queue.prev());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testPositionValidityOnUndo() {
+        QueuePosition pos0 = queue.getCurrentPosition();
+        queue.push(1);
+        QueuePosition pos1 = queue.getCurrentPosition();
+        queue.push(2);
+        QueuePosition pos2 = queue.getCurrentPosition();
+        queue.push(3);
+        QueuePosition pos3 = queue.getCurrentPosition();
+        queue.push(4);
+        QueuePosition pos4 = queue.getCurrentPosition();
+
+        queue.prev();
+        queue.push(4);
+
+        assertTrue(pos0.isValid());
+        assertTrue(pos1.isValid());
+        assertTrue(pos2.isValid());
+        assertTrue(pos3.isValid());
+        assertFalse(pos4.isValid());
+
+        queue.prev();
+        queue.prev();
+        queue.prev();
+        queue.prev();
+        queue.push(1);
+
+        assertTrue(pos0.isValid());
+        assertFalse(pos1.isValid());
+        assertFalse(pos2.isValid());
+        assertFalse(pos3.isValid());
+    }
+
+    @Test
+    public void testPositionValidityOnForgetHistory() {
+        QueuePosition pos0 = queue.getCurrentPosition();
+        queue.push(1);
+        QueuePosition pos1 = queue.getCurrentPosition();
+        queue.push(2);
+        QueuePosition pos2 = queue.getCurrentPosition();
+        queue.push(3);
+        QueuePosition pos3 = queue.getCurrentPosition();
+        queue.push(4);
+        QueuePosition pos4 = queue.getCurrentPosition();
+
+        queue.prev();
+        queue.prev();
+        queue.forgetHistory();
+
+        assertFalse(pos0.isValid());
+        assertFalse(pos1.isValid());
+        assertTrue(pos2.isValid());
+        assertTrue(pos3.isValid());
+        assertTrue(pos4.isValid());
+    }
+
+    @Test
+    public void testSaveRestore() throws IOException {
+        for(int i = 1; i <= 20; ++i) {
+            queue.push(i);
+        }
+        for(int i = 0; i < 5; ++i) {
+            queue.prev();
+        }
+        QueuePosition mark = queue.getCurrentPosition();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        queue.save(Channels.newChannel(out), INT_CODEC, mark);
+
+        SpillingChangeQueue<Integer> restored = new SpillingChangeQueue<>(INT_CODEC, 3, folder.getRoot().toPath(), 24, 2);
+        try {
+            QueuePosition restoredMark = restored.restore(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), INT_CODEC);
+            assertEquals(restoredMark, restored.getCurrentPosition());
+            for(int i = 15; i >= 1; --i) {
+                assertEquals(Integer.valueOf(i), restored.prev());
+            }
+            assertFalse(restored.hasPrev());
+            for(int i = 1; i <= 20; ++i) {
+                assertEquals(Integer.valueOf(i), restored.next());
+            }
+            assertFalse(restored.hasNext());
+        } finally {
+            restored.close();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.fxmisc.undo.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codecs shared by the tests that save, restore or spill changes.
+ */
+final class TestCodecs {
+
+    static final ChangeCodec<Integer> INT_CODEC = new ChangeCodec<Integer>() {
+        @Override public int encodedSize(Integer change) { return Integer.BYTES; }
+        @Override public void encode(Integer change, ByteBuffer buffer) { buffer.putInt(change); }
+        @Override public Integer decode(ByteBuffer buffer) { return buffer.getInt(); }
+    };
+
+    private TestCodecs() {}
+}
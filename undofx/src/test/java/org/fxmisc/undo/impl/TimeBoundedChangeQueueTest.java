@@ -0,0 +1,56 @@
+package org.fxmisc.undo.impl;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.junit.Test;
+
+public class TimeBoundedChangeQueueTest {
+
+    @Test
+    public void testExpiredChangesAreForgottenOnPush() {
+        long[] now = { 0 };
+        ChangeQueue<Integer> queue = new TimeBoundedChangeQueue<>(Duration.ofSeconds(10), () -> now[0]);
+        QueuePosition pos0 = queue.getCurrentPosition();
+        queue.push(1);
+        QueuePosition pos1 = queue.getCurrentPosition();
+        now[0] = Duration.ofSeconds(5).toNanos();
+        queue.push(2);
+        QueuePosition pos2 = queue.getCurrentPosition();
+
+        // nothing expires until a change is pushed
+        now[0] = Duration.ofSeconds(12).toNanos();
+        assertTrue(pos0.isValid());
+        assertEquals(Integer.valueOf(2), queue.peekPrev());
+
+        queue.push(3);
+        assertFalse(pos0.isValid());
+        assertTrue(pos1.isValid());
+        assertTrue(pos2.isValid());
+        assertEquals(Integer.valueOf(3), queue.prev());
+        assertEquals(Integer.valueOf(2), queue.prev());
+        assertFalse(queue.hasPrev());
+        assertEquals(pos1, queue.getCurrentPosition());
+    }
+
+    @Test
+    public void testMostRecentChangeIsRetained() {
+        long[] now = { 0 };
+        ChangeQueue<Integer> queue = new TimeBoundedChangeQueue<>(Duration.ofSeconds(1), () -> now[0]);
+        queue.push(1);
+        queue.prev();
+        now[0] = Duration.ofSeconds(5).toNanos();
+
+        // undone changes are discarded by the push, not forgotten
+        queue.push(2);
+        QueuePosition pos = queue.getCurrentPosition();
+        now[0] = Duration.ofSeconds(10).toNanos();
+        queue.push(3);
+
+        assertTrue(pos.isValid());
+        assertEquals(Integer.valueOf(3), queue.prev());
+        assertFalse(queue.hasPrev());
+    }
+}
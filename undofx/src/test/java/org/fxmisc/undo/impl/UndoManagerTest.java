@@ -2,10 +2,35 @@ package org.fxmisc.undo.impl;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import javafx.beans.property.SimpleIntegerProperty;
 
@@ -13,12 +38,18 @@ import javafx.beans.property.SimpleObjectProperty;
 import org.fxmisc.undo.UndoManager;
 import org.fxmisc.undo.UndoManager.UndoPosition;
 import org.fxmisc.undo.UndoManagerFactory;
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.reactfx.EventSource;
 import org.reactfx.value.Var;
 
 public class UndoManagerTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @SafeVarargs
     private final <T> List<T> list(T... items) {
         return Arrays.asList(items);
@@ -101,6 +132,23 @@ public class UndoManagerTest {
         assertTrue(pos.isValid());
     }
 
+    @Test
+    public void testPositionsOfTheSameStateAreEqual() {
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManager<?> um = UndoManagerFactory.unlimitedHistorySingleChangeUM(changes, c -> -c, changes::push);
+        UndoManager<?> other = UndoManagerFactory.unlimitedHistorySingleChangeUM(changes, c -> -c, changes::push);
+
+        UndoPosition start = um.getCurrentPosition();
+        assertEquals(start, um.getCurrentPosition());
+        assertEquals(start.hashCode(), um.getCurrentPosition().hashCode());
+        assertNotEquals(start, other.getCurrentPosition());
+
+        changes.push(1);
+        assertNotEquals(start, um.getCurrentPosition());
+        um.undo();
+        assertEquals(start, um.getCurrentPosition());
+    }
+
     @Test
     public void testPositionInvalidAfterSingleChangeMerge() {
         EventSource<Integer> changes = new EventSource<>();
@@ -147,6 +195,42 @@ public class UndoManagerTest {
         assertFalse(um.isRedoAvailable());
     }
 
+    @Test
+    public void testMultiChangeMergeDoesNotModifyExposedList() {
+        EventSource<List<Integer>> changes = new EventSource<>();
+        List<List<Integer>> applied = new ArrayList<>();
+        MultiChangeUndoManagerImpl<Integer> um = new MultiChangeUndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                c -> -c, l -> { applied.add(new ArrayList<>(l)); changes.push(l); },
+                (c1, c2) -> c2 > 0 ? Optional.of(c1 + c2) : Optional.empty(), c -> c == 0, changes);
+        um.setInvalidationMode(InvalidationMode.MANUAL);
+        changes.push(list(1, 2));
+        changes.push(list(1, 2));
+        List<Integer> merged = um.getNextUndo();
+        assertEquals(list(2, 4), merged);
+
+        CountDownLatch nextUndoInvalidations = new CountDownLatch(2);
+        um.nextUndoProperty().addListener(obs -> {
+            nextUndoInvalidations.countDown();
+            um.nextUndoProperty().getValue();
+        });
+        um.nextUndoProperty().getValue();
+        changes.push(list(1, 2));
+        um.flushInvalidations();
+        assertEquals(1, nextUndoInvalidations.getCount());
+        assertEquals(list(2, 4), merged);
+        assertEquals(list(3, 6), um.getNextUndo());
+
+        // a change that cannot be merged at every caret leaves the entry intact
+        changes.push(list(1, -1));
+        um.flushInvalidations();
+        assertEquals(0, nextUndoInvalidations.getCount());
+        assertEquals(list(1, -1), um.getNextUndo());
+
+        um.undo();
+        um.undo();
+        assertEquals(Arrays.asList(list(1, -1), list(-6, -3)), applied);
+    }
+
     @Test
     public void zeroHistoryUndoManagerMark() {
         EventSource<Integer> changes = new EventSource<>();
@@ -395,4 +479,871 @@ public class UndoManagerTest {
         um.undo();
         assertEquals(list(-8, -5), lastAppliedValue.get());
     }
+
+    @Test
+    public void testRestoredHistoryIncludesMark() throws IOException {
+        ChangeCodec<Integer> codec = TestCodecs.INT_CODEC;
+
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, changes::push, (a, b) -> Optional.empty(), i -> i == 0, changes);
+        changes.push(1);
+        um.mark();
+        changes.push(2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        um.saveHistory(Channels.newChannel(out), codec);
+        um.close();
+
+        EventSource<Integer> changes2 = new EventSource<>();
+        Var<Integer> lastAction = Var.newSimpleVar(null);
+        UndoManagerImpl<Integer> um2 = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, i -> { lastAction.setValue(i); changes2.push(i); }, (a, b) -> Optional.empty(), i -> i == 0, changes2);
+        um2.restoreHistory(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), codec);
+
+        assertTrue(um2.isUndoAvailable());
+        assertFalse(um2.isAtMarkedPosition());
+        assertEquals(Integer.valueOf(2), um2.getNextUndo());
+        um2.undo();
+        assertEquals(-2, lastAction.getValue().intValue());
+        assertTrue(um2.isAtMarkedPosition());
+    }
+
+    @Test
+    public void testRestoreHistoryInvalidatesPositionsAndCheckpoints() throws IOException {
+        ChangeCodec<Integer> codec = TestCodecs.INT_CODEC;
+
+        EventSource<Integer> changes = new EventSource<>();
+        SimpleIntegerProperty sum = new SimpleIntegerProperty(0);
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, i -> { sum.set(sum.get() + i); changes.push(i); },
+                (a, b) -> Optional.empty(), i -> i == 0, changes);
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        um.saveHistory(Channels.newChannel(empty), codec);
+
+        List<Integer> restored = new ArrayList<>();
+        um.enableCheckpoints(new StateCheckpointer<Integer>() {
+            @Override
+            public CompletionStage<Integer> capture() {
+                return CompletableFuture.completedFuture(sum.get());
+            }
+
+            @Override
+            public void restore(Integer snapshot) {
+                restored.add(snapshot);
+                sum.set(snapshot);
+            }
+        }, 2);
+        for(int i = 0; i < 5; ++i) {
+            sum.set(sum.get() + 1);
+            changes.push(1);
+        }
+        UndoPosition old = um.getCurrentPosition();
+
+        um.beginTransaction();
+        try {
+            um.restoreHistory(Channels.newChannel(new ByteArrayInputStream(empty.toByteArray())), codec);
+            fail("Expected the restore to be rejected during a transaction");
+        } catch(IllegalStateException expected) {
+            // the history is left unchanged
+        }
+        um.rollback();
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+
+        um.restoreHistory(Channels.newChannel(new ByteArrayInputStream(empty.toByteArray())), codec);
+        assertFalse(old.isValid());
+        assertFalse(um.undoTo(old));
+
+        // the restored history reuses the revisions of the replaced one
+        UndoPosition start = um.getCurrentPosition();
+        assertTrue(start.isValid());
+        for(int i = 0; i < 5; ++i) {
+            sum.set(sum.get() + 10);
+            changes.push(10);
+        }
+        assertTrue(um.undoTo(start));
+        assertEquals(5, sum.get());
+        assertEquals(list(5), restored);
+    }
+
+    @Test
+    public void testHibernatedHistoryIsRestoredWhenNeeded() throws IOException {
+        ChangeCodec<Integer> codec = TestCodecs.INT_CODEC;
+
+        EventSource<Integer> changes = new EventSource<>();
+        List<Integer> applied = new ArrayList<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new FixedSizeChangeQueue<>(10),
+                i -> -i, i -> { applied.add(i); changes.push(i); }, (a, b) -> Optional.empty(), i -> i == 0, changes);
+        changes.push(1);
+        um.mark();
+        UndoPosition pos1 = um.getCurrentPosition();
+        changes.push(2);
+        changes.push(3);
+        um.undo();
+
+        Path file = folder.getRoot().toPath().resolve("history");
+        um.hibernate(file, codec);
+        assertTrue(um.isHibernated());
+        assertTrue(Files.exists(file));
+
+        assertEquals(Integer.valueOf(2), um.getNextUndo());
+        assertFalse(um.isHibernated());
+        assertFalse(Files.exists(file));
+        assertEquals(Integer.valueOf(3), um.getNextRedo());
+        assertTrue(pos1.isValid());
+
+        um.hibernate(file, codec);
+        assertTrue(um.undoTo(pos1));
+        assertEquals(list(-3, -2), applied);
+        assertTrue(um.isAtMarkedPosition());
+
+        um.hibernate(file, codec);
+        changes.push(4);
+        assertFalse(um.isRedoAvailable());
+        um.undo();
+        assertEquals(list(-3, -2, -4), applied);
+        assertTrue(um.isAtMarkedPosition());
+    }
+
+    @Test
+    public void testRestoreHistoryRehydratesHibernatedHistory() throws IOException {
+        ChangeCodec<Integer> codec = TestCodecs.INT_CODEC;
+
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new FixedSizeChangeQueue<>(10),
+                i -> -i, changes::push, (a, b) -> Optional.empty(), i -> i == 0, changes);
+        changes.push(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        um.saveHistory(Channels.newChannel(out), codec);
+        changes.push(2);
+
+        Path file = folder.getRoot().toPath().resolve("history");
+        um.hibernate(file, codec);
+        try {
+            um.restoreHistory(Channels.newChannel(new ByteArrayInputStream(new byte[0])), codec);
+            fail("restoring an empty history should fail");
+        } catch(IOException | RuntimeException expected) {
+            // the hibernated history is left unchanged
+        }
+        assertFalse(um.isHibernated());
+        assertFalse(Files.exists(file));
+        assertEquals(Integer.valueOf(2), um.getNextUndo());
+
+        um.hibernate(file, codec);
+        um.restoreHistory(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), codec);
+        assertFalse(um.isHibernated());
+        assertFalse(Files.exists(file));
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+    }
+
+    @Test
+    public void testUndoTreeIsHibernatedWithItsBranches() throws IOException {
+        EventSource<Integer> changes = new EventSource<>();
+        UndoTreeManagerImpl<Integer> um = new UndoTreeManagerImpl<>(new UndoTreeChangeQueue<>(i -> 1, 100),
+                i -> -i, changes::push, (a, b) -> Optional.empty(), i -> i == 0, changes);
+        changes.push(1);
+        changes.push(2);
+        UndoPosition pos2 = um.getCurrentPosition();
+        um.undo();
+        changes.push(3);
+
+        Path file = folder.getRoot().toPath().resolve("history");
+        um.hibernate(file, TestCodecs.INT_CODEC);
+        assertTrue(um.isHibernated());
+
+        assertTrue(um.jumpTo(pos2));
+        assertFalse(um.isHibernated());
+        assertFalse(Files.exists(file));
+        assertEquals(Integer.valueOf(2), um.getNextUndo());
+        um.undo();
+        assertEquals(2, um.getBranchCount());
+        assertEquals(0, um.getActiveBranch());
+    }
+
+    @Test
+    public void testUndoToAndRedoToApplyComposedChangeOnce() {
+        EventSource<Integer> changes = new EventSource<>();
+        List<Integer> applied = new ArrayList<>();
+        UndoManager<Integer> um = UndoManagerFactory.unlimitedHistorySingleChangeUM(
+                changes,
+                i -> -i,
+                i -> { applied.add(i); changes.push(i); },
+                (a, b) -> Optional.of(a + b));
+
+        changes.push(1);
+        UndoPosition pos1 = um.getCurrentPosition();
+        um.preventMerge();
+        changes.push(2);
+        um.preventMerge();
+        changes.push(3);
+        UndoPosition pos3 = um.getCurrentPosition();
+        um.preventMerge();
+        changes.push(4);
+
+        assertTrue(um.undoTo(pos1));
+        assertEquals(list(-9), applied);
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+        assertFalse(um.undoTo(pos3));
+
+        applied.clear();
+        assertTrue(um.redoTo(pos3));
+        assertEquals(list(5), applied);
+        assertEquals(Integer.valueOf(4), um.getNextRedo());
+        assertFalse(um.redoTo(pos1));
+        assertFalse(um.redoTo(pos3));
+    }
+
+    @Test
+    public void testMultiChangeUndoToConcatenatesChanges() {
+        EventSource<List<Integer>> changes = new EventSource<>();
+        Var<List<Integer>> lastChange = Var.newSimpleVar(null);
+        UndoManager<List<Integer>> um = UndoManagerFactory.unlimitedHistoryMultiChangeUM(
+                changes, i -> -i, i -> { lastChange.setValue(i); changes.push(i); });
+
+        UndoPosition start = um.getCurrentPosition();
+        changes.push(list(1, 2));
+        changes.push(list(3));
+
+        assertTrue(um.undoTo(start));
+        assertEquals(list(-3, -2, -1), lastChange.getValue());
+        assertFalse(um.isUndoAvailable());
+    }
+
+    @Test
+    public void testTransactionIsCommittedAsSingleEntry() {
+        EventSource<Integer> changes = new EventSource<>();
+        List<Integer> applied = new ArrayList<>();
+        UndoManager<Integer> um = UndoManagerFactory.unlimitedHistorySingleChangeUM(
+                changes,
+                i -> -i,
+                i -> { applied.add(i); changes.push(i); },
+                (a, b) -> Optional.of(a + b));
+        List<Boolean> undoAvailableChanges = new ArrayList<>();
+        um.undoAvailableProperty().addListener((obs, oldVal, newVal) -> undoAvailableChanges.add(newVal));
+
+        changes.push(1);
+        um.beginTransaction();
+        assertTrue(um.isInTransaction());
+        for(int i = 0; i < 1000; ++i) {
+            changes.push(2);
+        }
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+        um.commit();
+        assertFalse(um.isInTransaction());
+        assertEquals(list(true), undoAvailableChanges);
+
+        assertEquals(Integer.valueOf(2000), um.getNextUndo());
+        um.undo();
+        assertEquals(list(-2000), applied);
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+    }
+
+    @Test
+    public void testMultiChangeTransactionOfUnmergeableChangesIsUndoneAtOnce() {
+        EventSource<List<Integer>> changes = new EventSource<>();
+        List<List<Integer>> applied = new ArrayList<>();
+        UndoManager<List<Integer>> um = UndoManagerFactory.unlimitedHistoryMultiChangeUM(
+                changes, i -> -i, c -> { applied.add(c); changes.push(c); });
+
+        changes.push(list(1));
+        um.beginTransaction();
+        changes.push(list(2));
+        changes.push(list(3, 4));
+        changes.push(list(5));
+        um.commit();
+
+        assertEquals(list(2, 3, 4, 5), um.getNextUndo());
+        um.undo();
+        assertEquals(list(list(-5, -4, -3, -2)), applied);
+        assertEquals(list(1), um.getNextUndo());
+    }
+
+    @Test
+    public void testCommitOfUnmergeableSingleChangesIsRejected() {
+        EventSource<Integer> changes = new EventSource<>();
+        Var<Integer> lastAction = Var.newSimpleVar(null);
+        UndoManager<Integer> um = UndoManagerFactory.unlimitedHistorySingleChangeUM(
+                changes, i -> -i, i -> { lastAction.setValue(i); changes.push(i); });
+
+        changes.push(1);
+        um.beginTransaction();
+        changes.push(2);
+        changes.push(3);
+        try {
+            um.commit();
+            fail("Expected the commit to be rejected");
+        } catch(IllegalStateException expected) {
+            // the changes cannot be recorded as one entry
+        }
+        assertTrue(um.isInTransaction());
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+
+        um.rollback();
+        assertEquals(-2, lastAction.getValue().intValue());
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+    }
+
+    @Test
+    public void testCommitOfUnmergeableSingleChangesUsesCombiner() {
+        EventSource<Integer> changes = new EventSource<>();
+        List<Integer> applied = new ArrayList<>();
+        UndoManager<Integer> um = UndoManagerFactory.unlimitedHistorySingleChangeUM(
+                changes, i -> -i, i -> { applied.add(i); changes.push(i); });
+
+        changes.push(1);
+        List<List<Integer>> combined = new ArrayList<>();
+        um.beginTransaction(list -> {
+            combined.add(new ArrayList<>(list));
+            return list.stream().mapToInt(Integer::intValue).sum();
+        });
+        changes.push(2);
+        changes.push(3);
+        um.commit();
+
+        assertFalse(um.isInTransaction());
+        assertEquals(list(list(2, 3)), combined);
+        assertEquals(Integer.valueOf(5), um.getNextUndo());
+        um.undo();
+        assertEquals(list(-5), applied);
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+    }
+
+    @Test
+    public void testTransactionRollback() {
+        EventSource<Integer> changes = new EventSource<>();
+        Var<Integer> lastAction = Var.newSimpleVar(null);
+        UndoManager<Integer> um = UndoManagerFactory.unlimitedHistorySingleChangeUM(
+                changes, i -> -i, i -> { lastAction.setValue(i); changes.push(i); });
+
+        changes.push(1);
+        um.beginTransaction();
+        changes.push(2);
+        changes.push(3);
+        um.rollback();
+
+        assertEquals(-2, lastAction.getValue().intValue());
+        assertFalse(um.isInTransaction());
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+        assertFalse(um.isRedoAvailable());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNestedTransactionIsRejected() {
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManager<Integer> um = UndoManagerFactory.unlimitedHistorySingleChangeUM(
+                changes, i -> -i, changes::push);
+        um.beginTransaction();
+        um.beginTransaction();
+    }
+
+    @Test
+    public void testManualInvalidationIsCoalescedAndFiresOnlyOnActualChange() {
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, changes::push, (a, b) -> Optional.empty(), i -> i == 0, changes);
+        um.setInvalidationMode(InvalidationMode.MANUAL);
+
+        List<Integer> nextUndoValues = new ArrayList<>();
+        um.nextUndoProperty().addListener((obs, oldVal, newVal) -> nextUndoValues.add(newVal));
+        List<Boolean> redoAvailableValues = new ArrayList<>();
+        um.redoAvailableProperty().addListener((obs, oldVal, newVal) -> redoAvailableValues.add(newVal));
+        CountDownLatch atMarkedInvalidations = new CountDownLatch(2);
+        um.atMarkedPositionProperty().get();
+        um.atMarkedPositionProperty().addListener(obs -> {
+            atMarkedInvalidations.countDown();
+            um.atMarkedPositionProperty().get();
+        });
+
+        changes.push(1);
+        changes.push(2);
+        changes.push(3);
+        assertTrue(nextUndoValues.isEmpty());
+        assertEquals(2, atMarkedInvalidations.getCount());
+
+        um.flushInvalidations();
+        assertEquals(list(3), nextUndoValues);
+        assertEquals(1, atMarkedInvalidations.getCount());
+
+        changes.push(4);
+        um.flushInvalidations();
+        assertEquals(list(3, 4), nextUndoValues);
+        assertEquals(1, atMarkedInvalidations.getCount()); // still not at the marked position
+        assertTrue(redoAvailableValues.isEmpty());
+
+        // getters reflect the current history even before a flush, without notifying observers
+        changes.push(5);
+        assertEquals(Integer.valueOf(5), um.getNextUndo());
+        assertFalse(um.isAtMarkedPosition());
+        assertEquals(list(3, 4), nextUndoValues);
+        um.flushInvalidations();
+        assertEquals(list(3, 4, 5), nextUndoValues);
+    }
+
+    @Test
+    public void testInverseIsComputedOnceForRepeatedUndo() {
+        EventSource<Integer> changes = new EventSource<>();
+        int[] inversions = { 0 };
+        UndoManager<Integer> um = UndoManagerFactory.unlimitedHistorySingleChangeUM(
+                changes, i -> { inversions[0] += 1; return -i; }, changes::push);
+
+        changes.push(3);
+        for(int i = 0; i < 5; ++i) {
+            um.undo();
+            um.redo();
+        }
+        assertEquals(1, inversions[0]);
+
+        um.undo();
+        changes.push(4); // replaces the undone change
+        um.undo();
+        assertEquals(Integer.valueOf(4), um.getNextRedo());
+        assertEquals(2, inversions[0]);
+    }
+
+    @Test
+    public void testCompactHistoryKeepsMarkAndRecentEntries() {
+        EventSource<Integer> changes = new EventSource<>();
+        SimpleIntegerProperty value = new SimpleIntegerProperty(0);
+        changes.subscribe(i -> value.set(value.get() + i));
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(
+                new UnlimitedChangeQueue<>(), i -> -i, changes::push,
+                (a, b) -> Optional.of(a + b), i -> i == 0, changes);
+
+        for(int i = 1; i <= 3; ++i) {
+            changes.push(i);
+            um.preventMerge();
+        }
+        um.getCurrentPosition().mark();
+        for(int i = 4; i <= 6; ++i) {
+            changes.push(i);
+            um.preventMerge();
+        }
+        UndoPosition live = um.getCurrentPosition();
+        um.retainPosition(live);
+        for(int i = 7; i <= 8; ++i) {
+            changes.push(i);
+            um.preventMerge();
+        }
+
+        assertEquals(4, um.compactHistory(1));
+        assertTrue(live.isValid());
+        assertFalse(um.isAtMarkedPosition());
+
+        um.undo();
+        assertEquals(28, value.get());
+        um.undo();
+        assertEquals(21, value.get());
+        assertTrue(live.isValid());
+        um.undo();
+        assertEquals(6, value.get());
+        assertTrue(um.isAtMarkedPosition());
+        um.undo();
+        assertEquals(0, value.get());
+        assertFalse(um.isUndoAvailable());
+    }
+
+    @Test
+    public void testReleasedPositionMayBeCompacted() {
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(
+                new UnlimitedChangeQueue<>(), i -> -i, changes::push,
+                (a, b) -> Optional.of(a + b), i -> i == 0, changes);
+
+        changes.push(1);
+        um.preventMerge();
+        UndoPosition pos = um.getCurrentPosition();
+        um.retainPosition(pos);
+        um.retainPosition(um.getCurrentPosition());
+        changes.push(2);
+        um.preventMerge();
+        changes.push(3);
+
+        assertEquals(1, um.compactHistory(0));
+        assertEquals(Integer.valueOf(5), um.getNextUndo());
+        um.releasePosition(pos);
+        assertEquals(0, um.compactHistory(0));
+        assertTrue(pos.isValid());
+
+        um.releasePosition(pos);
+        assertEquals(1, um.compactHistory(0));
+        assertFalse(pos.isValid());
+        assertEquals(Integer.valueOf(6), um.getNextUndo());
+    }
+
+    @Test
+    public void testAsyncUndoCompletesWhenAppliedChangeIsReceived() throws Exception {
+        EventSource<Integer> changes = new EventSource<>();
+        Queue<Runnable> ownerTasks = new ConcurrentLinkedQueue<>();
+        Thread[] applyThread = new Thread[1];
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, i -> { applyThread[0] = Thread.currentThread(); ownerTasks.add(() -> changes.push(i)); },
+                (a, b) -> Optional.empty(), i -> i == 0, changes);
+        changes.push(1);
+        changes.push(2);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CompletableFuture<Boolean> undone = um.undoAsync(executor, ownerTasks::add);
+        assertTrue(um.isPerformingAction());
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+        try {
+            um.redo();
+            fail("redo must be rejected while the undo is in progress");
+        } catch(IllegalStateException expected) {
+        }
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), applyThread[0]);
+        assertFalse(undone.isDone());
+
+        while(!ownerTasks.isEmpty()) {
+            ownerTasks.poll().run();
+        }
+        assertTrue(undone.get());
+        assertFalse(um.isPerformingAction());
+        assertEquals(Integer.valueOf(2), um.getNextRedo());
+    }
+
+    @Test
+    public void testAsyncUndoReportsApplyOnTheExecutorThread() throws Exception {
+        EventSource<Integer> changes = new EventSource<>();
+        Queue<Runnable> executorTasks = new ConcurrentLinkedQueue<>();
+        Queue<Runnable> ownerTasks = new ConcurrentLinkedQueue<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, i -> ownerTasks.add(() -> changes.push(i)),
+                (a, b) -> Optional.empty(), i -> i == 0, changes);
+        Thread[] timedOn = new Thread[1];
+        um.setInstrumentation(new UndoInstrumentation() {
+            @Override
+            public void applyTimed(Object change, long nanos, Object started) {
+                timedOn[0] = Thread.currentThread();
+            }
+        });
+        changes.push(1);
+
+        CompletableFuture<Boolean> undone = um.undoAsync(executorTasks::add, ownerTasks::add);
+        // the instrumentation in place when the undo started receives the event
+        um.setInstrumentation(UndoInstrumentation.NONE);
+        Thread executorThread = new Thread(executorTasks.poll());
+        executorThread.start();
+        executorThread.join();
+        assertSame(executorThread, timedOn[0]);
+
+        while(!ownerTasks.isEmpty()) {
+            ownerTasks.poll().run();
+        }
+        assertTrue(undone.get());
+    }
+
+    @Test
+    public void testAsyncUndoFailsWhenAppliedChangeIsNotReceived() {
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, i -> {}, (a, b) -> Optional.empty(), i -> i == 0, changes);
+        changes.push(1);
+
+        CompletableFuture<Boolean> undone = um.undoAsync(Runnable::run, Runnable::run);
+        assertTrue(undone.isCompletedExceptionally());
+        assertFalse(um.isPerformingAction());
+        assertFalse(um.undoAsync(Runnable::run, Runnable::run).join());
+    }
+
+    @Test
+    public void testAsyncUndoMovesHistoryBackWhenApplyFails() {
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, i -> { throw new IllegalArgumentException("Cannot apply " + i); },
+                (a, b) -> Optional.empty(), i -> i == 0, changes);
+        changes.push(1);
+        changes.push(2);
+
+        CompletableFuture<Boolean> undone = um.undoAsync(Runnable::run, Runnable::run);
+        assertTrue(undone.isCompletedExceptionally());
+        assertFalse(um.isPerformingAction());
+        assertEquals(Integer.valueOf(2), um.getNextUndo());
+        assertFalse(um.isRedoAvailable());
+    }
+
+    @Test
+    public void testAsyncUndoFailsWhenChangeIsEmittedOffTheOwnerThread() throws Exception {
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i, changes::push, (a, b) -> Optional.empty(), i -> i == 0, changes);
+        changes.push(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Queue<Runnable> ownerTasks = new ConcurrentLinkedQueue<>();
+        CompletableFuture<Boolean> undone = um.undoAsync(executor, ownerTasks::add);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        while(!ownerTasks.isEmpty()) {
+            ownerTasks.poll().run();
+        }
+
+        try {
+            undone.join();
+            fail("the undo must fail");
+        } catch(CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+        assertFalse(um.isPerformingAction());
+    }
+
+    @Test
+    public void testProgressiveUndoAppliesChunksAcrossTasksAndMovesHistoryWhenComplete() throws Exception {
+        EventSource<List<Integer>> changes = new EventSource<>();
+        List<List<Integer>> applied = new ArrayList<>();
+        MultiChangeUndoManagerImpl<Integer> um = new MultiChangeUndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                c -> -c, l -> { applied.add(new ArrayList<>(l)); changes.push(l); },
+                (c1, c2) -> Optional.empty(), c -> c == 0, changes);
+        changes.push(list(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+
+        Queue<Runnable> ownerTasks = new ArrayDeque<>();
+        CompletableFuture<Boolean> undone = um.undoProgressively(3, Duration.ZERO, ownerTasks::add);
+        assertEquals(Arrays.asList(list(-10, -9, -8)), applied);
+        assertEquals(0.25, um.applyProgressProperty().get(), 0.0);
+        assertTrue(um.isPerformingAction());
+        assertTrue(um.isUndoAvailable());
+        try {
+            um.undo();
+            fail("undo must be rejected while the progressive undo is in progress");
+        } catch(IllegalStateException expected) {
+        }
+
+        while(!ownerTasks.isEmpty()) {
+            ownerTasks.poll().run();
+        }
+        assertTrue(undone.get());
+        assertEquals(Arrays.asList(list(-10, -9, -8), list(-7, -6, -5), list(-4, -3, -2), list(-1)), applied);
+        assertEquals(1.0, um.applyProgressProperty().get(), 0.0);
+        assertFalse(um.isPerformingAction());
+        assertFalse(um.isUndoAvailable());
+        assertEquals(list(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), um.getNextRedo());
+    }
+
+    @Test
+    public void testFailedProgressiveUndoRevertsAppliedChunks() throws Exception {
+        EventSource<List<Integer>> changes = new EventSource<>();
+        List<List<Integer>> applied = new ArrayList<>();
+        MultiChangeUndoManagerImpl<Integer> um = new MultiChangeUndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                c -> -c, l -> {
+                    if(l.contains(-4)) {
+                        throw new IllegalArgumentException("cannot apply " + l);
+                    }
+                    applied.add(new ArrayList<>(l));
+                    changes.push(l);
+                },
+                (c1, c2) -> Optional.empty(), c -> c == 0, changes);
+        changes.push(list(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+
+        Queue<Runnable> ownerTasks = new ArrayDeque<>();
+        CompletableFuture<Boolean> undone = um.undoProgressively(3, Duration.ZERO, ownerTasks::add);
+        while(!ownerTasks.isEmpty()) {
+            ownerTasks.poll().run();
+        }
+
+        try {
+            undone.get();
+            fail("the progressive undo should have failed");
+        } catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(Arrays.asList(list(-10, -9, -8), list(-7, -6, -5), list(5, 6, 7), list(8, 9, 10)), applied);
+        assertEquals(0.0, um.applyProgressProperty().get(), 0.0);
+        assertFalse(um.isPerformingAction());
+        assertFalse(um.isRedoAvailable());
+        assertEquals(list(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), um.getNextUndo());
+    }
+
+    @Test
+    public void testStatisticsCountRecordedMergedAndEvictedChanges() throws Exception {
+        EventSource<Integer> changes = new EventSource<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(
+                new FixedSizeChangeQueue<>(2), i -> -i, changes::push,
+                (a, b) -> a > 0 && b > 0 ? Optional.of(a + b) : Optional.empty(), i -> i == 0, changes);
+        UndoStatistics stats = new UndoStatistics();
+        um.setInstrumentation(stats);
+
+        changes.push(1);
+        changes.push(2);  // merged into 3
+        changes.push(-1);
+        changes.push(0);  // identity
+        changes.push(-2); // evicts 3
+        um.undo();
+
+        assertEquals(3, stats.getChangesRecorded());
+        assertEquals(3, stats.getMergesAttempted());
+        assertEquals(1, stats.getMergesSucceeded());
+        assertEquals(1.0 / 3, stats.getMergeHitRate(), 1e-9);
+        assertEquals(1, stats.getIdentitiesDropped());
+        assertEquals(1, stats.getChangesEvicted());
+        assertEquals(1, stats.getUndoDepth());
+        assertEquals(1, stats.getApplyCount());
+        assertEquals(1, stats.getInvertCount());
+        assertEquals(3, stats.getMergeCount());
+
+        ObjectName name = stats.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(3L, server.getAttribute(name, "ChangesRecorded"));
+        } finally {
+            stats.unregister();
+        }
+    }
+
+    @Test
+    public void testStatisticsKeepTheMaximumOfConcurrentLatencies() throws Exception {
+        UndoStatistics stats = new UndoStatistics();
+        int threads = 4;
+        int perThread = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for(int t = 0; t < threads; ++t) {
+            int offset = t;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch(InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < perThread; ++i) {
+                    stats.applyTimed(null, (long) i * threads + offset, null);
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(threads * perThread, stats.getApplyCount());
+        assertEquals(threads * perThread - 1, stats.getApplyMaxNanos());
+    }
+
+    @Test
+    public void testJumpRestoresNearestCheckpoint() {
+        EventSource<Integer> changes = new EventSource<>();
+        SimpleIntegerProperty sum = new SimpleIntegerProperty(0);
+        List<Integer> applied = new ArrayList<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(new UnlimitedChangeQueue<>(),
+                i -> -i,
+                i -> { applied.add(i); sum.set(sum.get() + i); changes.push(i); },
+                (a, b) -> Optional.empty(), i -> i == 0, changes);
+        List<Integer> restored = new ArrayList<>();
+        um.enableCheckpoints(new StateCheckpointer<Integer>() {
+            @Override
+            public CompletionStage<Integer> capture() {
+                return CompletableFuture.completedFuture(sum.get());
+            }
+
+            @Override
+            public void restore(Integer snapshot) {
+                restored.add(snapshot);
+                int delta = snapshot - sum.get();
+                sum.set(snapshot);
+                changes.push(delta); // the model reports the change, which must be ignored
+            }
+        }, 10);
+
+        UndoPosition start = um.getCurrentPosition();
+        UndoPosition pos23 = null;
+        for(int i = 1; i <= 100; ++i) {
+            sum.set(sum.get() + 1);
+            changes.push(1);
+            if(i == 23) {
+                pos23 = um.getCurrentPosition();
+            }
+        }
+        UndoPosition end = um.getCurrentPosition();
+
+        assertTrue(um.undoTo(pos23));
+        assertEquals(23, sum.get());
+        assertEquals(list(20), restored);
+        assertEquals(list(1, 1, 1), applied); // redone from the checkpoint at 20
+        assertEquals(Integer.valueOf(1), um.getNextUndo());
+
+        applied.clear();
+        assertTrue(um.redoTo(end));
+        assertEquals(100, sum.get());
+        assertEquals(list(20, 100), restored);
+        assertTrue(applied.isEmpty());
+
+        assertTrue(um.undoTo(start));
+        assertEquals(0, sum.get());
+        assertFalse(um.isUndoAvailable());
+    }
+
+    @Test
+    public void testCheckpointsAreThinnedAndPruned() {
+        EventSource<Integer> changes = new EventSource<>();
+        ChangeQueue<Integer> queue = new UnlimitedChangeQueue<>();
+        UndoManagerImpl<Integer> um = new UndoManagerImpl<>(queue,
+                i -> -i, changes::push, (a, b) -> Optional.empty(), i -> i == 0, changes);
+        Checkpoints<Integer, Integer> checkpoints = new Checkpoints<>(um, queue, new StateCheckpointer<Integer>() {
+            @Override
+            public CompletionStage<Integer> capture() {
+                return CompletableFuture.completedFuture(0);
+            }
+
+            @Override
+            public void restore(Integer snapshot) {
+            }
+        }, 1, 8);
+
+        checkpoints.capture();
+        for(int i = 0; i < 40; ++i) {
+            queue.push(i);
+            checkpoints.capture();
+        }
+        List<Integer> distances = new ArrayList<>();
+        Set<QueuePosition> positions = new HashSet<>();
+        checkpoints.addPositionsTo(positions);
+        for(QueuePosition pos: positions) {
+            distances.add(-queue.distanceTo(pos));
+        }
+        Collections.sort(distances);
+        // the recent snapshots are dense, the older ones sparse, the oldest is kept
+        assertEquals(list(0, 1, 2, 4, 8, 16, 24, 40), distances);
+
+        queue.forgetHistory();
+        checkpoints.prune();
+        positions.clear();
+        checkpoints.addPositionsTo(positions);
+        assertEquals(1, positions.size());
+    }
+
+    @Test
+    public void testUndoTreeJumpToOtherBranch() {
+        EventSource<Integer> changes = new EventSource<>();
+        SimpleIntegerProperty sum = new SimpleIntegerProperty(0);
+        List<Integer> applied = new ArrayList<>();
+        UndoTreeManagerImpl<Integer> um = new UndoTreeManagerImpl<>(new UndoTreeChangeQueue<>(i -> 1, 100),
+                i -> -i,
+                i -> { applied.add(i); sum.set(sum.get() + i); changes.push(i); },
+                (a, b) -> Optional.of(a + b), i -> i == 0, changes);
+
+        sum.set(1);
+        changes.push(1);
+        um.preventMerge();
+        sum.set(3);
+        changes.push(2);
+        UndoPosition pos3 = um.getCurrentPosition();
+        um.undo();
+        um.undo();
+        um.preventMerge();
+        sum.set(10);
+        changes.push(10);
+        applied.clear();
+
+        assertTrue(um.jumpTo(pos3));
+        assertEquals(list(-7), applied); // -10, +1 and +2 merged into one change
+        assertEquals(3, sum.get());
+        assertEquals(Integer.valueOf(2), um.getNextUndo());
+        assertFalse(um.jumpTo(pos3));
+
+        um.undo();
+        um.undo();
+        assertEquals(2, um.getBranchCount());
+        um.selectBranch(1);
+        assertEquals(Integer.valueOf(10), um.getNextRedo());
+    }
 }
@@ -0,0 +1,222 @@
+package org.fxmisc.undo.impl;
+
+import static org.fxmisc.undo.impl.TestCodecs.INT_CODEC;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
+import org.junit.Test;
+
+public class UndoTreeChangeQueueTest {
+
+    // the size of a change is its value
+    private static UndoTreeChangeQueue<Integer> queue(long byteBudget) {
+        return new UndoTreeChangeQueue<>(i -> i, byteBudget);
+    }
+
+    @Test
+    public void testPushAfterUndoKeepsUndoneChangesAsBranch() {
+        UndoTreeChangeQueue<Integer> queue = queue(100);
+        queue.push(1, 2);
+        QueuePosition pos2 = queue.getCurrentPosition();
+        queue.prev();
+        queue.push(3);
+
+        assertTrue(pos2.isValid());
+        assertFalse(queue.hasNext());
+        assertEquals(Integer.valueOf(3), queue.prev());
+        assertEquals(2, queue.getBranchCount());
+        assertEquals(1, queue.getActiveBranch());
+
+        queue.selectBranch(0);
+        assertEquals(Integer.valueOf(2), queue.next());
+        assertEquals(pos2, queue.getCurrentPosition());
+        assertEquals(Integer.valueOf(2), queue.prev());
+        assertEquals(Integer.valueOf(1), queue.prev());
+        assertFalse(queue.hasPrev());
+    }
+
+    @Test
+    public void testActivatePathToOtherBranch() {
+        UndoTreeChangeQueue<Integer> queue = queue(100);
+        queue.push(1, 2, 3);
+        QueuePosition pos3 = queue.getCurrentPosition();
+        queue.prev();
+        queue.prev();
+        queue.push(4, 5);
+
+        assertEquals(3, queue.getDepth(pos3));
+        assertEquals(2, queue.activatePathTo(pos3));
+        queue.prev();
+        queue.prev();
+        assertEquals(Integer.valueOf(2), queue.next());
+        assertEquals(Integer.valueOf(3), queue.next());
+        assertEquals(pos3, queue.getCurrentPosition());
+    }
+
+    @Test
+    public void testDistanceToFollowsActiveBranchOnly() {
+        UndoTreeChangeQueue<Integer> queue = queue(100);
+        QueuePosition start = queue.getCurrentPosition();
+        queue.push(1, 2, 3);
+        QueuePosition pos3 = queue.getCurrentPosition();
+        queue.prev();
+        queue.prev();
+        QueuePosition pos1 = queue.getCurrentPosition();
+        queue.push(4, 5);
+        QueuePosition pos5 = queue.getCurrentPosition();
+
+        assertEquals(-3, queue.distanceTo(start));
+        assertEquals(-2, queue.distanceTo(pos1));
+        assertEquals(0, queue.distanceTo(pos5));
+        assertEquals(0, queue.distanceTo(pos3)); // on an inactive branch
+
+        queue.prev();
+        queue.prev();
+        assertEquals(2, queue.distanceTo(pos5));
+        queue.selectBranch(0);
+        assertEquals(2, queue.distanceTo(pos3));
+        assertEquals(0, queue.distanceTo(pos5));
+        assertEquals(pos1, queue.getCurrentPosition());
+    }
+
+    @Test
+    public void testReplaceAndDropPrevDoNotBranch() {
+        UndoTreeChangeQueue<Integer> queue = queue(100);
+        queue.push(1);
+        QueuePosition pos1 = queue.getCurrentPosition();
+        queue.replacePrev(2);
+        assertFalse(pos1.isValid());
+        assertEquals(2, queue.getRetainedBytes());
+        queue.dropPrev();
+        assertFalse(queue.hasPrev());
+        assertEquals(0, queue.getBranchCount());
+        assertEquals(0, queue.getRetainedBytes());
+    }
+
+    @Test
+    public void testAbandonedBranchesAreForgottenFirst() {
+        UndoTreeChangeQueue<Integer> queue = queue(10);
+        queue.push(1);
+        queue.push(2);
+        QueuePosition pos2 = queue.getCurrentPosition();
+        queue.prev();
+        queue.push(3);
+        QueuePosition pos3 = queue.getCurrentPosition();
+        queue.prev();
+        queue.push(4); // abandons 3; 1 + 2 + 3 + 4 = 10 fits into the budget
+        assertTrue(pos2.isValid());
+
+        queue.push(5); // forgets 2, the oldest abandoned branch, and then 3
+        assertFalse(pos2.isValid());
+        assertFalse(pos3.isValid());
+        assertEquals(10, queue.getRetainedBytes());
+
+        queue.push(4); // no abandoned branches left, forgets 1 and 4
+        assertEquals(9, queue.getRetainedBytes());
+        assertEquals(Integer.valueOf(4), queue.prev());
+        assertEquals(Integer.valueOf(5), queue.prev());
+        assertFalse(queue.hasPrev());
+    }
+
+    @Test
+    public void testForgetHistoryRemovesOtherBranches() {
+        UndoTreeChangeQueue<Integer> queue = queue(100);
+        queue.push(1, 2);
+        queue.prev();
+        queue.push(3);
+        queue.prev();
+        QueuePosition pos1 = queue.getCurrentPosition();
+        queue.forgetHistory();
+
+        assertTrue(pos1.isValid());
+        assertFalse(queue.hasPrev());
+        assertEquals(2, queue.getBranchCount());
+        assertEquals(5, queue.getRetainedBytes());
+
+        queue.next();
+        queue.forgetHistory();
+        assertEquals(0, queue.getBranchCount());
+        assertEquals(0, queue.getRetainedBytes());
+        assertFalse(pos1.isValid());
+    }
+
+    @Test
+    public void testClearRemovesAllBranches() {
+        UndoTreeChangeQueue<Integer> queue = queue(100);
+        queue.push(1, 2);
+        queue.prev();
+        queue.push(3);
+        queue.prev();
+        long revision = queue.getCurrentRevision();
+
+        queue.clear();
+        assertEquals(0, queue.getRetainedBytes());
+        assertFalse(queue.hasPrev());
+        assertFalse(queue.hasNext());
+        assertTrue(queue.getCurrentRevision() > revision);
+
+        queue.push(4);
+        assertEquals(Integer.valueOf(4), queue.prev());
+        assertFalse(queue.hasPrev());
+    }
+
+    @Test
+    public void testSaveAndRestoreKeepBranches() throws IOException {
+        UndoTreeChangeQueue<Integer> queue = queue(100);
+        queue.push(1, 2, 3);
+        QueuePosition pos3 = queue.getCurrentPosition();
+        queue.prev();
+        queue.prev();
+        queue.push(4, 5);
+        queue.prev();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        queue.save(Channels.newChannel(out), INT_CODEC, pos3);
+
+        UndoTreeChangeQueue<Integer> restored = queue(100);
+        restored.push(42);
+        QueuePosition restoredMark = restored.restore(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), INT_CODEC);
+        assertEquals(15, restored.getRetainedBytes());
+        assertEquals(Integer.valueOf(5), restored.peekNext());
+        assertEquals(Integer.valueOf(4), restored.prev());
+        assertEquals(2, restored.getBranchCount());
+        assertEquals(1, restored.getActiveBranch());
+
+        restored.selectBranch(0);
+        assertEquals(Integer.valueOf(2), restored.next());
+        assertEquals(Integer.valueOf(3), restored.next());
+        assertEquals(restoredMark, restored.getCurrentPosition());
+        assertEquals(Integer.valueOf(3), restored.prev());
+
+        // the branch of 4 and 5 was abandoned before the branch of 3, so it is forgotten first
+        restored.push(90);
+        assertEquals(96, restored.getRetainedBytes());
+        assertEquals(Integer.valueOf(90), restored.prev());
+        assertEquals(2, restored.getBranchCount());
+        assertEquals(Integer.valueOf(2), restored.prev());
+        assertEquals(1, restored.getBranchCount());
+    }
+
+    @Test
+    public void testOtherQueuesRestoreTheActivePath() throws IOException {
+        UndoTreeChangeQueue<Integer> queue = queue(100);
+        queue.push(1, 2, 3);
+        queue.prev();
+        queue.prev();
+        queue.push(4, 5);
+        queue.prev();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        queue.save(Channels.newChannel(out), INT_CODEC, queue.getCurrentPosition());
+
+        ChangeQueue<Integer> restored = new UnlimitedChangeQueue<>();
+        QueuePosition restoredMark = restored.restore(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), INT_CODEC);
+        assertEquals(restoredMark, restored.getCurrentPosition());
+        assertEquals(2, restored.prevCount());
+        assertEquals(Integer.valueOf(5), restored.next());
+        assertFalse(restored.hasNext());
+    }
+}
@@ -1,7 +1,16 @@
 package org.fxmisc.undo.impl;
 
+import static org.fxmisc.undo.impl.TestCodecs.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Optional;
+
 import org.fxmisc.undo.impl.ChangeQueue.QueuePosition;
 import org.junit.Test;
 
@@ -104,4 +113,132 @@ public class UnlimitedChangeQueueTest {
         queue.push(3);
         assertNotEquals(pos, queue.getCurrentPosition());
     }
+
+    @Test
+    public void testSaveRestore() throws IOException {
+        ChangeQueue<Integer> queue = new UnlimitedChangeQueue<>();
+        queue.push(1, 2);
+        QueuePosition mark = queue.getCurrentPosition();
+        queue.push(3, 4, 5);
+        queue.prev();
+        queue.prev();
+        queue.prev();
+        queue.forgetHistory();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        queue.save(Channels.newChannel(out), INT_CODEC, mark);
+
+        ChangeQueue<Integer> restored = new UnlimitedChangeQueue<>();
+        restored.push(42);
+        QueuePosition restoredMark = restored.restore(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), INT_CODEC);
+
+        assertFalse(restored.hasPrev());
+        assertTrue(restoredMark.isValid());
+        assertEquals(restoredMark, restored.getCurrentPosition());
+        assertEquals(Integer.valueOf(3), restored.next());
+        assertEquals(Integer.valueOf(4), restored.next());
+        assertEquals(Integer.valueOf(5), restored.next());
+        assertFalse(restored.hasNext());
+
+        restored.prev();
+        restored.push(6);
+        assertTrue(restoredMark.isValid());
+    }
+
+    @Test
+    public void testFailedRestoreLeavesQueueUnchanged() throws IOException {
+        ChangeQueue<Integer> queue = new UnlimitedChangeQueue<>();
+        queue.push(1, 2, 3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        queue.save(Channels.newChannel(out), INT_CODEC, queue.getCurrentPosition());
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+
+        ChangeQueue<Integer> other = new UnlimitedChangeQueue<>();
+        other.push(7);
+        try {
+            other.restore(Channels.newChannel(new ByteArrayInputStream(truncated)), INT_CODEC);
+            fail("Expected an IOException");
+        } catch(IOException e) {
+            // expected
+        }
+        assertEquals(Integer.valueOf(7), other.prev());
+        assertFalse(other.hasPrev());
+    }
+
+    @Test
+    public void testCorruptChangeLengthFailsAtTheEndOfTheStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryFormat.Writer<Integer> writer = new HistoryFormat.Writer<>(Channels.newChannel(out), INT_CODEC);
+        writer.writeHeader(new HistoryFormat.Header(0, 1, 1, 1, 0, 0, 0));
+        writer.finish();
+        // revision delta 1, then a length of Integer.MAX_VALUE followed by a few bytes
+        out.write(new byte[] { 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 1, 2, 3, 4 });
+
+        ChangeQueue<Integer> queue = new UnlimitedChangeQueue<>();
+        try {
+            queue.restore(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), INT_CODEC);
+            fail("Expected an EOFException");
+        } catch(EOFException e) {
+            // the buffer was not grown to the announced length
+        }
+    }
+
+    @Test
+    public void testForgetHistoryAcrossChunks() {
+        ChangeQueue<Integer> queue = new UnlimitedChangeQueue<>();
+        for(int i = 0; i < 5000; ++i) {
+            queue.push(i);
+        }
+        for(int i = 0; i < 2000; ++i) {
+            queue.prev();
+        }
+        QueuePosition pos = queue.getCurrentPosition();
+        queue.forgetHistory();
+
+        assertFalse(queue.hasPrev());
+        assertTrue(pos.isValid());
+        for(int i = 3000; i < 3500; ++i) {
+            assertEquals(Integer.valueOf(i), queue.next());
+        }
+        queue.push(-1);
+        assertFalse(queue.hasNext());
+        assertEquals(Integer.valueOf(-1), queue.prev());
+        assertEquals(Integer.valueOf(3499), queue.prev());
+
+        for(int i = 0; i < 10000; ++i) {
+            queue.push(i);
+            if(i % 1500 == 0) {
+                queue.forgetHistory();
+            }
+        }
+        assertEquals(Integer.valueOf(9999), queue.prev());
+        assertFalse(pos.isValid());
+    }
+
+    @Test
+    public void testCompactSquashesOldChangesUpToBoundary() {
+        ChangeQueue<Integer> queue = new UnlimitedChangeQueue<>();
+        queue.push(1);
+        queue.push(2);
+        QueuePosition boundary = queue.getCurrentPosition();
+        queue.push(3);
+        QueuePosition inner = queue.getCurrentPosition();
+        queue.push(4);
+        queue.push(5);
+        queue.push(6);
+        QueuePosition current = queue.getCurrentPosition();
+
+        int removed = queue.compact(1, (a, b) -> Optional.of(a + b), boundary::equals);
+
+        assertEquals(3, removed);
+        assertTrue(boundary.isValid());
+        assertFalse(inner.isValid());
+        assertTrue(current.isValid());
+        assertEquals(current, queue.getCurrentPosition());
+        assertEquals(Integer.valueOf(6), queue.prev());
+        assertEquals(Integer.valueOf(12), queue.prev());
+        assertEquals(boundary, queue.getCurrentPosition());
+        assertEquals(Integer.valueOf(3), queue.prev());
+        assertFalse(queue.hasPrev());
+    }
 }